@@ -0,0 +1,137 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides when a task that has been tried too often is executed again. A
+ * policy maps the try count of a task to a delay and spreads the retries of
+ * tasks that failed together over a jitter window, so that they do not all
+ * come due at the same instant.
+ * 
+ * The delay must stop changing after getLastStep tries; this allows the same
+ * rules to be applied by IndexTask.markNew/markFailed and, as a JPQL
+ * expression, by the bulk status updates of IndexTaskRepository. The jitter
+ * of a stored task is derived from its id (id modulo JITTER_BUCKETS), so both
+ * paths give a task the same next execution time; tasks without an id yet
+ * get a random jitter.
+ * 
+ * The policy used is set with IndexTask.setBackoffPolicy, see
+ * IndexTask.configuredBackoffPolicy for the configuration properties.
+ * 
+ */
+public abstract class BackoffPolicy {
+
+    /**
+     * Returned by getDelay for try counts that are not backed off.
+     */
+    public static final long NO_BACKOFF = -1;
+
+    static final int JITTER_BUCKETS = 1000;
+
+    private final double jitter;
+
+    /**
+     * @param jitter
+     *            - the fraction, from 0 to 1, of each delay over which retries
+     *            are spread. A task is retried between delay * (1 - jitter)
+     *            and delay after it failed.
+     */
+    protected BackoffPolicy(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1: " + jitter);
+        }
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param tryCount
+     *            - the number of times a task has been tried
+     * @return the delay in milliseconds before the task is executed again, or
+     *         NO_BACKOFF if the task is not backed off
+     */
+    public abstract long getDelay(int tryCount);
+
+    /**
+     * @return the try count after which getDelay no longer changes
+     */
+    public abstract int getLastStep();
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Compute the next execution time of a task.
+     * 
+     * @param tryCount
+     *            - the number of times the task has been tried
+     * @param now
+     * @param id
+     *            - the id of the task, may be null
+     * @return the next execution time, or NO_BACKOFF if the task is not
+     *         backed off
+     */
+    public final long nextExecution(int tryCount, long now, Long id) {
+        long delay = getDelay(Math.min(tryCount, getLastStep()));
+        if (delay == NO_BACKOFF) {
+            return NO_BACKOFF;
+        }
+        long bucket = id == null ? ThreadLocalRandom.current().nextInt(JITTER_BUCKETS) : Math
+                .abs(id.longValue() % JITTER_BUCKETS);
+        return now + delay - jitterPerBucket(delay) * bucket;
+    }
+
+    /**
+     * The rules of nextExecution as a JPQL expression for the nextExecution of
+     * a task aliased 't', relative to the parameter ':now'. Try counts that
+     * are not backed off keep their nextExecution. The parameter is cast so
+     * that the sum is not typed as an integer.
+     * 
+     * @return
+     */
+    String toJpql() {
+        StringBuilder jpql = new StringBuilder("case");
+        int lastStep = getLastStep();
+        for (int tryCount = 0; tryCount <= lastStep; tryCount++) {
+            long delay = getDelay(tryCount);
+            if (delay == NO_BACKOFF) {
+                continue;
+            }
+            jpql.append(tryCount < lastStep ? " when t.tryCount = " : " when t.tryCount >= ")
+                    .append(tryCount).append(" then (cast(:now as long) + ").append(delay);
+            long perBucket = jitterPerBucket(delay);
+            if (perBucket > 0) {
+                jpql.append(" - ").append(perBucket).append(" * mod(t.id, ")
+                        .append(JITTER_BUCKETS).append(")");
+            }
+            jpql.append(")");
+        }
+        return jpql.append(" else t.nextExecution end").toString();
+    }
+
+    private long jitterPerBucket(long delay) {
+        return (long) (delay * jitter / JITTER_BUCKETS);
+    }
+}
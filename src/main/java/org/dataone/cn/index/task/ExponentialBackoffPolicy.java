@@ -0,0 +1,114 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+/**
+ * A BackoffPolicy whose delay starts at baseMillis when a task has been tried
+ * ALLOWED_RETRIES times, is multiplied by multiplier for each further try and
+ * is capped at maxMillis. The cap must be reached within MAX_STEPS tries, as
+ * each step up to it is a branch of the bulk update expression (see
+ * BackoffPolicy.toJpql).
+ * 
+ */
+public class ExponentialBackoffPolicy extends BackoffPolicy {
+
+    /**
+     * The most tries over which the delay may grow before it reaches
+     * maxMillis.
+     */
+    public static final int MAX_STEPS = 64;
+
+    private final long baseMillis;
+    private final double multiplier;
+    private final long maxMillis;
+    private final int lastStep;
+
+    /**
+     * @param baseMillis
+     *            - the first delay, greater than 0
+     * @param multiplier
+     *            - the growth of the delay per try, at least 1, and large
+     *            enough to reach maxMillis within MAX_STEPS tries
+     * @param maxMillis
+     *            - the largest delay, at least baseMillis
+     * @param jitter
+     *            - see BackoffPolicy
+     */
+    public ExponentialBackoffPolicy(long baseMillis, double multiplier, long maxMillis,
+            double jitter) {
+        super(jitter);
+        if (baseMillis <= 0 || multiplier < 1 || maxMillis < baseMillis) {
+            throw new IllegalArgumentException("Invalid exponential backoff: base " + baseMillis
+                    + ", multiplier " + multiplier + ", max " + maxMillis);
+        }
+        this.baseMillis = baseMillis;
+        this.multiplier = multiplier;
+        this.maxMillis = maxMillis;
+
+        int step = IndexTask.ALLOWED_RETRIES;
+        double delay = baseMillis;
+        // a multiplier of 1 never reaches the cap, the delay is constant
+        while (multiplier > 1 && delay < maxMillis) {
+            if (step - IndexTask.ALLOWED_RETRIES == MAX_STEPS) {
+                throw new IllegalArgumentException("Exponential backoff multiplier "
+                        + multiplier + " takes more than " + MAX_STEPS + " tries to reach "
+                        + maxMillis + " from " + baseMillis);
+            }
+            delay *= multiplier;
+            step++;
+        }
+        this.lastStep = step;
+    }
+
+    @Override
+    public long getDelay(int tryCount) {
+        if (tryCount < IndexTask.ALLOWED_RETRIES) {
+            return NO_BACKOFF;
+        }
+        double delay = baseMillis * Math.pow(multiplier, tryCount - IndexTask.ALLOWED_RETRIES);
+        return (long) Math.min(delay, maxMillis);
+    }
+
+    @Override
+    public int getLastStep() {
+        return lastStep;
+    }
+
+    public long getBaseMillis() {
+        return baseMillis;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ExponentialBackoffPolicy [baseMillis=" + baseMillis + ", multiplier="
+                + multiplier + ", maxMillis=" + maxMillis + ", jitter=" + getJitter() + "]";
+    }
+}
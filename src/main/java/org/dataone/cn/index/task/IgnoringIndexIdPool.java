@@ -21,26 +21,125 @@
  */
 package org.dataone.cn.index.task;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.dataone.configuration.Settings;
 import org.dataone.service.types.v2.SystemMetadata;
 
 /**
  * Represents a pool contains all identifiers which will be ignored in the index process.
+ * 
+ * The identifiers are described by IgnoringIndexIdRules read from the
+ * configuration: dataone.indexing.ignore.pidPrefixes (default
+ * OBJECT_FORMAT_LIST.1), dataone.indexing.ignore.pids and
+ * dataone.indexing.ignore.formatIds, each a comma separated list. The rules
+ * can be replaced while the index processor runs, with reload or setRules;
+ * readers see either the old or the new rules and are never blocked.
  * @author tao
  *
  */
 public class IgnoringIndexIdPool {
+
+    private static Logger logger = Logger.getLogger(IgnoringIndexIdPool.class.getName());
+
     private static final String IGNOREPIDPREFIX = "OBJECT_FORMAT_LIST.1";
-    
+
+    private static volatile IgnoringIndexIdRules rules = configuredRules();
+
     /**
      * If the identifier on the given system metadata object should be not ignore
      * @param smd
      * @return true if it shouldn't be ignored; otherwise false
      */
     public static boolean isNotIgnorePid(SystemMetadata smd) {
-        if(smd != null && smd.getIdentifier() != null && smd.getIdentifier().getValue() != null && 
-                smd.getIdentifier().getValue().startsWith(IGNOREPIDPREFIX)) {
-            return false;
+        if (smd == null) {
+            return true;
+        }
+        String pid = smd.getIdentifier() == null ? null : smd.getIdentifier().getValue();
+        String formatId = smd.getFormatId() == null ? null : smd.getFormatId().getValue();
+        return !rules.isIgnored(pid, formatId);
+    }
+
+    /**
+     * If the given identifier should be not ignore. Only the pid rules are
+     * applied, see isNotIgnorePid(String, String) to apply the format id rules
+     * as well.
+     * @param pid
+     * @return true if it shouldn't be ignored; otherwise false
+     */
+    public static boolean isNotIgnorePid(String pid) {
+        return !rules.isIgnoredPid(pid);
+    }
+
+    /**
+     * If the object with the given identifier and format id, for example the
+     * pid and formatId of an IndexTask, should be not ignore
+     * @param pid
+     * @param formatId
+     * @return true if it shouldn't be ignored; otherwise false
+     */
+    public static boolean isNotIgnorePid(String pid, String formatId) {
+        return !rules.isIgnored(pid, formatId);
+    }
+
+    /**
+     * Build the rules from the configuration.
+     * 
+     * @return
+     */
+    static IgnoringIndexIdRules configuredRules() {
+        List<String> pidPrefixes = Settings.getConfiguration().containsKey(
+                "dataone.indexing.ignore.pidPrefixes") ? configuredList(
+                "dataone.indexing.ignore.pidPrefixes") : Arrays.asList(IGNOREPIDPREFIX);
+        return new IgnoringIndexIdRules(pidPrefixes,
+                configuredList("dataone.indexing.ignore.pids"),
+                configuredList("dataone.indexing.ignore.formatIds"));
+    }
+
+    private static List<String> configuredList(String key) {
+        List<String> values = new ArrayList<String>();
+        // the configuration may not split list values itself
+        for (String property : Settings.getConfiguration().getStringArray(key)) {
+            if (property == null) {
+                continue;
+            }
+            for (String value : property.split(",")) {
+                if (value.trim().length() > 0) {
+                    values.add(value.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Read the rules from the configuration again and put them in use.
+     * 
+     * @return the new rules
+     */
+    public static IgnoringIndexIdRules reload() {
+        IgnoringIndexIdRules reloaded = configuredRules();
+        setRules(reloaded);
+        logger.info("Reloaded the ignored index ids: " + reloaded);
+        return reloaded;
+    }
+
+    public static IgnoringIndexIdRules getRules() {
+        return rules;
+    }
+
+    /**
+     * Put the given rules in use, overriding the configuration.
+     * 
+     * @param newRules
+     */
+    public static void setRules(IgnoringIndexIdRules newRules) {
+        if (newRules == null) {
+            throw new IllegalArgumentException("The ignore rules may not be null.");
         }
-        return true;
+        rules = newRules;
     }
 }
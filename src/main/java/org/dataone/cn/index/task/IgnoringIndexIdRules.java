@@ -0,0 +1,206 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An immutable set of rules deciding which objects are left out of the index:
+ * pid prefixes, exact pids and format ids. The pid rules are compiled into a
+ * character trie, so a pid is matched against all of them in one pass over
+ * its characters; the format ids are looked up in a hash set.
+ * 
+ * Instances are safe to share between threads. See IgnoringIndexIdPool for
+ * the rules in use.
+ */
+public class IgnoringIndexIdRules {
+
+    /**
+     * Rules that ignore nothing.
+     */
+    public static final IgnoringIndexIdRules NONE = new IgnoringIndexIdRules(
+            Collections.<String> emptyList(), Collections.<String> emptyList(),
+            Collections.<String> emptyList());
+
+    private final Node root;
+    private final Set<String> formatIds;
+    private final String description;
+
+    /**
+     * @param pidPrefixes
+     *            - pids starting with any of these are ignored
+     * @param pids
+     *            - pids equal to any of these are ignored
+     * @param formatIds
+     *            - objects with any of these format ids are ignored
+     */
+    public IgnoringIndexIdRules(Collection<String> pidPrefixes, Collection<String> pids,
+            Collection<String> formatIds) {
+        MutableNode builder = new MutableNode();
+        for (String prefix : pidPrefixes) {
+            builder.add(prefix).prefix = true;
+        }
+        for (String pid : pids) {
+            builder.add(pid).exact = true;
+        }
+        this.root = builder.compile();
+        this.formatIds = Collections.unmodifiableSet(new HashSet<String>(formatIds));
+        this.description = "pid prefixes " + pidPrefixes + ", pids " + pids + ", format ids "
+                + formatIds;
+    }
+
+    /**
+     * Is the pid matched by a prefix or exact pid rule.
+     * 
+     * @param pid
+     * @return false for a null pid
+     */
+    public boolean isIgnoredPid(String pid) {
+        if (pid == null) {
+            return false;
+        }
+        Node node = root;
+        int length = pid.length();
+        for (int i = 0; i < length; i++) {
+            if (node.prefix) {
+                return true;
+            }
+            node = node.child(pid.charAt(i));
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.prefix || node.exact;
+    }
+
+    /**
+     * Is the format id matched by a format id rule.
+     * 
+     * @param formatId
+     * @return false for a null format id
+     */
+    public boolean isIgnoredFormatId(String formatId) {
+        return formatId != null && formatIds.contains(formatId);
+    }
+
+    /**
+     * Is an object with the given pid and format id ignored by any rule.
+     * 
+     * @param pid
+     * @param formatId
+     * @return
+     */
+    public boolean isIgnored(String pid, String formatId) {
+        return isIgnoredPid(pid) || isIgnoredFormatId(formatId);
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    /**
+     * A node of the compiled trie. The labels of the children are sorted so a
+     * child is found by binary search.
+     */
+    private static final class Node {
+
+        private static final char[] NO_LABELS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        private final char[] labels;
+        private final Node[] children;
+        // a pid rule ends here: a pid prefix, or an exact pid
+        private final boolean prefix;
+        private final boolean exact;
+
+        Node(char[] labels, Node[] children, boolean prefix, boolean exact) {
+            this.labels = labels;
+            this.children = children;
+            this.prefix = prefix;
+            this.exact = exact;
+        }
+
+        Node child(char label) {
+            if (labels.length == 1) {
+                return labels[0] == label ? children[0] : null;
+            }
+            int index = Arrays.binarySearch(labels, label);
+            return index < 0 ? null : children[index];
+        }
+    }
+
+    /**
+     * The trie while the rules are added, compiled into Nodes once complete.
+     */
+    private static final class MutableNode {
+
+        private char[] labels = Node.NO_LABELS;
+        private MutableNode[] children = new MutableNode[0];
+        private boolean prefix;
+        private boolean exact;
+
+        MutableNode add(String value) {
+            MutableNode node = this;
+            for (int i = 0; i < value.length(); i++) {
+                node = node.getOrAdd(value.charAt(i));
+            }
+            return node;
+        }
+
+        private MutableNode getOrAdd(char label) {
+            int index = Arrays.binarySearch(labels, label);
+            if (index >= 0) {
+                return children[index];
+            }
+            int insert = -index - 1;
+            char[] newLabels = new char[labels.length + 1];
+            MutableNode[] newChildren = new MutableNode[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, insert);
+            System.arraycopy(children, 0, newChildren, 0, insert);
+            newLabels[insert] = label;
+            newChildren[insert] = new MutableNode();
+            System.arraycopy(labels, insert, newLabels, insert + 1, labels.length - insert);
+            System.arraycopy(children, insert, newChildren, insert + 1, children.length - insert);
+            labels = newLabels;
+            children = newChildren;
+            return newChildren[insert];
+        }
+
+        Node compile() {
+            if (prefix) {
+                // everything below a prefix is ignored already
+                return new Node(Node.NO_LABELS, Node.NO_CHILDREN, true, exact);
+            }
+            Node[] compiled = new Node[children.length];
+            for (int i = 0; i < children.length; i++) {
+                compiled[i] = children[i].compile();
+            }
+            return new Node(labels, compiled, false, exact);
+        }
+    }
+}
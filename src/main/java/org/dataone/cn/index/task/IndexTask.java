@@ -22,19 +22,18 @@
 
 package org.dataone.cn.index.task;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.io.Serializable;
-import java.io.UnsupportedEncodingException;
-import java.util.Calendar;
 
+import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.OneToOne;
+import javax.persistence.PostPersist;
+import javax.persistence.PostUpdate;
+import javax.persistence.PrimaryKeyJoinColumn;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 import javax.persistence.Version;
@@ -42,8 +41,12 @@ import javax.persistence.Version;
 import org.apache.commons.lang.time.FastDateFormat;
 import org.dataone.exceptions.MarshallingException;
 import org.apache.log4j.Logger;
+import org.dataone.configuration.Settings;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.annotations.Type;
 import org.dataone.service.types.v2.SystemMetadata;
-import org.dataone.service.util.TypeMarshaller;
 
 /**
  * An index task is a POJO that represents an update to a DataONE managed
@@ -56,11 +59,22 @@ import org.dataone.service.util.TypeMarshaller;
  * IndexTask is configured via Spring framework as a spring-data JPA object and
  * is stored in relational datastore.
  * 
+ * The secondary indexes declared here match the IndexTaskRepository queue and
+ * retry finders. The complete, versioned schema (including the pid index,
+ * which can not be declared portably on a TEXT column) is provided as SQL
+ * scripts under org/dataone/cn/index/schema.
+ * 
  * @author sroseboo
  * 
  */
 @Entity
 @Table(name = "index_task")
+@org.hibernate.annotations.Table(appliesTo = "index_task", indexes = {
+        @Index(name = "idx_index_task_queue", columnNames = { "status", "priority",
+                "taskModifiedDate", "id" }),
+        @Index(name = "idx_index_task_retry", columnNames = { "status", "nextExecution",
+                "tryCount" }),
+        @Index(name = "idx_index_task_purge", columnNames = { "status", "taskModifiedDate" }) })
 public class IndexTask implements Serializable {
 
     private static final long serialVersionUID = -6319197619205919972L;
@@ -75,13 +89,37 @@ public class IndexTask implements Serializable {
     private static final String FORMAT_RESOURCE_MAP = "http://www.openarchives.org/ore/terms";
 
     @Transient
-    private static final int ALLOWED_RETRIES = 2;
+    static final int ALLOWED_RETRIES = 2;
+
+    @Transient
+    static final int ID_ALLOCATION_SIZE = 50;
 
     /**
-     * Primary key of index_task table
+     * Decides the next execution time of tasks that have been tried
+     * ALLOWED_RETRIES times or more, see configuredBackoffPolicy.
+     */
+    @Transient
+    private static volatile BackoffPolicy backoffPolicy = configuredBackoffPolicy();
+
+    /**
+     * When enabled, new system metadata is stored compressed in the
+     * sysMetadataCompressed column instead of as text in sysMetadata.
+     */
+    @Transient
+    private static volatile boolean compressSysMetadata = Settings.getConfiguration().getBoolean(
+            "dataone.indexing.task.sysmeta.compressed", false);
+
+    /**
+     * Primary key of index_task table, shared with the index_task_payload row
+     * of the task. The payload row is inserted first and allocates the id in
+     * blocks of ID_ALLOCATION_SIZE from hibernate_sequence (hi/lo), see
+     * IndexTaskPayload, so inserts need one sequence round trip per block and
+     * can be sent as JDBC batches.
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = "index_task_id")
+    @GenericGenerator(name = "index_task_id", strategy = "foreign",
+            parameters = @Parameter(name = "property", value = "payload"))
     private Long id;
 
     @Version
@@ -94,16 +132,32 @@ public class IndexTask implements Serializable {
     @Column(columnDefinition = "TEXT", nullable = false)
     private String pid;
 
+    /**
+     * The shard of the task, derived from the pid. See IndexTaskShardRange.
+     */
+    @Column(nullable = false)
+    private int shardKey;
+
     /**
      * The object format id
      */
     private String formatId;
 
     /**
-     * Serialized version of the systemMetaData instance
+     * The serialized system metadata, in its own table so that status updates
+     * do not rewrite it. Loaded lazily: the IndexTaskRepository finders fetch
+     * it with the task, the bulk updates and summary finders never read it.
      */
-    @Column(columnDefinition = "TEXT")
-    private String sysMetadata;
+    @OneToOne(fetch = FetchType.LAZY, optional = false, cascade = CascadeType.ALL)
+    @PrimaryKeyJoinColumn
+    private IndexTaskPayload payload = new IndexTaskPayload();
+
+    /**
+     * Un-marshaled form of sysMetadata, populated on first use and discarded
+     * whenever sysMetadata is replaced.
+     */
+    @Transient
+    private transient SystemMetadata systemMetadata;
 
     /**
      * Filesystem path to the science metadata or resource map object. Null for
@@ -128,6 +182,20 @@ public class IndexTask implements Serializable {
 
     private boolean deleted = false;
 
+    /**
+     * The archived flag of the system metadata, kept in its own column so
+     * that removal tasks can be found and routed without parsing sysMetadata.
+     */
+    @Column(nullable = false, columnDefinition = "boolean default false")
+    private boolean archived = false;
+
+    /**
+     * The identifier of the object that obsoletes this object, from the
+     * system metadata. Null when the object is not obsoleted.
+     */
+    @Column(columnDefinition = "TEXT")
+    private String obsoletedBy;
+
     /**
      * Relative priority of this task. Some operations such as a change in
      * access control rules should be propagated to the index before others
@@ -153,7 +221,10 @@ public class IndexTask implements Serializable {
      * indicate "NEW", "IN_PROCESS", "COMPLETE", "FAILED"
      * 
      * The taskModifiedDate is updated when the status flag changes.
+     * 
+     * Stored as the smallint code of the matching IndexTaskStatus.
      */
+    @Type(type = "org.dataone.cn.index.task.IndexTaskStatusType")
     private String status;
 
     /**
@@ -191,6 +262,7 @@ public class IndexTask implements Serializable {
         this();
         if (smd.getIdentifier() != null) {
             this.pid = smd.getIdentifier().getValue();
+            this.shardKey = IndexTaskShardRange.shardKey(this.pid);
         }
         if (smd.getFormatId() != null) {
             this.formatId = smd.getFormatId().getValue();
@@ -199,64 +271,130 @@ public class IndexTask implements Serializable {
             this.dateSysMetaModified = smd.getDateSysMetadataModified().getTime();
         }
         this.marshalSystemMetadata(smd);
+        this.copySystemMetadataFlags(smd);
 
         this.setObjectPath(objectPath);
 
         this.priority = PRIORITY_NONE;
     }
 
+    /**
+     * Return the SystemMetadata instance represented by this task. The
+     * serialized system metadata is un-marshaled once and the result is reused
+     * by later calls (including isDeleteTask) until setSysMetadata is called.
+     * The returned instance is shared, callers should not modify it.
+     * 
+     * @return
+     */
     @Transient
     public SystemMetadata unMarshalSystemMetadata() {
-        InputStream is = new ByteArrayInputStream(this.sysMetadata.getBytes());
+        if (this.systemMetadata != null) {
+            return this.systemMetadata;
+        }
         SystemMetadata smd = null;
         try {
-            smd = TypeMarshaller.unmarshalTypeFromStream(SystemMetadata.class, is);
-        } catch (IOException e) {
-            logger.error(e.getMessage(), e);
-        } catch (InstantiationException e) {
-            logger.error(e.getMessage(), e);
-        } catch (IllegalAccessException e) {
-            logger.error(e.getMessage(), e);
+            String xml = payload.getSysMetadata();
+            byte[] compressed = payload.getSysMetadataCompressed();
+            if (xml == null && compressed != null) {
+                smd = SystemMetadataCodec.unmarshal(SystemMetadataCompression
+                        .openReader(compressed));
+            } else if (xml != null) {
+                smd = SystemMetadataCodec.unmarshal(xml);
+            }
         } catch (MarshallingException e) {
             logger.error(e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            // unknown or corrupt compressed form
+            logger.error("Unable to read the system metadata of index task " + id + ": "
+                    + e.getMessage(), e);
         }
+        this.systemMetadata = smd;
         return smd;
     }
 
     @Transient
     private void marshalSystemMetadata(SystemMetadata smd) {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        String xml = null;
         try {
-            TypeMarshaller.marshalTypeToOutputStream(smd, os);
+            xml = SystemMetadataCodec.marshal(smd);
         } catch (MarshallingException ex) {
             logger.error(ex.getMessage(), ex);
-        } catch (IOException ioEx) {
-            logger.error(ioEx.getMessage(), ioEx);
         }
-        try {
-            this.sysMetadata = os.toString("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            logger.error(e.getMessage());
+        storeSysMetadata(xml);
+    }
+
+    /**
+     * Store the serialized system metadata in the column selected by the
+     * storage mode, clearing the other column.
+     * 
+     * @param xml
+     */
+    private void storeSysMetadata(String xml) {
+        this.systemMetadata = null;
+        if (compressSysMetadata && xml != null) {
+            payload.setSysMetadataCompressed(SystemMetadataCompression.compress(xml));
+            payload.setSysMetadata(null);
+        } else {
+            payload.setSysMetadata(xml);
+            payload.setSysMetadataCompressed(null);
         }
     }
 
     /**
-     * Does this task represent an update for an archived document.
+     * Copy the system metadata values that are stored in their own columns.
      * 
-     * @return
+     * @param smd
      */
-    @Transient
-    private boolean isArchived() {
-        boolean archived = false;
-        SystemMetadata smd = unMarshalSystemMetadata();
-        if (smd.getArchived() != null && smd.getArchived().booleanValue()) {
-            archived = true;
+    private void copySystemMetadataFlags(SystemMetadata smd) {
+        this.archived = smd != null && smd.getArchived() != null
+                && smd.getArchived().booleanValue();
+        if (smd != null && smd.getObsoletedBy() != null) {
+            this.obsoletedBy = smd.getObsoletedBy().getValue();
+        } else {
+            this.obsoletedBy = null;
         }
-        return archived;
     }
 
     /**
-     * Does this task represent a removal from the search index.
+     * Fold a newer task for the same pid into this task. The payload (system
+     * metadata, object path and the values derived from them) is replaced
+     * only if the other task carries a more recent dateSysMetaModified, the
+     * higher of the two priorities (the lower value) is kept, and the position
+     * in the queue (taskModifiedDate) is not changed.
+     * 
+     * @param other
+     *            - a new task for the same pid
+     */
+    void coalesce(IndexTask other) {
+        if (other.dateSysMetaModified > this.dateSysMetaModified) {
+            this.formatId = other.formatId;
+            this.payload.setSysMetadata(other.payload.getSysMetadata());
+            this.payload.setSysMetadataCompressed(other.payload.getSysMetadataCompressed());
+            this.systemMetadata = null;
+            this.objectPath = other.objectPath;
+            this.dateSysMetaModified = other.dateSysMetaModified;
+            this.deleted = other.deleted;
+            this.archived = other.archived;
+            this.obsoletedBy = other.obsoletedBy;
+        }
+        this.priority = Math.min(this.priority, other.priority);
+    }
+
+    /**
+     * Signal the LocalIndexTaskArrivalChannel, after the commit, when a NEW
+     * task is inserted or updated.
+     */
+    @PostPersist
+    @PostUpdate
+    void notifyArrival() {
+        if (STATUS_NEW.equals(status)) {
+            LocalIndexTaskArrivalChannel.getInstance().notifyArrivalAfterCommit();
+        }
+    }
+
+    /**
+     * Does this task represent a removal from the search index. Decided from
+     * the deleted and archived columns, the system metadata is not parsed.
      * 
      * @return
      */
@@ -279,6 +417,11 @@ public class IndexTask implements Serializable {
 
     public void setPid(String pid) {
         this.pid = pid;
+        this.shardKey = IndexTaskShardRange.shardKey(pid);
+    }
+
+    public int getShardKey() {
+        return shardKey;
     }
 
     public boolean isDeleted() {
@@ -289,6 +432,27 @@ public class IndexTask implements Serializable {
         this.deleted = deleted;
     }
 
+    /**
+     * Does this task represent an update for an archived document.
+     * 
+     * @return
+     */
+    public boolean isArchived() {
+        return archived;
+    }
+
+    public void setArchived(boolean archived) {
+        this.archived = archived;
+    }
+
+    public String getObsoletedBy() {
+        return obsoletedBy;
+    }
+
+    public void setObsoletedBy(String obsoletedBy) {
+        this.obsoletedBy = obsoletedBy;
+    }
+
     public String getFormatId() {
         return formatId;
     }
@@ -297,12 +461,142 @@ public class IndexTask implements Serializable {
         this.formatId = formatid;
     }
 
+    /**
+     * Return the serialized system metadata, decompressing it when it is
+     * stored in the compressed form. Returns null, and logs the error, if the
+     * compressed form can not be read.
+     * 
+     * @return
+     */
     public String getSysMetadata() {
-        return sysMetadata;
+        String xml = payload.getSysMetadata();
+        byte[] compressed = payload.getSysMetadataCompressed();
+        if (xml == null && compressed != null) {
+            try {
+                return SystemMetadataCompression.decompress(compressed);
+            } catch (IllegalArgumentException e) {
+                logger.error("Unable to read the system metadata of index task " + id + ": "
+                        + e.getMessage(), e);
+                return null;
+            }
+        }
+        return xml;
     }
 
+    /**
+     * Replace the serialized system metadata, stored according to the current
+     * storage mode. The archived and obsoletedBy values are updated from the
+     * new system metadata.
+     * 
+     * @param sysMetadata
+     */
     public void setSysMetadata(String sysMetadata) {
-        this.sysMetadata = sysMetadata;
+        storeSysMetadata(sysMetadata);
+        if (sysMetadata != null) {
+            copySystemMetadataFlags(unMarshalSystemMetadata());
+        } else {
+            copySystemMetadataFlags(null);
+        }
+    }
+
+    /**
+     * Private method exposed due to JPA and unit testing requirements. Use
+     * getSysMetadata, which decompresses transparently.
+     * 
+     * @return
+     */
+    public byte[] getSysMetadataCompressed() {
+        return payload.getSysMetadataCompressed();
+    }
+
+    /**
+     * Private method exposed due to JPA and unit testing requirements. Use
+     * setSysMetadata.
+     * 
+     * @param sysMetadataCompressed
+     */
+    public void setSysMetadataCompressed(byte[] sysMetadataCompressed) {
+        payload.setSysMetadataCompressed(sysMetadataCompressed);
+        this.systemMetadata = null;
+    }
+
+    /**
+     * The payload entity, for the repository implementation.
+     * 
+     * @return
+     */
+    IndexTaskPayload getPayload() {
+        return payload;
+    }
+
+    /**
+     * Build the backoff policy from the configuration.
+     * dataone.indexing.task.backoff.policy selects 'ladder' (the default, see
+     * LadderBackoffPolicy) or 'exponential', which reads
+     * dataone.indexing.task.backoff.exponential.baseMillis (default 20
+     * minutes), .multiplier (default 4) and .maxMillis (default 7 days).
+     * dataone.indexing.task.backoff.jitter sets the jitter of either policy
+     * (default 0 for the ladder, 0.2 for exponential).
+     * 
+     * @return
+     */
+    static BackoffPolicy configuredBackoffPolicy() {
+        String policy = Settings.getConfiguration().getString(
+                "dataone.indexing.task.backoff.policy", "ladder");
+        if ("exponential".equalsIgnoreCase(policy)) {
+            return new ExponentialBackoffPolicy(Settings.getConfiguration().getLong(
+                    "dataone.indexing.task.backoff.exponential.baseMillis", 20 * 60 * 1000L),
+                    Settings.getConfiguration().getDouble(
+                            "dataone.indexing.task.backoff.exponential.multiplier", 4),
+                    Settings.getConfiguration().getLong(
+                            "dataone.indexing.task.backoff.exponential.maxMillis",
+                            7 * 24 * 60 * 60 * 1000L), Settings.getConfiguration().getDouble(
+                            "dataone.indexing.task.backoff.jitter", 0.2));
+        }
+        if (!"ladder".equalsIgnoreCase(policy)) {
+            logger.warn("Unknown dataone.indexing.task.backoff.policy " + policy
+                    + ", using the ladder.");
+        }
+        return new LadderBackoffPolicy(Settings.getConfiguration().getDouble(
+                "dataone.indexing.task.backoff.jitter", 0));
+    }
+
+    public static BackoffPolicy getBackoffPolicy() {
+        return backoffPolicy;
+    }
+
+    /**
+     * Set the backoff policy used by markNew, markFailed and the bulk status
+     * updates of IndexTaskRepository.
+     * 
+     * @param policy
+     */
+    public static void setBackoffPolicy(BackoffPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("The backoff policy may not be null.");
+        }
+        backoffPolicy = policy;
+    }
+
+    /**
+     * Is new system metadata stored in the compressed form. Configured by the
+     * dataone.indexing.task.sysmeta.compressed property, false by default.
+     * Tasks stored in either form can be read in both modes.
+     * 
+     * @return
+     */
+    public static boolean isCompressSysMetadata() {
+        return compressSysMetadata;
+    }
+
+    /**
+     * Select the storage form of new system metadata, overriding the
+     * dataone.indexing.task.sysmeta.compressed property.
+     * 
+     * @param compress
+     */
+    public static void setCompressSysMetadata(boolean compress) {
+        compressSysMetadata = compress;
     }
 
     public String getObjectPath() {
@@ -417,24 +711,10 @@ public class IndexTask implements Serializable {
     }
 
     private void setBackoffExectionTime() {
-        Calendar cal = Calendar.getInstance();
-        cal.setTimeInMillis(System.currentTimeMillis());
-        int tryCount = getTryCount();
-        if (tryCount == ALLOWED_RETRIES) {
-            cal.add(Calendar.MINUTE, 20);
-            setNextExection(cal.getTimeInMillis());
-        } else if (tryCount == ALLOWED_RETRIES + 1) {
-            cal.add(Calendar.HOUR, 2);
-            setNextExection(cal.getTimeInMillis());
-        } else if (tryCount == ALLOWED_RETRIES + 2) {
-            cal.add(Calendar.HOUR, 8);
-            setNextExection(cal.getTimeInMillis());
-        } else if (tryCount >= ALLOWED_RETRIES + 3 && tryCount <= ALLOWED_RETRIES + 5) {
-            cal.add(Calendar.HOUR, 24);
-            setNextExection(cal.getTimeInMillis());
-        } else if (tryCount > ALLOWED_RETRIES + 5) {
-            cal.add(Calendar.DATE, 7);
-            setNextExection(cal.getTimeInMillis());
+        long nextExecution = backoffPolicy.nextExecution(getTryCount(),
+                System.currentTimeMillis(), id);
+        if (nextExecution != BackoffPolicy.NO_BACKOFF) {
+            setNextExection(nextExecution);
         }
     }
 
@@ -477,7 +757,7 @@ public class IndexTask implements Serializable {
     public String toString() {
         return "IndexTask [id=" + id + ", pid=" + pid + ", formatid=" + formatId + ", objectPath="
                 + objectPath + ", dateSysMetaModified=" + dateSysMetaModified + ", deleted="
-                + deleted + ", taskModifiedDate=" + taskModifiedDate + ", priority=" + priority
+                + deleted + ", archived=" + archived + ", taskModifiedDate=" + taskModifiedDate + ", priority=" + priority
                 + ", status=" + status + "]";
     }
 
@@ -0,0 +1,44 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.util.List;
+
+/**
+ * Receives the tasks removed by IndexTaskPurger before they are deleted, so
+ * that they can be kept elsewhere (a file, an archive table, a log). If
+ * archive throws an exception the chunk is not deleted and the purge stops.
+ * 
+ */
+public interface IndexTaskArchiver {
+
+    /**
+     * Archive a chunk of tasks that is about to be deleted.
+     * 
+     * @param tasks
+     *            - the tasks of one purge chunk, oldest first.
+     * @throws Exception
+     *             if the tasks could not be archived.
+     */
+    void archive(List<IndexTask> tasks) throws Exception;
+}
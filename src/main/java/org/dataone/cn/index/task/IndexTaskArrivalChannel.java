@@ -0,0 +1,68 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells index workers that new tasks have been queued, so that a worker that
+ * found the queue empty can block until work arrives instead of polling the
+ * repository. Arrivals are counted in generations; a worker reads the
+ * generation before it looks at the queue and, if the queue is empty, waits
+ * for a later generation, so an arrival between the two is not missed:
+ * 
+ * <pre>
+ * long generation = channel.getGeneration();
+ * List&lt;IndexTask&gt; tasks = repository.claimNewTasks(maxTasks);
+ * if (tasks.isEmpty()) {
+ *     channel.awaitArrival(generation, 30, TimeUnit.SECONDS);
+ * }
+ * </pre>
+ * 
+ * Notifications are hints, a worker may be woken without finding work.
+ * 
+ * The indexTaskArrivalChannel bean is a PostgresIndexTaskArrivalChannel with
+ * the postgres datasource and a LocalIndexTaskArrivalChannel with the
+ * embedded H2 datasource.
+ * 
+ */
+public interface IndexTaskArrivalChannel {
+
+    /**
+     * @return the current arrival generation
+     */
+    long getGeneration();
+
+    /**
+     * Wait until tasks arrive after the given generation.
+     * 
+     * @param generation
+     *            - a value returned by getGeneration
+     * @param timeout
+     * @param unit
+     * @return true if tasks arrived, false if the timeout elapsed first
+     * @throws InterruptedException
+     */
+    boolean awaitArrival(long generation, long timeout, TimeUnit unit)
+            throws InterruptedException;
+}
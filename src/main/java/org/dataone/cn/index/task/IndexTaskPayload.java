@@ -0,0 +1,105 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+
+/**
+ * The serialized system metadata of an IndexTask, stored in the
+ * index_task_payload table that shares its primary key with index_task.
+ * Keeping the payload out of the index_task row means the frequent status
+ * updates of a task rewrite a narrow row only, and queue scans do not read
+ * the payload.
+ * 
+ * The payload is loaded lazily by IndexTask and is only accessed through it.
+ * Hibernate proxies this class, so the fields are only read and written
+ * through the accessors.
+ * 
+ */
+@Entity
+@Table(name = "index_task_payload")
+class IndexTaskPayload implements Serializable {
+
+    private static final long serialVersionUID = 3529570912465839014L;
+
+    /**
+     * The select clause of the IndexTaskRepository finders, which load the
+     * payload together with the tasks they return.
+     */
+    static final String SELECT_TASK_JPQL = "select t from IndexTask t join fetch t.payload";
+
+    /**
+     * The id of the task. Allocated here, when the payload is inserted ahead
+     * of its task, and taken over by the task.
+     */
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "index_task_payload_id")
+    @SequenceGenerator(name = "index_task_payload_id", sequenceName = "hibernate_sequence",
+            allocationSize = IndexTask.ID_ALLOCATION_SIZE)
+    private Long id;
+
+    /**
+     * Serialized version of the systemMetaData instance. Null when the system
+     * metadata is stored in sysMetadataCompressed.
+     */
+    @Column(columnDefinition = "TEXT")
+    private String sysMetadata;
+
+    /**
+     * Compressed serialized version of the systemMetaData instance, see
+     * IndexTask.setCompressSysMetadata and SystemMetadataCompression.
+     */
+    @Column(columnDefinition = "bytea")
+    private byte[] sysMetadataCompressed;
+
+    IndexTaskPayload() {
+    }
+
+    Long getId() {
+        return id;
+    }
+
+    String getSysMetadata() {
+        return sysMetadata;
+    }
+
+    void setSysMetadata(String sysMetadata) {
+        this.sysMetadata = sysMetadata;
+    }
+
+    byte[] getSysMetadataCompressed() {
+        return sysMetadataCompressed;
+    }
+
+    void setSysMetadataCompressed(byte[] sysMetadataCompressed) {
+        this.sysMetadataCompressed = sysMetadataCompressed;
+    }
+}
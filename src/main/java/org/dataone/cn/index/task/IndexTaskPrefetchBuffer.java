@@ -0,0 +1,269 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded local buffer of claimed tasks in front of IndexTaskRepository, for
+ * a pool of indexer threads in one JVM. A refill thread claims NEW tasks with
+ * claimNewTasks, as many as fit, whenever the buffer drops to the low
+ * watermark, so the database is visited about once per batch instead of once
+ * per task. Consumers take tasks by priority, then in the order they were
+ * claimed, from a ConcurrentSkipListMap; a Semaphore counts the buffered
+ * tasks, so consumers neither share a lock nor spin when the buffer is empty.
+ * The claim stamps the tasks' taskModifiedDate, so their queue position is
+ * taken from the order of the claimed batch rather than from the tasks.
+ * 
+ * When the queue is empty the refill thread waits on the
+ * IndexTaskArrivalChannel, if one is given, or for idleMillis otherwise. On
+ * shutdown the tasks still in the buffer are returned to the queue with
+ * releaseClaims.
+ * 
+ * Tasks in the buffer are claimed (IN PROCESS) in the database; keep the
+ * capacity to what the consumers will process in a short time, other workers
+ * can not take them.
+ * 
+ */
+public class IndexTaskPrefetchBuffer {
+
+    private static Logger logger = Logger.getLogger(IndexTaskPrefetchBuffer.class.getName());
+
+    private final IndexTaskRepository repository;
+    private final IndexTaskArrivalChannel arrivals;
+    private final int capacity;
+    private final int lowWatermark;
+    private long idleMillis = 5000;
+
+    private final ConcurrentSkipListMap<IndexTaskQueueKey, IndexTask> buffer =
+            new ConcurrentSkipListMap<IndexTaskQueueKey, IndexTask>();
+    private final Semaphore available = new Semaphore(0);
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLong claimedCount = new AtomicLong();
+    /** The claim sequence of the next buffered task, written by the refill thread. */
+    private long sequence = 0;
+    private final AtomicLong refillCount = new AtomicLong();
+
+    private volatile boolean running = false;
+    private volatile Thread refiller;
+
+    /**
+     * @param repository
+     * @param arrivals
+     *            - waited on when the queue is empty, may be null
+     * @param capacity
+     *            - the maximum number of buffered tasks
+     * @param lowWatermark
+     *            - the buffer is refilled when it holds this many tasks or
+     *            fewer, less than capacity
+     */
+    public IndexTaskPrefetchBuffer(IndexTaskRepository repository,
+            IndexTaskArrivalChannel arrivals, int capacity, int lowWatermark) {
+        if (capacity <= 0 || lowWatermark < 0 || lowWatermark >= capacity) {
+            throw new IllegalArgumentException("Invalid prefetch buffer capacity " + capacity
+                    + " and low watermark " + lowWatermark);
+        }
+        this.repository = repository;
+        this.arrivals = arrivals;
+        this.capacity = capacity;
+        this.lowWatermark = lowWatermark;
+    }
+
+    /**
+     * Start the refill thread.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        refiller = new Thread(new Runnable() {
+            public void run() {
+                refillLoop();
+            }
+        }, "index-task-prefetch");
+        refiller.setDaemon(true);
+        refiller.start();
+    }
+
+    /**
+     * Take the next task, waiting up to the timeout for one to be buffered.
+     * 
+     * @param timeout
+     * @param unit
+     * @return the task, or null if none was buffered in time or the buffer
+     *         was shut down
+     * @throws InterruptedException
+     */
+    public IndexTask poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!available.tryAcquire(timeout, unit)) {
+            return null;
+        }
+        Map.Entry<IndexTaskQueueKey, IndexTask> next = buffer.pollFirstEntry();
+        if (next == null) {
+            // drained by shutdown
+            return null;
+        }
+        if (size.decrementAndGet() <= lowWatermark) {
+            Thread thread = refiller;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+        return next.getValue();
+    }
+
+    /**
+     * Stop refilling and return the buffered tasks to the queue.
+     * 
+     * @return the number of claims returned
+     * @throws InterruptedException
+     */
+    public int shutdown() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = refiller;
+            refiller = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread.join();
+        }
+        List<Long> unconsumed = new ArrayList<Long>();
+        Map.Entry<IndexTaskQueueKey, IndexTask> entry = buffer.pollFirstEntry();
+        while (entry != null) {
+            unconsumed.add(entry.getValue().getId());
+            size.decrementAndGet();
+            entry = buffer.pollFirstEntry();
+        }
+        if (unconsumed.isEmpty()) {
+            return 0;
+        }
+        int released = repository.releaseClaims(unconsumed, System.currentTimeMillis());
+        logger.info("Returned " + released + " unprocessed index task claims to the queue.");
+        return released;
+    }
+
+    private void refillLoop() {
+        while (running) {
+            try {
+                int free = capacity - size.get();
+                if (capacity - free > lowWatermark) {
+                    // parked until a consumer takes the buffer to the watermark
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(idleMillis));
+                    if (Thread.interrupted()) {
+                        return;
+                    }
+                    continue;
+                }
+                long generation = arrivals == null ? 0 : arrivals.getGeneration();
+                List<IndexTask> claimed = repository.claimNewTasks(free);
+                refillCount.incrementAndGet();
+                if (!running) {
+                    buffer(claimed);
+                    return;
+                }
+                if (claimed.isEmpty()) {
+                    if (arrivals != null) {
+                        arrivals.awaitArrival(generation, idleMillis, TimeUnit.MILLISECONDS);
+                    } else {
+                        Thread.sleep(idleMillis);
+                    }
+                    continue;
+                }
+                buffer(claimed);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Unable to refill the index task prefetch buffer.", e);
+                try {
+                    Thread.sleep(idleMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+     * The claimed tasks are in queue order, and a later batch only holds
+     * tasks that were behind the earlier ones or arrived since, so within a
+     * priority the claim sequence stands in for the modified date the claim
+     * overwrote.
+     */
+    private void buffer(List<IndexTask> claimed) {
+        for (IndexTask task : claimed) {
+            buffer.put(new IndexTaskQueueKey(task.getPriority(), sequence++, task.getId()
+                    .longValue()), task);
+        }
+        size.addAndGet(claimed.size());
+        claimedCount.addAndGet(claimed.size());
+        available.release(claimed.size());
+    }
+
+    /**
+     * @return the number of buffered tasks
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of tasks claimed since the buffer was created
+     */
+    public long getClaimedCount() {
+        return claimedCount.get();
+    }
+
+    /**
+     * @return the number of claim round trips since the buffer was created
+     */
+    public long getRefillCount() {
+        return refillCount.get();
+    }
+
+    public long getIdleMillis() {
+        return idleMillis;
+    }
+
+    /**
+     * @param idleMillis
+     *            - the longest wait of the refill thread before it looks at
+     *            the queue again
+     */
+    public void setIdleMillis(long idleMillis) {
+        this.idleMillis = idleMillis;
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.dataone.cn.index.util.PerformanceLogger;
+import org.dataone.configuration.Settings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+/**
+ * Removes finished tasks from the index_task table so that the table holds
+ * mostly the live queue. COMPLETE tasks last modified longer ago than the
+ * complete retention window are deleted and, if a failed retention window is
+ * configured, so are FAILED tasks last modified longer ago than that window.
+ * 
+ * Tasks are deleted in chunks of at most chunkSize rows, each chunk in its own
+ * short transaction, oldest first. If an IndexTaskArchiver is set the tasks of
+ * a chunk are handed to it, oldest first, before the chunk is deleted.
+ * 
+ * Configured with the properties:
+ * dataone.indexing.task.purge.completeRetentionDays (default 7),
+ * dataone.indexing.task.purge.failedRetentionDays (default -1, failed tasks
+ * are kept) and dataone.indexing.task.purge.chunkSize (default 1000).
+ * 
+ */
+@Component
+public class IndexTaskPurger {
+
+    private static Logger logger = Logger.getLogger(IndexTaskPurger.class.getName());
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    @Autowired
+    private IndexTaskRepository repository;
+
+    @Autowired(required = false)
+    private IndexTaskArchiver archiver;
+
+    private int completeRetentionDays = Settings.getConfiguration().getInt(
+            "dataone.indexing.task.purge.completeRetentionDays", 7);
+
+    private int failedRetentionDays = Settings.getConfiguration().getInt(
+            "dataone.indexing.task.purge.failedRetentionDays", -1);
+
+    private int chunkSize = Settings.getConfiguration().getInt(
+            "dataone.indexing.task.purge.chunkSize", 1000);
+
+    private final AtomicLong purgedCount = new AtomicLong();
+    private final AtomicLong archivedCount = new AtomicLong();
+    private final AtomicLong purgeMillis = new AtomicLong();
+
+    /**
+     * Purge the COMPLETE tasks, and the FAILED tasks if enabled, that are older
+     * than their retention window.
+     * 
+     * @return the number of tasks deleted
+     * @throws Exception
+     *             if the archiver failed, the tasks deleted until then stay
+     *             deleted.
+     */
+    public long purge() throws Exception {
+        long now = System.currentTimeMillis();
+        long purged = 0;
+        if (completeRetentionDays >= 0) {
+            purged += purge(IndexTask.STATUS_COMPLETE, now - completeRetentionDays * DAY);
+        }
+        if (failedRetentionDays >= 0) {
+            purged += purge(IndexTask.STATUS_FAILED, now - failedRetentionDays * DAY);
+        }
+        return purged;
+    }
+
+    /**
+     * Purge the tasks with the given status that were last modified before the
+     * given time.
+     * 
+     * @param status
+     *            - a constant defined by the IndexTask class.
+     * @param before
+     *            - exclusive upper bound of the taskModifiedDate
+     * @return the number of tasks deleted
+     * @throws Exception
+     *             if the archiver failed
+     */
+    public long purge(String status, long before) throws Exception {
+        long start = System.currentTimeMillis();
+        long purged = 0;
+        PageRequest chunk = new PageRequest(0, chunkSize);
+        try {
+            List<Long> ids = repository.findIdsByStatusModifiedBefore(status, before, chunk);
+            while (!ids.isEmpty()) {
+                if (archiver != null) {
+                    List<IndexTask> tasks = repository.findByIdsOldestFirst(ids);
+                    archiver.archive(tasks);
+                    archivedCount.addAndGet(tasks.size());
+                }
+                int deleted = repository.deleteByIdsAndStatusModifiedBefore(ids, status, before);
+                purged += deleted;
+                purgedCount.addAndGet(deleted);
+                if (ids.size() < chunkSize) {
+                    break;
+                }
+                ids = repository.findIdsByStatusModifiedBefore(status, before, chunk);
+            }
+        } finally {
+            long elapsed = System.currentTimeMillis() - start;
+            purgeMillis.addAndGet(elapsed);
+            logger.info("Purged " + purged + " " + status + " tasks modified before " + before
+                    + " in " + elapsed + " ms.");
+            PerformanceLogger.getInstance().log("IndexTaskPurger.purge " + status, elapsed);
+        }
+        return purged;
+    }
+
+    /**
+     * @return the number of tasks deleted since this purger was created
+     */
+    public long getPurgedCount() {
+        return purgedCount.get();
+    }
+
+    /**
+     * @return the number of tasks handed to the archiver since this purger
+     *         was created
+     */
+    public long getArchivedCount() {
+        return archivedCount.get();
+    }
+
+    /**
+     * @return the time spent purging, in milliseconds, since this purger was
+     *         created
+     */
+    public long getPurgeMillis() {
+        return purgeMillis.get();
+    }
+
+    public IndexTaskArchiver getArchiver() {
+        return archiver;
+    }
+
+    public void setArchiver(IndexTaskArchiver archiver) {
+        this.archiver = archiver;
+    }
+
+    public int getCompleteRetentionDays() {
+        return completeRetentionDays;
+    }
+
+    /**
+     * @param completeRetentionDays
+     *            - days to keep COMPLETE tasks, a negative value keeps them
+     */
+    public void setCompleteRetentionDays(int completeRetentionDays) {
+        this.completeRetentionDays = completeRetentionDays;
+    }
+
+    public int getFailedRetentionDays() {
+        return failedRetentionDays;
+    }
+
+    /**
+     * @param failedRetentionDays
+     *            - days to keep FAILED tasks, a negative value keeps them
+     */
+    public void setFailedRetentionDays(int failedRetentionDays) {
+        this.failedRetentionDays = failedRetentionDays;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.springframework.data.domain.PageRequest;
+
+/**
+ * Iterates over the IndexTask queue for a status in (priority,
+ * taskModifiedDate, id) order, fetching at most fetchSize tasks from the
+ * repository at a time. Each page is located by the key of the last task of
+ * the previous page, so memory use stays bounded by the fetch size and the
+ * time to the first task does not depend on the size of the queue.
+ * 
+ * The iterator does not hold a database cursor or transaction open between
+ * pages. Tasks whose status changes while iterating are not returned again
+ * unless their key moves past the current position. The position is the
+ * queue key of the last task returned, taken when it is returned, so callers
+ * may change the tasks they receive (mark them in progress, change their
+ * priority) without moving the iterator.
+ * 
+ */
+public class IndexTaskQueueIterator implements Iterator<IndexTask> {
+
+    private static final int NO_TRY_COUNT_LIMIT = -1;
+
+    private final IndexTaskRepository repository;
+    private final String status;
+    private final int tryCount;
+    private final PageRequest pageRequest;
+
+    private List<IndexTask> page;
+    private int pageIndex = 0;
+    private IndexTaskQueueKey lastKey;
+    private boolean exhausted = false;
+
+    /**
+     * Iterate over all tasks with the given status.
+     * 
+     * @param repository
+     * @param status
+     *            - a constant defined by the IndexTask class.
+     * @param fetchSize
+     *            - maximum number of tasks fetched per query.
+     */
+    public IndexTaskQueueIterator(IndexTaskRepository repository, String status, int fetchSize) {
+        this(repository, status, NO_TRY_COUNT_LIMIT, fetchSize);
+    }
+
+    /**
+     * Iterate over the tasks with the given status that were tried fewer than
+     * tryCount times.
+     * 
+     * @param repository
+     * @param status
+     *            - a constant defined by the IndexTask class.
+     * @param tryCount
+     *            - exclusive upper bound of the task try count, or a negative
+     *            value for no limit.
+     * @param fetchSize
+     *            - maximum number of tasks fetched per query.
+     */
+    public IndexTaskQueueIterator(IndexTaskRepository repository, String status, int tryCount,
+            int fetchSize) {
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("fetchSize must be greater than 0: " + fetchSize);
+        }
+        this.repository = repository;
+        this.status = status;
+        this.tryCount = tryCount;
+        this.pageRequest = new PageRequest(0, fetchSize);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (page != null && pageIndex < page.size()) {
+            return true;
+        }
+        if (exhausted) {
+            return false;
+        }
+        fetchNextPage();
+        return pageIndex < page.size();
+    }
+
+    @Override
+    public IndexTask next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        IndexTask task = page.get(pageIndex++);
+        lastKey = IndexTaskQueueKey.of(task);
+        return task;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void fetchNextPage() {
+        if (lastKey == null) {
+            page = tryCount < 0 ? repository.findByStatusOrderByPriorityAscTaskModifiedDateAscIdAsc(
+                    status, pageRequest) : repository
+                    .findByStatusAndTryCountLessThanOrderByPriorityAscTaskModifiedDateAscIdAsc(
+                            status, tryCount, pageRequest);
+        } else if (tryCount < 0) {
+            page = repository.findQueuePageAfter(status, lastKey.getPriority(),
+                    lastKey.getTaskModifiedDate(), Long.valueOf(lastKey.getId()), pageRequest);
+        } else {
+            page = repository.findQueuePageAfterWithTryCountLessThan(status, tryCount,
+                    lastKey.getPriority(), lastKey.getTaskModifiedDate(),
+                    Long.valueOf(lastKey.getId()), pageRequest);
+        }
+        pageIndex = 0;
+        if (page.size() < pageRequest.getPageSize()) {
+            exhausted = true;
+        }
+    }
+}
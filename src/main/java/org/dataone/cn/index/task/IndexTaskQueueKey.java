@@ -0,0 +1,111 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.io.Serializable;
+
+/**
+ * The position of an IndexTask in the processing queue: tasks are processed in
+ * order of priority, then modified date, then id. This is the order used by
+ * the IndexTaskRepository queue finders and the key used for keyset
+ * pagination.
+ * 
+ */
+public final class IndexTaskQueueKey implements Comparable<IndexTaskQueueKey>, Serializable {
+
+    private static final long serialVersionUID = 2853164715290513917L;
+
+    private final int priority;
+    private final long taskModifiedDate;
+    private final long id;
+
+    public IndexTaskQueueKey(int priority, long taskModifiedDate, long id) {
+        this.priority = priority;
+        this.taskModifiedDate = taskModifiedDate;
+        this.id = id;
+    }
+
+    /**
+     * The queue key of a persisted IndexTask.
+     * 
+     * @param task
+     * @return
+     */
+    public static IndexTaskQueueKey of(IndexTask task) {
+        return new IndexTaskQueueKey(task.getPriority(), task.getTaskModifiedDate(), task.getId()
+                .longValue());
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getTaskModifiedDate() {
+        return taskModifiedDate;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public int compareTo(IndexTaskQueueKey other) {
+        if (priority != other.priority) {
+            return priority < other.priority ? -1 : 1;
+        }
+        if (taskModifiedDate != other.taskModifiedDate) {
+            return taskModifiedDate < other.taskModifiedDate ? -1 : 1;
+        }
+        if (id != other.id) {
+            return id < other.id ? -1 : 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof IndexTaskQueueKey)) {
+            return false;
+        }
+        IndexTaskQueueKey other = (IndexTaskQueueKey) obj;
+        return priority == other.priority && taskModifiedDate == other.taskModifiedDate
+                && id == other.id;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = priority;
+        result = 31 * result + (int) (taskModifiedDate ^ (taskModifiedDate >>> 32));
+        result = 31 * result + (int) (id ^ (id >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexTaskQueueKey [priority=" + priority + ", taskModifiedDate="
+                + taskModifiedDate + ", id=" + id + "]";
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable snapshot of the task queue: the number of tasks per status
+ * and priority, the oldest task of each status and the number of FAILED
+ * tasks that are due for retry. Built from the single grouped query
+ * IndexTaskRepository.findQueueStatistics instead of a count per status.
+ * 
+ */
+public final class IndexTaskQueueStatistics {
+
+    private final long takenAt;
+    private final Map<String, Map<Integer, Long>> counts;
+    private final Map<String, Long> oldestTaskModifiedDates;
+    private final long failedDueCount;
+    private final long total;
+
+    private IndexTaskQueueStatistics(long takenAt, Map<String, Map<Integer, Long>> counts,
+            Map<String, Long> oldestTaskModifiedDates, long failedDueCount, long total) {
+        this.takenAt = takenAt;
+        this.counts = counts;
+        this.oldestTaskModifiedDates = oldestTaskModifiedDates;
+        this.failedDueCount = failedDueCount;
+        this.total = total;
+    }
+
+    /**
+     * Query the repository for a new snapshot.
+     * 
+     * @param repository
+     * @return
+     */
+    public static IndexTaskQueueStatistics query(IndexTaskRepository repository) {
+        long now = System.currentTimeMillis();
+        return fromRows(now, repository.findQueueStatistics(now));
+    }
+
+    /**
+     * Build a snapshot from the rows of findQueueStatistics.
+     * 
+     * @param takenAt
+     *            - the time passed to findQueueStatistics
+     * @param rows
+     * @return
+     */
+    static IndexTaskQueueStatistics fromRows(long takenAt, List<Object[]> rows) {
+        Map<String, Map<Integer, Long>> counts = new HashMap<String, Map<Integer, Long>>();
+        Map<String, Long> oldest = new HashMap<String, Long>();
+        long failedDue = 0;
+        long total = 0;
+        for (Object[] row : rows) {
+            String status = (String) row[0];
+            Integer priority = Integer.valueOf(((Number) row[1]).intValue());
+            long count = ((Number) row[2]).longValue();
+            long minModified = ((Number) row[3]).longValue();
+            long due = row[4] == null ? 0 : ((Number) row[4]).longValue();
+
+            Map<Integer, Long> byPriority = counts.get(status);
+            if (byPriority == null) {
+                byPriority = new TreeMap<Integer, Long>();
+                counts.put(status, byPriority);
+            }
+            byPriority.put(priority, Long.valueOf(count));
+            Long previous = oldest.get(status);
+            if (previous == null || minModified < previous.longValue()) {
+                oldest.put(status, Long.valueOf(minModified));
+            }
+            if (IndexTask.STATUS_FAILED.equals(status)) {
+                failedDue += due;
+            }
+            total += count;
+        }
+        for (Map.Entry<String, Map<Integer, Long>> entry : counts.entrySet()) {
+            entry.setValue(Collections.unmodifiableMap(entry.getValue()));
+        }
+        return new IndexTaskQueueStatistics(takenAt, Collections.unmodifiableMap(counts),
+                Collections.unmodifiableMap(oldest), failedDue, total);
+    }
+
+    /**
+     * @return the time the snapshot was taken
+     */
+    public long getTakenAt() {
+        return takenAt;
+    }
+
+    /**
+     * @return the number of tasks in the table
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @param status
+     *            - a constant defined by the IndexTask class.
+     * @return the number of tasks with the status
+     */
+    public long getCount(String status) {
+        long count = 0;
+        for (Long priorityCount : getCountsByPriority(status).values()) {
+            count += priorityCount.longValue();
+        }
+        return count;
+    }
+
+    /**
+     * @param status
+     *            - a constant defined by the IndexTask class.
+     * @param priority
+     * @return the number of tasks with the status and priority
+     */
+    public long getCount(String status, int priority) {
+        Long count = getCountsByPriority(status).get(Integer.valueOf(priority));
+        return count == null ? 0 : count.longValue();
+    }
+
+    /**
+     * @param status
+     *            - a constant defined by the IndexTask class.
+     * @return the number of tasks with the status for each priority, ordered
+     *         by priority
+     */
+    public Map<Integer, Long> getCountsByPriority(String status) {
+        Map<Integer, Long> byPriority = counts.get(status);
+        if (byPriority == null) {
+            return Collections.emptyMap();
+        }
+        return byPriority;
+    }
+
+    /**
+     * @param status
+     *            - a constant defined by the IndexTask class.
+     * @return the taskModifiedDate of the oldest task with the status, or -1
+     *         if there is none
+     */
+    public long getOldestTaskModifiedDate(String status) {
+        Long oldest = oldestTaskModifiedDates.get(status);
+        return oldest == null ? -1 : oldest.longValue();
+    }
+
+    /**
+     * @param status
+     *            - a constant defined by the IndexTask class.
+     * @return the age in milliseconds, at the time the snapshot was taken, of
+     *         the oldest task with the status, or 0 if there is none
+     */
+    public long getOldestTaskAge(String status) {
+        Long oldest = oldestTaskModifiedDates.get(status);
+        return oldest == null ? 0 : Math.max(0, takenAt - oldest.longValue());
+    }
+
+    /**
+     * @return the number of FAILED tasks whose next execution time had passed
+     *         when the snapshot was taken
+     */
+    public long getFailedDueCount() {
+        return failedDueCount;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexTaskQueueStatistics [takenAt=" + takenAt + ", total=" + total + ", counts="
+                + counts + ", oldestTaskModifiedDates=" + oldestTaskModifiedDates
+                + ", failedDueCount=" + failedDueCount + "]";
+    }
+}
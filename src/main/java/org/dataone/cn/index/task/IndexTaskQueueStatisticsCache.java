@@ -0,0 +1,93 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import org.dataone.configuration.Settings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Serves IndexTaskQueueStatistics snapshots that are at most ttlMillis old, so
+ * that dashboards and backpressure checks polling the queue run the grouped
+ * statistics query at most once per interval between them. Callers that need
+ * current numbers use refresh.
+ * 
+ * The time to live is read from dataone.indexing.task.statistics.ttlMillis
+ * (default 5000).
+ * 
+ */
+@Component
+public class IndexTaskQueueStatisticsCache {
+
+    @Autowired
+    private IndexTaskRepository repository;
+
+    private long ttlMillis = Settings.getConfiguration().getLong(
+            "dataone.indexing.task.statistics.ttlMillis", 5000L);
+
+    private volatile IndexTaskQueueStatistics statistics;
+
+    private final Object refreshLock = new Object();
+
+    /**
+     * @return a snapshot taken at most ttlMillis ago
+     */
+    public IndexTaskQueueStatistics getStatistics() {
+        IndexTaskQueueStatistics current = statistics;
+        if (isFresh(current)) {
+            return current;
+        }
+        synchronized (refreshLock) {
+            // another thread may have refreshed while this one waited
+            current = statistics;
+            if (isFresh(current)) {
+                return current;
+            }
+            return refresh();
+        }
+    }
+
+    /**
+     * Query a new snapshot, regardless of the age of the cached one.
+     * 
+     * @return the new snapshot
+     */
+    public IndexTaskQueueStatistics refresh() {
+        IndexTaskQueueStatistics current = IndexTaskQueueStatistics.query(repository);
+        statistics = current;
+        return current;
+    }
+
+    private boolean isFresh(IndexTaskQueueStatistics current) {
+        return current != null
+                && System.currentTimeMillis() - current.getTakenAt() < ttlMillis;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+}
@@ -22,20 +22,69 @@
 
 package org.dataone.cn.index.task;
 
+import java.util.Collection;
 import java.util.List;
 
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
  * IndexTaskRepository is an extension of spring-data JpaRepository and
  * represents the DAO layer for IndexTask object.
  * 
+ * The finders that return IndexTask entities, findOne and the findAll
+ * methods fetch the task payload (the serialized system metadata) in the same
+ * query, and save returns tasks with their payload loaded, so the tasks can
+ * be used after the transaction ends. Only the summary finders leave the
+ * payload unread.
+ * 
  * @author sroseboo
  * 
  */
 @Transactional(readOnly = true)
-public interface IndexTaskRepository extends JpaRepository<IndexTask, Long> {
+public interface IndexTaskRepository extends JpaRepository<IndexTask, Long>,
+        IndexTaskRepositoryCustom {
+
+    /**
+     * Return the task with the given id together with its payload, or null.
+     * Implemented by IndexTaskRepositoryImpl.findOne.
+     */
+    @Override
+    IndexTask findOne(Long id);
+
+    /**
+     * The findAll and save methods below are implemented by
+     * IndexTaskRepositoryImpl, and return tasks with their payloads.
+     */
+    @Override
+    List<IndexTask> findAll();
+
+    @Override
+    List<IndexTask> findAll(Sort sort);
+
+    @Override
+    Page<IndexTask> findAll(Pageable pageable);
+
+    @Override
+    List<IndexTask> findAll(Iterable<Long> ids);
+
+    @Override
+    @Transactional
+    <S extends IndexTask> S save(S task);
+
+    @Override
+    @Transactional
+    <S extends IndexTask> List<S> save(Iterable<S> tasks);
+
+    @Override
+    @Transactional
+    IndexTask saveAndFlush(IndexTask task);
 
     /**
      * Return a List of IndexTask objects whose pid value matches the pid
@@ -44,7 +93,8 @@ public interface IndexTaskRepository extends JpaRepository<IndexTask, Long> {
      * @param pid
      * @return
      */
-    List<IndexTask> findByPid(String pid);
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.pid = :pid")
+    List<IndexTask> findByPid(@Param("pid") String pid);
 
     /**
      * Return a List of IndexTask objects whose pid and status values match the
@@ -55,7 +105,8 @@ public interface IndexTaskRepository extends JpaRepository<IndexTask, Long> {
      *            - a constant defined by the IndexTask class.
      * @return
      */
-    List<IndexTask> findByPidAndStatus(String pid, String status);
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.pid = :pid and t.status = :status")
+    List<IndexTask> findByPidAndStatus(@Param("pid") String pid, @Param("status") String status);
 
     /**
      * Return a List of IndexTasks that have a matching status and order the
@@ -64,13 +115,340 @@ public interface IndexTaskRepository extends JpaRepository<IndexTask, Long> {
      * @param status
      * @return
      */
-    List<IndexTask> findByStatusOrderByPriorityAscTaskModifiedDateAsc(String status);
-    
-    List<IndexTask> findByStatusAndTryCountLessThanOrderByPriorityAscTaskModifiedDateAsc(String status, int tryCount);
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.status = :status"
+            + " order by t.priority asc, t.taskModifiedDate asc")
+    List<IndexTask> findByStatusOrderByPriorityAscTaskModifiedDateAsc(
+            @Param("status") String status);
+
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.status = :status"
+            + " and t.tryCount < :tryCount order by t.priority asc, t.taskModifiedDate asc")
+    List<IndexTask> findByStatusAndTryCountLessThanOrderByPriorityAscTaskModifiedDateAsc(
+            @Param("status") String status, @Param("tryCount") int tryCount);
+
+    /**
+     * Return the first page of the task queue for the given status. The queue
+     * is ordered by priority, modified date and id so that the last task of a
+     * page can be used as the key for findQueuePageAfter. Only the page size
+     * of the pageable is used, its sort is ignored.
+     * 
+     * @param status
+     * @param pageable
+     *            - page size, use a first page request (page 0)
+     * @return
+     */
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.status = :status"
+            + " order by t.priority asc, t.taskModifiedDate asc, t.id asc")
+    List<IndexTask> findByStatusOrderByPriorityAscTaskModifiedDateAscIdAsc(
+            @Param("status") String status, Pageable pageable);
+
+    /**
+     * Return the page of the task queue for the given status that follows the
+     * task identified by the priority, taskModifiedDate and id values (keyset
+     * pagination). Unlike offset paging the cost of fetching a page does not
+     * grow with the position in the queue.
+     * 
+     * @param status
+     * @param priority
+     *            - priority of the last task of the previous page
+     * @param taskModifiedDate
+     *            - modified date of the last task of the previous page
+     * @param id
+     *            - id of the last task of the previous page
+     * @param pageable
+     *            - page size, use a first page request (page 0)
+     * @return
+     */
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.status = :status"
+            + " and (t.priority > :priority or (t.priority = :priority"
+            + " and (t.taskModifiedDate > :taskModifiedDate"
+            + " or (t.taskModifiedDate = :taskModifiedDate and t.id > :id))))"
+            + " order by t.priority asc, t.taskModifiedDate asc, t.id asc")
+    List<IndexTask> findQueuePageAfter(@Param("status") String status,
+            @Param("priority") int priority, @Param("taskModifiedDate") long taskModifiedDate,
+            @Param("id") Long id, Pageable pageable);
+
+    /**
+     * Return the first page of the task queue for the given status, limited to
+     * tasks with a shard key from fromShard (inclusive) to toShard
+     * (exclusive). Use the bounds of an IndexTaskShardRange, see
+     * IndexTaskShardRange.forWorker. See
+     * findByStatusOrderByPriorityAscTaskModifiedDateAscIdAsc.
+     * 
+     * @param status
+     * @param fromShard
+     * @param toShard
+     * @param pageable
+     *            - page size, use a first page request (page 0)
+     * @return
+     */
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.status = :status"
+            + " and t.shardKey >= :fromShard and t.shardKey < :toShard"
+            + " order by t.priority asc, t.taskModifiedDate asc, t.id asc")
+    List<IndexTask> findQueuePageInShards(@Param("status") String status,
+            @Param("fromShard") int fromShard, @Param("toShard") int toShard,
+            Pageable pageable);
 
-    List<IndexTask> findByStatusAndNextExecutionLessThan(String status, long time);
-    
-    List<IndexTask> findByStatusAndNextExecutionLessThanAndTryCountLessThan(String status, long time, int tryCount);
+    /**
+     * Return the page of the task queue, limited to tasks with a shard key
+     * from fromShard (inclusive) to toShard (exclusive), that follows the task
+     * identified by the priority, taskModifiedDate and id values. See
+     * findQueuePageAfter.
+     * 
+     * @param status
+     * @param fromShard
+     * @param toShard
+     * @param priority
+     * @param taskModifiedDate
+     * @param id
+     * @param pageable
+     * @return
+     */
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.status = :status"
+            + " and t.shardKey >= :fromShard and t.shardKey < :toShard"
+            + " and (t.priority > :priority or (t.priority = :priority"
+            + " and (t.taskModifiedDate > :taskModifiedDate"
+            + " or (t.taskModifiedDate = :taskModifiedDate and t.id > :id))))"
+            + " order by t.priority asc, t.taskModifiedDate asc, t.id asc")
+    List<IndexTask> findQueuePageAfterInShards(@Param("status") String status,
+            @Param("fromShard") int fromShard, @Param("toShard") int toShard,
+            @Param("priority") int priority, @Param("taskModifiedDate") long taskModifiedDate,
+            @Param("id") Long id, Pageable pageable);
+
+    /**
+     * Return the first page of the task queue for the given status, limited to
+     * tasks tried fewer than tryCount times. See
+     * findByStatusOrderByPriorityAscTaskModifiedDateAscIdAsc.
+     * 
+     * @param status
+     * @param tryCount
+     * @param pageable
+     * @return
+     */
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.status = :status"
+            + " and t.tryCount < :tryCount"
+            + " order by t.priority asc, t.taskModifiedDate asc, t.id asc")
+    List<IndexTask> findByStatusAndTryCountLessThanOrderByPriorityAscTaskModifiedDateAscIdAsc(
+            @Param("status") String status, @Param("tryCount") int tryCount, Pageable pageable);
+
+    /**
+     * Return the page of the task queue, limited to tasks tried fewer than
+     * tryCount times, that follows the task identified by the priority,
+     * taskModifiedDate and id values. See findQueuePageAfter.
+     * 
+     * @param status
+     * @param tryCount
+     * @param priority
+     * @param taskModifiedDate
+     * @param id
+     * @param pageable
+     * @return
+     */
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.status = :status"
+            + " and t.tryCount < :tryCount and (t.priority > :priority or (t.priority = :priority"
+            + " and (t.taskModifiedDate > :taskModifiedDate"
+            + " or (t.taskModifiedDate = :taskModifiedDate and t.id > :id))))"
+            + " order by t.priority asc, t.taskModifiedDate asc, t.id asc")
+    List<IndexTask> findQueuePageAfterWithTryCountLessThan(@Param("status") String status,
+            @Param("tryCount") int tryCount, @Param("priority") int priority,
+            @Param("taskModifiedDate") long taskModifiedDate, @Param("id") Long id,
+            Pageable pageable);
+
+    /**
+     * Return the id and nextExecution of the tasks with the given status,
+     * tried fewer than tryCount times, whose (nextExecution, id) follows the
+     * given key and whose nextExecution is at or before to, in
+     * (nextExecution, id) order. Used by IndexTaskRetryScheduler to load the
+     * retries coming due; pass the last row of a full page as the key of the
+     * next page.
+     * 
+     * @param status
+     *            - a constant defined by the IndexTask class.
+     * @param afterExecution
+     *            - nextExecution of the key, exclusive unless afterId allows
+     * @param afterId
+     *            - id of the key, Long.MAX_VALUE to start after every task
+     *            due at afterExecution
+     * @param to
+     *            - inclusive upper bound of the nextExecution
+     * @param tryCount
+     * @param pageable
+     *            - maximum number of rows, use a first page request (page 0)
+     * @return rows of (Long id, Long nextExecution)
+     */
+    @Query("select t.id, t.nextExecution from IndexTask t where t.status = :status"
+            + " and (t.nextExecution > :afterExecution"
+            + " or (t.nextExecution = :afterExecution and t.id > :afterId))"
+            + " and t.nextExecution <= :to and t.tryCount < :tryCount"
+            + " order by t.nextExecution asc, t.id asc")
+    List<Object[]> findRetrySchedule(@Param("status") String status,
+            @Param("afterExecution") long afterExecution, @Param("afterId") Long afterId,
+            @Param("to") long to, @Param("tryCount") int tryCount, Pageable pageable);
+
+    /**
+     * Return the id and nextExecution of the tasks with the given status,
+     * tried fewer than tryCount times, that were modified at or after since,
+     * whose (nextExecution, id) follows the given key and whose nextExecution
+     * is at or before to, in (nextExecution, id) order. Used by
+     * IndexTaskRetryScheduler to pick up tasks that failed after their part of
+     * the schedule was loaded. See findRetrySchedule for the paging.
+     * 
+     * @param status
+     *            - a constant defined by the IndexTask class.
+     * @param since
+     *            - inclusive lower bound of the taskModifiedDate
+     * @param afterExecution
+     * @param afterId
+     * @param to
+     *            - inclusive upper bound of the nextExecution
+     * @param tryCount
+     * @param pageable
+     *            - maximum number of rows, use a first page request (page 0)
+     * @return rows of (Long id, Long nextExecution)
+     */
+    @Query("select t.id, t.nextExecution from IndexTask t where t.status = :status"
+            + " and t.taskModifiedDate >= :since and (t.nextExecution > :afterExecution"
+            + " or (t.nextExecution = :afterExecution and t.id > :afterId))"
+            + " and t.nextExecution <= :to and t.tryCount < :tryCount"
+            + " order by t.nextExecution asc, t.id asc")
+    List<Object[]> findRetryScheduleModifiedSince(@Param("status") String status,
+            @Param("since") long since, @Param("afterExecution") long afterExecution,
+            @Param("afterId") Long afterId, @Param("to") long to,
+            @Param("tryCount") int tryCount, Pageable pageable);
+
+    /**
+     * Return the first page of the task queue for the given status as
+     * IndexTaskSummary projections, without the task payloads. See
+     * findByStatusOrderByPriorityAscTaskModifiedDateAscIdAsc.
+     * 
+     * @param status
+     * @param pageable
+     *            - page size, use a first page request (page 0)
+     * @return
+     */
+    @Query(IndexTaskSummary.SELECT_JPQL + " where t.status = :status"
+            + " order by t.priority asc, t.taskModifiedDate asc, t.id asc")
+    List<IndexTaskSummary> findQueueSummaryPage(@Param("status") String status,
+            Pageable pageable);
+
+    /**
+     * Return the page of the task queue for the given status that follows the
+     * task identified by the priority, taskModifiedDate and id values, as
+     * IndexTaskSummary projections. See findQueuePageAfter and
+     * IndexTaskSummary.getQueueKey.
+     * 
+     * @param status
+     * @param priority
+     * @param taskModifiedDate
+     * @param id
+     * @param pageable
+     *            - page size, use a first page request (page 0)
+     * @return
+     */
+    @Query(IndexTaskSummary.SELECT_JPQL + " where t.status = :status and (t.priority > :priority"
+            + " or (t.priority = :priority and (t.taskModifiedDate > :taskModifiedDate"
+            + " or (t.taskModifiedDate = :taskModifiedDate and t.id > :id))))"
+            + " order by t.priority asc, t.taskModifiedDate asc, t.id asc")
+    List<IndexTaskSummary> findQueueSummaryPageAfter(@Param("status") String status,
+            @Param("priority") int priority, @Param("taskModifiedDate") long taskModifiedDate,
+            @Param("id") Long id, Pageable pageable);
+
+    /**
+     * Return the tasks with the given status that are due (nextExecution
+     * before time) and were tried fewer than tryCount times, as
+     * IndexTaskSummary projections ordered by nextExecution. See
+     * findByStatusAndNextExecutionLessThanAndTryCountLessThan.
+     * 
+     * @param status
+     * @param time
+     * @param tryCount
+     * @param pageable
+     *            - maximum number of tasks, use a first page request (page 0)
+     * @return
+     */
+    @Query(IndexTaskSummary.SELECT_JPQL + " where t.status = :status"
+            + " and t.nextExecution < :time and t.tryCount < :tryCount"
+            + " order by t.nextExecution asc, t.id asc")
+    List<IndexTaskSummary> findDueSummaries(@Param("status") String status,
+            @Param("time") long time, @Param("tryCount") int tryCount, Pageable pageable);
+
+    /**
+     * Load the tasks, with their payloads, for a set of ids chosen from the
+     * summary finders, in one query. The tasks are returned in queue order;
+     * ids of tasks that no longer exist are ignored.
+     * 
+     * @param ids
+     *            - a non-empty collection of task ids
+     * @return
+     */
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.id in :ids"
+            + " order by t.priority asc, t.taskModifiedDate asc, t.id asc")
+    List<IndexTask> findByIdsInQueueOrder(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Load the tasks, with their payloads, for a set of ids, oldest first
+     * (by taskModifiedDate, then id). Used by IndexTaskPurger to hand a chunk
+     * to its IndexTaskArchiver; ids of tasks that no longer exist are ignored.
+     * 
+     * @param ids
+     *            - a non-empty collection of task ids
+     * @return
+     */
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.id in :ids"
+            + " order by t.taskModifiedDate asc, t.id asc")
+    List<IndexTask> findByIdsOldestFirst(@Param("ids") Collection<Long> ids);
+
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.status = :status"
+            + " and t.nextExecution < :time")
+    List<IndexTask> findByStatusAndNextExecutionLessThan(@Param("status") String status,
+            @Param("time") long time);
+
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.status = :status"
+            + " and t.nextExecution < :time and t.tryCount < :tryCount")
+    List<IndexTask> findByStatusAndNextExecutionLessThanAndTryCountLessThan(
+            @Param("status") String status, @Param("time") long time,
+            @Param("tryCount") int tryCount);
+
+    /**
+     * Return a List of IndexTask objects whose system metadata is obsoleted by
+     * the given pid.
+     * 
+     * @param obsoletedBy
+     * @return
+     */
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.obsoletedBy = :obsoletedBy")
+    List<IndexTask> findByObsoletedBy(@Param("obsoletedBy") String obsoletedBy);
+
+    /**
+     * Return a page of the tasks with the given status that represent a
+     * removal from the search index (deleted or archived, see
+     * IndexTask.isDeleteTask), in queue order. Selected on the deleted and
+     * archived columns, without reading the system metadata.
+     * 
+     * @param status
+     *            - a constant defined by the IndexTask class.
+     * @param pageable
+     *            - page size, use a first page request (page 0)
+     * @return
+     */
+    @Query(IndexTaskPayload.SELECT_TASK_JPQL + " where t.status = :status"
+            + " and (t.deleted = true or t.archived = true)"
+            + " order by t.priority asc, t.taskModifiedDate asc, t.id asc")
+    List<IndexTask> findDeleteTasksByStatus(@Param("status") String status, Pageable pageable);
+
+    /**
+     * Return the task counts of the queue grouped by status and priority, in
+     * one pass over the table. Each row holds the status, the priority, the
+     * number of tasks, the oldest taskModifiedDate and the number of tasks
+     * whose nextExecution is before the given time. Use
+     * IndexTaskQueueStatistics to read the rows.
+     * 
+     * @param now
+     * @return
+     */
+    @Query("select t.status, t.priority, count(t), min(t.taskModifiedDate),"
+            + " sum(case when t.nextExecution < :now then 1 else 0 end)"
+            + " from IndexTask t group by t.status, t.priority")
+    List<Object[]> findQueueStatistics(@Param("now") long now);
 
     /**
      * Returns a count of the number of {@link IndexTask}s in the repository,
@@ -78,4 +456,72 @@ public interface IndexTaskRepository extends JpaRepository<IndexTask, Long> {
      * @param status a constant defined by the IndexTask class.
      */
     Long countByStatus(String status);
+
+    /**
+     * Mark the tasks with the given ids IN PROCESS and count the try, in one
+     * update statement (see IndexTask.markInProgress). The version of each
+     * task is incremented, so copies of the tasks loaded before the update
+     * can no longer be saved.
+     * 
+     * @param ids
+     * @param now
+     *            - the new taskModifiedDate, usually System.currentTimeMillis()
+     * @return the number of tasks updated
+     */
+    @Modifying(clearAutomatically = true)
+    @Transactional
+    @Query("update IndexTask t set t.status = " + IndexTaskStatus.CODE_IN_PROCESS + ","
+            + " t.tryCount = t.tryCount + 1, t.taskModifiedDate = :now,"
+            + " t.version = t.version + 1 where t.id in :ids")
+    int markInProgress(@Param("ids") Collection<Long> ids, @Param("now") long now);
+
+    /**
+     * Return claimed tasks that were not processed to the queue, in one update
+     * statement: tasks with the given ids that are still IN PROCESS are set
+     * back to NEW and the try counted by the claim is taken back.
+     * 
+     * @param ids
+     * @param now
+     *            - the new taskModifiedDate, usually System.currentTimeMillis()
+     * @return the number of tasks updated
+     */
+    @Modifying(clearAutomatically = true)
+    @Transactional
+    @Query("update IndexTask t set t.status = " + IndexTaskStatus.CODE_NEW + ","
+            + " t.tryCount = t.tryCount - 1, t.taskModifiedDate = :now,"
+            + " t.version = t.version + 1 where t.id in :ids and t.status = "
+            + IndexTaskStatus.CODE_IN_PROCESS)
+    int releaseClaims(@Param("ids") Collection<Long> ids, @Param("now") long now);
+
+    /**
+     * Mark the tasks with the given ids COMPLETE, in one update statement.
+     * 
+     * @param ids
+     * @param now
+     *            - the new taskModifiedDate, usually System.currentTimeMillis()
+     * @return the number of tasks updated
+     */
+    @Modifying(clearAutomatically = true)
+    @Transactional
+    @Query("update IndexTask t set t.status = " + IndexTaskStatus.CODE_COMPLETE + ","
+            + " t.taskModifiedDate = :now, t.version = t.version + 1 where t.id in :ids")
+    int markComplete(@Param("ids") Collection<Long> ids, @Param("now") long now);
+
+    /**
+     * Return the ids of the tasks with the given status that were last
+     * modified before the given time, oldest first. Used to select the tasks
+     * to purge one chunk at a time.
+     * 
+     * @param status
+     *            - a constant defined by the IndexTask class.
+     * @param before
+     *            - exclusive upper bound of the taskModifiedDate
+     * @param pageable
+     *            - chunk size, use a first page request (page 0)
+     * @return
+     */
+    @Query("select t.id from IndexTask t where t.status = :status"
+            + " and t.taskModifiedDate < :before order by t.taskModifiedDate asc, t.id asc")
+    List<Long> findIdsByStatusModifiedBefore(@Param("status") String status,
+            @Param("before") long before, Pageable pageable);
 }
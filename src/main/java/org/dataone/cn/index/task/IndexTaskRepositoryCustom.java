@@ -0,0 +1,265 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * IndexTaskRepositoryCustom declares the IndexTaskRepository operations that
+ * can not be expressed as spring-data query methods. They are implemented by
+ * IndexTaskRepositoryImpl and exposed through IndexTaskRepository.
+ * 
+ */
+public interface IndexTaskRepositoryCustom {
+
+    /**
+     * Atomically claim up to maxTasks of the highest priority NEW tasks for
+     * processing. Claimed tasks are set to IN PROCESS and their try count is
+     * incremented as if markInProgress had been called on each of them.
+     * 
+     * On Postgres the tasks are selected and updated in a single statement
+     * that skips rows locked by other workers (FOR UPDATE SKIP LOCKED), so
+     * concurrent workers never claim the same task and never wait on each
+     * other. On other databases the rows are locked (FOR UPDATE) and updated
+     * within the same transaction.
+     * 
+     * @param maxTasks
+     *            - the maximum number of tasks to claim.
+     * @return the claimed tasks in queue order, that is by priority and the
+     *         modified date they had before the claim.
+     */
+    @Transactional
+    List<IndexTask> claimNewTasks(int maxTasks);
+
+    /**
+     * Atomically claim up to maxTasks of the highest priority NEW tasks that
+     * were tried fewer than tryCount times. See claimNewTasks.
+     * 
+     * @param maxTasks
+     *            - the maximum number of tasks to claim.
+     * @param tryCount
+     *            - exclusive upper bound of the try count of claimed tasks.
+     * @return the claimed tasks in queue order, that is by priority and the
+     *         modified date they had before the claim.
+     */
+    @Transactional
+    List<IndexTask> claimNewTasksWithTryCountLessThan(int maxTasks, int tryCount);
+
+    /**
+     * Atomically claim up to maxTasks of the highest priority NEW tasks whose
+     * shard key is in the given range. See claimNewTasks. When each indexing
+     * worker claims from its own range (IndexTaskShardRange.forWorker) the
+     * workers do not contend for rows, and all the tasks of a pid are claimed
+     * by the same worker.
+     * 
+     * @param maxTasks
+     *            - the maximum number of tasks to claim.
+     * @param shards
+     *            - the shard keys of the tasks to claim.
+     * @return the claimed tasks in queue order, that is by priority and the
+     *         modified date they had before the claim.
+     */
+    @Transactional
+    List<IndexTask> claimNewTasksInShards(int maxTasks, IndexTaskShardRange shards);
+
+    /**
+     * Atomically claim the tasks with the given ids that are still FAILED, due
+     * at now and tried fewer than tryCount times, for a retry. Claimed tasks
+     * are set to IN PROCESS and their try count is incremented, as in
+     * claimNewTasks; tasks claimed or changed by another worker are left out.
+     * Used by IndexTaskRetryScheduler to hand out the retries it releases.
+     * 
+     * On Postgres the tasks are updated in a single statement that skips rows
+     * locked by other workers. On other databases the rows are locked (FOR
+     * UPDATE) and updated within the same transaction.
+     * 
+     * @param ids
+     * @param tryCount
+     *            - exclusive upper bound of the try count of claimed tasks, a
+     *            negative value for no limit
+     * @param now
+     *            - inclusive upper bound of the nextExecution
+     * @return the claimed tasks ordered by priority and modified date.
+     */
+    @Transactional
+    List<IndexTask> claimDueRetries(Collection<Long> ids, int tryCount, long now);
+
+    /**
+     * Insert new tasks in bulk. Tasks are persisted in the order given, sent
+     * to the database as JDBC batches of datasource.batchSize inserts, and
+     * the persistence context is flushed and cleared after every batch so
+     * memory use does not grow with the number of tasks. All tasks are
+     * inserted in one transaction.
+     * 
+     * The tasks must be new (without an id). They are detached when the method
+     * returns, with their ids assigned. Any other entities managed by an
+     * enclosing transaction are detached as well.
+     * 
+     * @param tasks
+     * @return the number of tasks inserted
+     */
+    @Transactional
+    int enqueueAll(Iterable<IndexTask> tasks);
+
+    /**
+     * Enqueue a new task, or fold it into the task already waiting for the
+     * same pid. If a NEW task exists for the pid of the given task, that task
+     * takes the payload of the given task when the given task has a more
+     * recent dateSysMetaModified, and takes the higher of the two priorities
+     * (the lower value, see IndexTask.coalesce); its place in the queue is kept. Otherwise the
+     * given task is inserted. Tasks that are IN PROCESS are never merged into.
+     * 
+     * On Postgres the merge or insert is a single statement, preceded by a
+     * transaction scoped advisory lock on the pid so that concurrent producers
+     * for one pid are serialized. On other databases the waiting task is read
+     * with a row lock and updated through the entity.
+     * 
+     * @param task
+     *            - a new task (without an id)
+     * @return the inserted or updated task
+     */
+    @Transactional
+    IndexTask enqueueOrMerge(IndexTask task);
+
+    /**
+     * Return the tasks with the given ids to the queue, in one update
+     * statement. As in IndexTask.markNew, tasks that have been tried
+     * ALLOWED_RETRIES times or more are marked FAILED instead and their next
+     * execution is set by the current BackoffPolicy. The version of each task
+     * is incremented.
+     * 
+     * @param ids
+     * @param now
+     *            - the new taskModifiedDate, usually System.currentTimeMillis()
+     * @return the number of tasks updated
+     */
+    @Transactional
+    int markNew(Collection<Long> ids, long now);
+
+    /**
+     * Mark the tasks with the given ids FAILED, in one update statement. As in
+     * IndexTask.markFailed, the next execution of tasks that have been tried
+     * ALLOWED_RETRIES times or more is set by the current BackoffPolicy. The
+     * version of each task is incremented.
+     * 
+     * @param ids
+     * @param now
+     *            - the new taskModifiedDate, usually System.currentTimeMillis()
+     * @return the number of tasks updated
+     */
+    @Transactional
+    int markFailed(Collection<Long> ids, long now);
+
+    /**
+     * Return the task with the given id together with its payload, or null.
+     * Replaces the inherited JpaRepository.findOne, which would leave the
+     * payload to be loaded lazily.
+     * 
+     * @param id
+     * @return
+     */
+    IndexTask findOne(Long id);
+
+    /**
+     * Return all the tasks with their payloads. Replaces the inherited
+     * JpaRepository.findAll, which would leave the payload to be loaded
+     * lazily.
+     * 
+     * @return
+     */
+    List<IndexTask> findAll();
+
+    /**
+     * Return all the tasks with their payloads, in the given order.
+     * 
+     * @param sort
+     * @return
+     */
+    List<IndexTask> findAll(Sort sort);
+
+    /**
+     * Return a page of the tasks with their payloads.
+     * 
+     * @param pageable
+     * @return
+     */
+    Page<IndexTask> findAll(Pageable pageable);
+
+    /**
+     * Return the tasks with the given ids with their payloads.
+     * 
+     * @param ids
+     * @return
+     */
+    List<IndexTask> findAll(Iterable<Long> ids);
+
+    /**
+     * Save the task. A new task is persisted and returned; an existing task is
+     * merged, and the returned copy has its payload loaded.
+     * 
+     * @param task
+     * @return the saved task
+     */
+    @Transactional
+    <S extends IndexTask> S save(S task);
+
+    /**
+     * Save each of the tasks, see save(IndexTask).
+     * 
+     * @param tasks
+     * @return the saved tasks
+     */
+    @Transactional
+    <S extends IndexTask> List<S> save(Iterable<S> tasks);
+
+    /**
+     * Save the task, see save(IndexTask), and flush the changes.
+     * 
+     * @param task
+     * @return the saved task
+     */
+    @Transactional
+    IndexTask saveAndFlush(IndexTask task);
+
+    /**
+     * Delete the tasks with the given ids, in one statement, that still have
+     * the given status and were last modified before the given time. Tasks
+     * that changed since their ids were selected are left alone. The payloads
+     * of the deleted tasks are deleted as well.
+     * 
+     * @param ids
+     * @param status
+     *            - a constant defined by the IndexTask class.
+     * @param before
+     *            - exclusive upper bound of the taskModifiedDate
+     * @return the number of tasks deleted
+     */
+    @Transactional
+    int deleteByIdsAndStatusModifiedBefore(Collection<Long> ids, String status, long before);
+}
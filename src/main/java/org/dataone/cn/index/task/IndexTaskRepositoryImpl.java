@@ -0,0 +1,564 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Hibernate;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.dialect.PostgreSQLDialect;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.type.StandardBasicTypes;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.repository.query.QueryUtils;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Implementation of the IndexTaskRepositoryCustom operations. Located by
+ * spring-data through the 'Impl' naming convention and combined with the
+ * generated IndexTaskRepository implementation.
+ * 
+ */
+public class IndexTaskRepositoryImpl implements IndexTaskRepositoryCustom {
+
+    private static Logger logger = Logger.getLogger(IndexTaskRepositoryImpl.class.getName());
+
+    private static final int NO_TRY_COUNT_LIMIT = -1;
+
+    private static final String POSTGRES_CLAIM_SQL = "UPDATE index_task t"
+            + " SET status = :inProcess, tryCount = t.tryCount + 1, version = t.version + 1,"
+            + " taskModifiedDate = :now FROM (SELECT id, taskModifiedDate FROM index_task"
+            + " WHERE status = :newStatus AND tryCount < :tryCount"
+            + " AND shardKey >= :fromShard AND shardKey < :toShard"
+            + " ORDER BY priority, taskModifiedDate, id LIMIT :maxTasks FOR UPDATE SKIP LOCKED) c"
+            + " WHERE t.id = c.id RETURNING t.id, c.taskModifiedDate AS queuedDate";
+
+    private static final String POSTGRES_CLAIM_RETRIES_SQL = "UPDATE index_task"
+            + " SET status = :inProcess, tryCount = tryCount + 1, version = version + 1,"
+            + " taskModifiedDate = :now WHERE id IN (SELECT id FROM index_task"
+            + " WHERE id IN (:ids) AND status = :failed AND nextExecution <= :now"
+            + " AND tryCount < :tryCount FOR UPDATE SKIP LOCKED) RETURNING id";
+
+    private static final String POSTGRES_PID_LOCK_SQL = "SELECT pg_advisory_xact_lock(hashtext(:pid))";
+
+    private static final String POSTGRES_MERGE_SQL = "WITH existing AS ("
+            + " SELECT id, :dateSysMetaModified > dateSysMetaModified AS newer FROM index_task"
+            + " WHERE pid = :pid AND status = :newStatus ORDER BY id LIMIT 1 FOR UPDATE),"
+            + " updated AS (UPDATE index_task t SET"
+            + " formatId = CASE WHEN e.newer THEN :formatId ELSE t.formatId END,"
+            + " objectPath = CASE WHEN e.newer THEN :objectPath ELSE t.objectPath END,"
+            + " dateSysMetaModified = CASE WHEN e.newer THEN :dateSysMetaModified"
+            + " ELSE t.dateSysMetaModified END,"
+            + " deleted = CASE WHEN e.newer THEN :deleted ELSE t.deleted END,"
+            + " archived = CASE WHEN e.newer THEN :archived ELSE t.archived END,"
+            + " obsoletedBy = CASE WHEN e.newer THEN :obsoletedBy ELSE t.obsoletedBy END,"
+            + " priority = LEAST(t.priority, :priority), version = t.version + 1"
+            + " FROM existing e WHERE t.id = e.id RETURNING t.id),"
+            + " updated_payload AS (UPDATE index_task_payload p SET sysMetadata = :sysMetadata,"
+            + " sysMetadataCompressed = :sysMetadataCompressed"
+            + " FROM existing e WHERE p.id = e.id AND e.newer),"
+            + " inserted_payload AS (INSERT INTO index_task_payload"
+            + " (id, sysMetadata, sysMetadataCompressed)"
+            + " SELECT :id, :sysMetadata, :sysMetadataCompressed"
+            + " WHERE NOT EXISTS (SELECT 1 FROM existing)),"
+            + " inserted AS (INSERT INTO index_task (id, version, pid, shardKey, formatId,"
+            + " objectPath, dateSysMetaModified, taskModifiedDate, nextExecution, tryCount,"
+            + " deleted, archived, obsoletedBy, priority, status)"
+            + " SELECT :id, 0, :pid, :shardKey, :formatId, :objectPath, :dateSysMetaModified,"
+            + " :taskModifiedDate, :nextExecution, :tryCount, :deleted, :archived,"
+            + " :obsoletedBy, :priority, :status"
+            + " WHERE NOT EXISTS (SELECT 1 FROM existing) RETURNING id)"
+            + " SELECT id FROM updated UNION ALL SELECT id FROM inserted";
+
+    private static final String FIND_NEW_BY_PID_JPQL = IndexTaskPayload.SELECT_TASK_JPQL
+            + " where t.pid = :pid and t.status = :newStatus order by t.id asc";
+
+    private static final String FIND_BY_ID_JPQL = IndexTaskPayload.SELECT_TASK_JPQL
+            + " where t.id = :id";
+
+    private static final String FIND_ALL_BY_IDS_JPQL = IndexTaskPayload.SELECT_TASK_JPQL
+            + " where t.id in :ids";
+
+    private static final String COUNT_JPQL = "select count(t) from IndexTask t";
+
+    private static final String FIND_BY_IDS_JPQL = IndexTaskPayload.SELECT_TASK_JPQL
+            + " where t.id in :ids order by t.priority asc, t.taskModifiedDate asc, t.id asc";
+
+    private static final String MARK_NEW_JPQL = "update IndexTask t set t.status ="
+            + " case when t.tryCount >= " + IndexTask.ALLOWED_RETRIES + " then "
+            + IndexTaskStatus.CODE_FAILED + " else " + IndexTaskStatus.CODE_NEW + " end,"
+            + " t.nextExecution = %s, t.taskModifiedDate = :now, t.version = t.version + 1"
+            + " where t.id in :ids";
+
+    private static final String MARK_FAILED_JPQL = "update IndexTask t set t.status = "
+            + IndexTaskStatus.CODE_FAILED + ", t.nextExecution = %s,"
+            + " t.taskModifiedDate = :now, t.version = t.version + 1 where t.id in :ids";
+
+    private static final String DELETE_JPQL = "delete from IndexTask t where t.id in :ids"
+            + " and t.status = :status and t.taskModifiedDate < :before";
+
+    private static final String FIND_EXISTING_IDS_JPQL = "select t.id from IndexTask t"
+            + " where t.id in :ids";
+
+    private static final String DELETE_PAYLOADS_JPQL = "delete from IndexTaskPayload p"
+            + " where p.id in :ids";
+
+    private static final String CLAIM_JPQL = IndexTaskPayload.SELECT_TASK_JPQL
+            + " where t.status = :newStatus and t.tryCount < :tryCount"
+            + " and t.shardKey >= :fromShard and t.shardKey < :toShard"
+            + " order by t.priority asc, t.taskModifiedDate asc, t.id asc";
+
+    private static final String CLAIM_RETRIES_JPQL = IndexTaskPayload.SELECT_TASK_JPQL
+            + " where t.id in :ids and t.status = :failed and t.nextExecution <= :now"
+            + " and t.tryCount < :tryCount"
+            + " order by t.priority asc, t.taskModifiedDate asc, t.id asc";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${datasource.batchSize:50}")
+    private int batchSize = 50;
+
+    private Boolean postgres;
+
+    @Override
+    @Transactional
+    public List<IndexTask> claimNewTasks(int maxTasks) {
+        return claim(maxTasks, NO_TRY_COUNT_LIMIT, IndexTaskShardRange.ALL);
+    }
+
+    @Override
+    @Transactional
+    public List<IndexTask> claimNewTasksWithTryCountLessThan(int maxTasks, int tryCount) {
+        return claim(maxTasks, tryCount, IndexTaskShardRange.ALL);
+    }
+
+    @Override
+    @Transactional
+    public List<IndexTask> claimNewTasksInShards(int maxTasks, IndexTaskShardRange shards) {
+        return claim(maxTasks, NO_TRY_COUNT_LIMIT, shards);
+    }
+
+    @Override
+    @Transactional
+    @SuppressWarnings("unchecked")
+    public List<IndexTask> claimDueRetries(Collection<Long> ids, int tryCount, long now) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int tryCountLimit = tryCount < 0 ? Integer.MAX_VALUE : tryCount;
+        List<IndexTask> claimed;
+        if (isPostgres()) {
+            SQLQuery query = getSession().createSQLQuery(POSTGRES_CLAIM_RETRIES_SQL);
+            query.addScalar("id", StandardBasicTypes.LONG);
+            query.addSynchronizedEntityClass(IndexTask.class);
+            query.setParameter("inProcess", IndexTaskStatus.IN_PROCESS.getCode(),
+                    StandardBasicTypes.SHORT);
+            query.setParameter("failed", IndexTaskStatus.FAILED.getCode(),
+                    StandardBasicTypes.SHORT);
+            query.setParameter("now", now, StandardBasicTypes.LONG);
+            query.setParameter("tryCount", tryCountLimit, StandardBasicTypes.INTEGER);
+            query.setParameterList("ids", ids, StandardBasicTypes.LONG);
+            List<Long> claimedIds = query.list();
+            if (claimedIds.isEmpty()) {
+                return Collections.emptyList();
+            }
+            claimed = entityManager.createQuery(FIND_BY_IDS_JPQL, IndexTask.class)
+                    .setParameter("ids", claimedIds).getResultList();
+        } else {
+            TypedQuery<IndexTask> query = entityManager.createQuery(CLAIM_RETRIES_JPQL,
+                    IndexTask.class);
+            query.setParameter("ids", ids);
+            query.setParameter("failed", IndexTask.STATUS_FAILED);
+            query.setParameter("now", now);
+            query.setParameter("tryCount", tryCountLimit);
+            query.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+            claimed = query.getResultList();
+            for (IndexTask task : claimed) {
+                task.markInProgress();
+            }
+            entityManager.flush();
+        }
+        initializePayloads(claimed);
+        logger.debug("Claimed " + claimed.size() + " of " + ids.size() + " due retries.");
+        return claimed;
+    }
+
+    @Override
+    @Transactional
+    public int enqueueAll(Iterable<IndexTask> tasks) {
+        int count = 0;
+        for (IndexTask task : tasks) {
+            entityManager.persist(task);
+            count++;
+            if (count % batchSize == 0) {
+                entityManager.flush();
+                entityManager.clear();
+            }
+        }
+        entityManager.flush();
+        entityManager.clear();
+        logger.debug("Enqueued " + count + " index tasks.");
+        return count;
+    }
+
+    @Override
+    @Transactional
+    public IndexTask enqueueOrMerge(IndexTask task) {
+        if (isPostgres()) {
+            return mergeWithUpsert(task);
+        }
+        return mergeWithRowLock(task);
+    }
+
+    private IndexTask mergeWithUpsert(IndexTask task) {
+        Session session = getSession();
+        session.createSQLQuery(POSTGRES_PID_LOCK_SQL).setParameter("pid", task.getPid(),
+                StandardBasicTypes.STRING).list();
+
+        SessionFactoryImplementor sessionFactory = getSessionFactory();
+        // the payload row allocates the id shared with its task
+        Serializable newId = sessionFactory.getIdentifierGenerator(
+                IndexTaskPayload.class.getName()).generate((SessionImplementor) session,
+                task.getPayload());
+
+        SQLQuery query = session.createSQLQuery(POSTGRES_MERGE_SQL);
+        query.addScalar("id", StandardBasicTypes.LONG);
+        query.addSynchronizedEntityClass(IndexTask.class);
+        query.setParameter("newStatus", IndexTaskStatus.NEW.getCode(), StandardBasicTypes.SHORT);
+        query.setParameter("id", newId, StandardBasicTypes.LONG);
+        query.setParameter("pid", task.getPid(), StandardBasicTypes.STRING);
+        query.setParameter("shardKey", task.getShardKey(), StandardBasicTypes.INTEGER);
+        query.setParameter("formatId", task.getFormatId(), StandardBasicTypes.STRING);
+        query.setParameter("sysMetadata", task.getSysMetadataCompressed() == null ? task
+                .getSysMetadata() : null, StandardBasicTypes.STRING);
+        query.setParameter("sysMetadataCompressed", task.getSysMetadataCompressed(),
+                StandardBasicTypes.BINARY);
+        query.setParameter("objectPath", task.getObjectPath(), StandardBasicTypes.STRING);
+        query.setParameter("dateSysMetaModified", task.getDateSysMetaModified(),
+                StandardBasicTypes.LONG);
+        query.setParameter("taskModifiedDate", task.getTaskModifiedDate(),
+                StandardBasicTypes.LONG);
+        query.setParameter("nextExecution", task.getNextExecution(), StandardBasicTypes.LONG);
+        query.setParameter("tryCount", task.getTryCount(), StandardBasicTypes.INTEGER);
+        query.setParameter("deleted", task.isDeleted(), StandardBasicTypes.BOOLEAN);
+        query.setParameter("archived", task.isArchived(), StandardBasicTypes.BOOLEAN);
+        query.setParameter("obsoletedBy", task.getObsoletedBy(), StandardBasicTypes.STRING);
+        query.setParameter("priority", task.getPriority(), StandardBasicTypes.INTEGER);
+        query.setParameter("status", IndexTaskStatus.fromValue(task.getStatus()).getCode(),
+                StandardBasicTypes.SHORT);
+        Long id = (Long) query.uniqueResult();
+        // the statement bypasses the entity callbacks
+        LocalIndexTaskArrivalChannel.getInstance().notifyArrivalAfterCommit();
+
+        IndexTask merged = entityManager.find(IndexTask.class, id);
+        entityManager.refresh(merged);
+        initializePayloads(Collections.singletonList(merged));
+        return merged;
+    }
+
+    private IndexTask mergeWithRowLock(IndexTask task) {
+        List<IndexTask> waiting = entityManager
+                .createQuery(FIND_NEW_BY_PID_JPQL, IndexTask.class)
+                .setParameter("pid", task.getPid())
+                .setParameter("newStatus", IndexTask.STATUS_NEW).setMaxResults(1)
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE).getResultList();
+        if (waiting.isEmpty()) {
+            entityManager.persist(task);
+            return task;
+        }
+        IndexTask merged = waiting.get(0);
+        merged.coalesce(task);
+        entityManager.flush();
+        return merged;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public IndexTask findOne(Long id) {
+        List<IndexTask> found = entityManager.createQuery(FIND_BY_ID_JPQL, IndexTask.class)
+                .setParameter("id", id).getResultList();
+        if (found.isEmpty()) {
+            return null;
+        }
+        initializePayloads(found);
+        return found.get(0);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<IndexTask> findAll() {
+        return findAll((Sort) null);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<IndexTask> findAll(Sort sort) {
+        List<IndexTask> found = entityManager.createQuery(
+                QueryUtils.applySorting(IndexTaskPayload.SELECT_TASK_JPQL, sort, "t"),
+                IndexTask.class).getResultList();
+        initializePayloads(found);
+        return found;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public Page<IndexTask> findAll(Pageable pageable) {
+        if (pageable == null) {
+            return new PageImpl<IndexTask>(findAll());
+        }
+        long total = entityManager.createQuery(COUNT_JPQL, Long.class).getSingleResult()
+                .longValue();
+        List<IndexTask> found = Collections.emptyList();
+        if (pageable.getOffset() < total) {
+            found = entityManager
+                    .createQuery(
+                            QueryUtils.applySorting(IndexTaskPayload.SELECT_TASK_JPQL,
+                                    pageable.getSort(), "t"), IndexTask.class)
+                    .setFirstResult(pageable.getOffset())
+                    .setMaxResults(pageable.getPageSize()).getResultList();
+            initializePayloads(found);
+        }
+        return new PageImpl<IndexTask>(found, pageable, total);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<IndexTask> findAll(Iterable<Long> ids) {
+        List<Long> idList = new ArrayList<Long>();
+        if (ids != null) {
+            for (Long id : ids) {
+                idList.add(id);
+            }
+        }
+        if (idList.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<IndexTask> found = entityManager.createQuery(FIND_ALL_BY_IDS_JPQL, IndexTask.class)
+                .setParameter("ids", idList).getResultList();
+        initializePayloads(found);
+        return found;
+    }
+
+    @Override
+    @Transactional
+    public <S extends IndexTask> S save(S task) {
+        if (task.getId() == null) {
+            entityManager.persist(task);
+            return task;
+        }
+        S merged = entityManager.merge(task);
+        initializePayloads(Collections.<IndexTask> singletonList(merged));
+        return merged;
+    }
+
+    @Override
+    @Transactional
+    public <S extends IndexTask> List<S> save(Iterable<S> tasks) {
+        List<S> saved = new ArrayList<S>();
+        if (tasks != null) {
+            for (S task : tasks) {
+                saved.add(save(task));
+            }
+        }
+        return saved;
+    }
+
+    @Override
+    @Transactional
+    public IndexTask saveAndFlush(IndexTask task) {
+        IndexTask saved = save(task);
+        entityManager.flush();
+        return saved;
+    }
+
+    @Override
+    @Transactional
+    public int deleteByIdsAndStatusModifiedBefore(Collection<Long> ids, String status,
+            long before) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        int deleted = entityManager.createQuery(DELETE_JPQL).setParameter("ids", ids)
+                .setParameter("status", status).setParameter("before", before).executeUpdate();
+        if (deleted > 0) {
+            // tasks that changed since their ids were selected keep their payload
+            List<Long> remaining = entityManager.createQuery(FIND_EXISTING_IDS_JPQL, Long.class)
+                    .setParameter("ids", ids).getResultList();
+            List<Long> orphaned = new ArrayList<Long>(ids);
+            orphaned.removeAll(remaining);
+            entityManager.createQuery(DELETE_PAYLOADS_JPQL).setParameter("ids", orphaned)
+                    .executeUpdate();
+        }
+        entityManager.clear();
+        return deleted;
+    }
+
+    @Override
+    @Transactional
+    public int markNew(Collection<Long> ids, long now) {
+        int updated = updateWithBackoff(MARK_NEW_JPQL, ids, now);
+        if (updated > 0) {
+            LocalIndexTaskArrivalChannel.getInstance().notifyArrivalAfterCommit();
+        }
+        return updated;
+    }
+
+    @Override
+    @Transactional
+    public int markFailed(Collection<Long> ids, long now) {
+        return updateWithBackoff(MARK_FAILED_JPQL, ids, now);
+    }
+
+    /*
+     * The backoff policy can be replaced at runtime, so the statement is built
+     * for each call.
+     */
+    private int updateWithBackoff(String jpql, Collection<Long> ids, long now) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        String update = String.format(jpql, IndexTask.getBackoffPolicy().toJpql());
+        int updated = entityManager.createQuery(update).setParameter("ids", ids)
+                .setParameter("now", now).executeUpdate();
+        entityManager.clear();
+        return updated;
+    }
+
+    private List<IndexTask> claim(int maxTasks, int tryCount, IndexTaskShardRange shards) {
+        if (maxTasks < 1) {
+            return Collections.emptyList();
+        }
+        int tryCountLimit = tryCount < 0 ? Integer.MAX_VALUE : tryCount;
+        List<IndexTask> claimed;
+        if (isPostgres()) {
+            claimed = claimWithSkipLocked(maxTasks, tryCountLimit, shards);
+        } else {
+            claimed = claimWithRowLocks(maxTasks, tryCountLimit, shards);
+        }
+        logger.debug("Claimed " + claimed.size() + " of " + maxTasks + " requested index tasks.");
+        return claimed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<IndexTask> claimWithSkipLocked(int maxTasks, int tryCount,
+            IndexTaskShardRange shards) {
+        SQLQuery query = getSession().createSQLQuery(POSTGRES_CLAIM_SQL);
+        query.addScalar("id", StandardBasicTypes.LONG);
+        query.addScalar("queuedDate", StandardBasicTypes.LONG);
+        query.addSynchronizedEntityClass(IndexTask.class);
+        query.setParameter("inProcess", IndexTaskStatus.IN_PROCESS.getCode(),
+                StandardBasicTypes.SHORT);
+        query.setParameter("newStatus", IndexTaskStatus.NEW.getCode(), StandardBasicTypes.SHORT);
+        query.setParameter("now", System.currentTimeMillis(), StandardBasicTypes.LONG);
+        query.setParameter("tryCount", tryCount, StandardBasicTypes.INTEGER);
+        query.setParameter("fromShard", shards.getFrom(), StandardBasicTypes.INTEGER);
+        query.setParameter("toShard", shards.getTo(), StandardBasicTypes.INTEGER);
+        query.setParameter("maxTasks", maxTasks, StandardBasicTypes.INTEGER);
+        List<Object[]> rows = query.list();
+        if (rows.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Long, Long> queuedDates = new HashMap<Long, Long>();
+        for (Object[] row : rows) {
+            queuedDates.put((Long) row[0], (Long) row[1]);
+        }
+        // RETURNING does not preserve the order of the sub-select, and the
+        // claim overwrote the modified dates: read the claimed tasks back with
+        // their payloads and put them in the queue order they were claimed in
+        List<IndexTask> found = entityManager.createQuery(FIND_BY_IDS_JPQL, IndexTask.class)
+                .setParameter("ids", queuedDates.keySet()).getResultList();
+        initializePayloads(found);
+        TreeMap<IndexTaskQueueKey, IndexTask> queued = new TreeMap<IndexTaskQueueKey, IndexTask>();
+        for (IndexTask task : found) {
+            queued.put(new IndexTaskQueueKey(task.getPriority(), queuedDates.get(task.getId())
+                    .longValue(), task.getId().longValue()), task);
+        }
+        return new ArrayList<IndexTask>(queued.values());
+    }
+
+    private List<IndexTask> claimWithRowLocks(int maxTasks, int tryCount,
+            IndexTaskShardRange shards) {
+        TypedQuery<IndexTask> query = entityManager.createQuery(CLAIM_JPQL, IndexTask.class);
+        query.setParameter("newStatus", IndexTask.STATUS_NEW);
+        query.setParameter("tryCount", tryCount);
+        query.setParameter("fromShard", shards.getFrom());
+        query.setParameter("toShard", shards.getTo());
+        query.setMaxResults(maxTasks);
+        query.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+        List<IndexTask> claimed = query.getResultList();
+        for (IndexTask task : claimed) {
+            task.markInProgress();
+        }
+        entityManager.flush();
+        initializePayloads(claimed);
+        return claimed;
+    }
+
+    /*
+     * The finders fetch the payload with the task, but a task that was
+     * already managed keeps its payload proxy, as does a task returned by
+     * merge. Initialize those so the tasks can be used after the transaction
+     * ends.
+     */
+    private void initializePayloads(List<IndexTask> tasks) {
+        for (IndexTask task : tasks) {
+            Hibernate.initialize(task.getPayload());
+        }
+    }
+
+    private boolean isPostgres() {
+        if (postgres == null) {
+            postgres = Boolean
+                    .valueOf(getSessionFactory().getDialect() instanceof PostgreSQLDialect);
+        }
+        return postgres.booleanValue();
+    }
+
+    private Session getSession() {
+        return (Session) entityManager.getDelegate();
+    }
+
+    private SessionFactoryImplementor getSessionFactory() {
+        return (SessionFactoryImplementor) getSession().getSessionFactory();
+    }
+}
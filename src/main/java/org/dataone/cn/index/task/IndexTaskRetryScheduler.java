@@ -0,0 +1,347 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.dataone.configuration.Settings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+/**
+ * Releases FAILED tasks for retry when their nextExecution comes due, instead
+ * of callers polling findByStatusAndNextExecutionLessThan with the current
+ * time.
+ * 
+ * The scheduler keeps the (id, nextExecution) pairs of the retries due within
+ * the horizon in a DelayQueue. Every refresh interval it loads the part of
+ * the schedule that entered the horizon since the last refresh, plus the
+ * tasks modified since the last refresh whose nextExecution falls in the
+ * loaded part (tasks that failed again, or were failed without backoff).
+ * Both queries read ids and times only, through the retry and purge indexes.
+ * Callers block in takeDueTasks until a retry is due; released tasks are
+ * claimed and returned only if they are still FAILED and due.
+ * 
+ * The schedule holds at most maxScheduled retries. The horizon does not
+ * bound the first load, which takes every overdue retry, or a load after a
+ * mass failure; when the schedule is full a refresh stops, oldest retries
+ * first, and the following refreshes continue from where it stopped as
+ * retries are released.
+ * 
+ * Configured with dataone.indexing.task.retry.horizonMillis (default 5
+ * minutes), dataone.indexing.task.retry.refreshMillis (default 1 minute),
+ * dataone.indexing.task.retry.maxTryCount (default no limit),
+ * dataone.indexing.task.retry.loadSize (default 10000 rows per page) and
+ * dataone.indexing.task.retry.maxScheduled (default 100000).
+ * 
+ */
+@Component
+public class IndexTaskRetryScheduler {
+
+    private static Logger logger = Logger.getLogger(IndexTaskRetryScheduler.class.getName());
+
+    /*
+     * The modified-since query looks back this far before the previous
+     * refresh, for tasks whose transaction committed after it ran.
+     */
+    private static final long MODIFIED_SLACK_MILLIS = 30 * 1000L;
+
+    @Autowired
+    private IndexTaskRepository repository;
+
+    private long horizonMillis = Settings.getConfiguration().getLong(
+            "dataone.indexing.task.retry.horizonMillis", 5 * 60 * 1000L);
+
+    private long refreshMillis = Settings.getConfiguration().getLong(
+            "dataone.indexing.task.retry.refreshMillis", 60 * 1000L);
+
+    private int maxTryCount = Settings.getConfiguration().getInt(
+            "dataone.indexing.task.retry.maxTryCount", -1);
+
+    private int loadSize = Settings.getConfiguration().getInt(
+            "dataone.indexing.task.retry.loadSize", 10000);
+
+    private int maxScheduled = Settings.getConfiguration().getInt(
+            "dataone.indexing.task.retry.maxScheduled", 100000);
+
+    private final DelayQueue<ScheduledRetry> queue = new DelayQueue<ScheduledRetry>();
+
+    /* id -> nextExecution of the latest entry queued for the task */
+    private final ConcurrentMap<Long, Long> scheduled = new ConcurrentHashMap<Long, Long>();
+
+    /* (nextExecution, id) of the last retry loaded by the range query */
+    private long loadedUntil = Long.MIN_VALUE;
+    private Long loadedUntilId = Long.valueOf(Long.MAX_VALUE);
+    private long lastRefresh = Long.MIN_VALUE;
+
+    private ScheduledExecutorService refresher;
+
+    /**
+     * Load the schedule and refresh it every refresh interval on a background
+     * thread.
+     */
+    public synchronized void start() {
+        if (refresher != null) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "index-task-retry-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    logger.error("Unable to refresh the index task retry schedule.", e);
+                }
+            }
+        }, 0, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background refresh. Retries already loaded are still released.
+     */
+    public synchronized void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * Load the retries that came within the horizon, and the retries of tasks
+     * modified since the previous refresh, into the schedule, up to
+     * maxScheduled retries.
+     * 
+     * @return the number of retries added to the schedule
+     */
+    public synchronized int refresh() {
+        long start = System.currentTimeMillis();
+        long until = start + horizonMillis;
+        int tryCount = maxTryCount < 0 ? Integer.MAX_VALUE : maxTryCount;
+
+        // page through the part of the schedule that entered the horizon, by
+        // (nextExecution, id) so that any number of tasks due at one time load
+        int added = 0;
+        while (true) {
+            int pageSize = Math.min(loadSize, maxScheduled - scheduled.size());
+            if (pageSize < 1) {
+                break;
+            }
+            List<Object[]> rows = repository.findRetrySchedule(IndexTask.STATUS_FAILED,
+                    loadedUntil, loadedUntilId, until, tryCount, new PageRequest(0, pageSize));
+            for (Object[] row : rows) {
+                added += schedule((Long) row[0], ((Long) row[1]).longValue());
+            }
+            if (rows.size() < pageSize) {
+                loadedUntil = Math.max(loadedUntil, until);
+                loadedUntilId = Long.valueOf(Long.MAX_VALUE);
+                break;
+            }
+            Object[] last = rows.get(rows.size() - 1);
+            loadedUntilId = (Long) last[0];
+            loadedUntil = ((Long) last[1]).longValue();
+        }
+
+        boolean modifiedLoaded = true;
+        if (lastRefresh != Long.MIN_VALUE) {
+            long afterExecution = Long.MIN_VALUE;
+            Long afterId = Long.valueOf(Long.MIN_VALUE);
+            while (true) {
+                int pageSize = Math.min(loadSize, maxScheduled - scheduled.size());
+                if (pageSize < 1) {
+                    modifiedLoaded = false;
+                    break;
+                }
+                List<Object[]> rows = repository.findRetryScheduleModifiedSince(
+                        IndexTask.STATUS_FAILED, lastRefresh, afterExecution, afterId,
+                        loadedUntil, tryCount, new PageRequest(0, pageSize));
+                for (Object[] row : rows) {
+                    added += schedule((Long) row[0], ((Long) row[1]).longValue());
+                }
+                if (rows.size() < pageSize) {
+                    break;
+                }
+                Object[] last = rows.get(rows.size() - 1);
+                afterId = (Long) last[0];
+                afterExecution = ((Long) last[1]).longValue();
+            }
+        }
+        // tasks modified while the queries ran are found again next time, and
+        // all of them if the schedule filled up first
+        if (modifiedLoaded) {
+            lastRefresh = start - MODIFIED_SLACK_MILLIS;
+        }
+        logger.debug("Added " + added + " retries to the index task retry schedule, "
+                + queue.size() + " scheduled.");
+        return added;
+    }
+
+    private int schedule(Long id, long nextExecution) {
+        Long previous = scheduled.put(id, Long.valueOf(nextExecution));
+        if (previous != null && previous.longValue() == nextExecution) {
+            return 0;
+        }
+        queue.add(new ScheduledRetry(id, nextExecution));
+        return 1;
+    }
+
+    /**
+     * Wait until at least one retry is due, then claim and return up to
+     * maxTasks of the due tasks. The tasks are claimed through
+     * IndexTaskRepository.claimDueRetries: they are returned IN PROCESS with
+     * their try count incremented, and no other scheduler or worker receives
+     * them. Tasks that were modified since they were scheduled and are no
+     * longer FAILED and due are left out, so the result may be empty.
+     * 
+     * @param maxTasks
+     * @param timeout
+     * @param unit
+     * @return the due tasks, empty if none came due within the timeout
+     * @throws InterruptedException
+     */
+    public List<IndexTask> takeDueTasks(int maxTasks, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        List<Long> ids = new ArrayList<Long>();
+        ScheduledRetry retry = queue.poll(timeout, unit);
+        while (retry != null) {
+            // skip entries replaced by a later schedule of the same task,
+            // including one a concurrent refresh makes while this runs
+            if (scheduled.remove(retry.id, Long.valueOf(retry.nextExecution))) {
+                ids.add(retry.id);
+            }
+            retry = ids.size() < maxTasks ? queue.poll() : null;
+        }
+        if (ids.isEmpty()) {
+            return new ArrayList<IndexTask>();
+        }
+        return repository.claimDueRetries(ids, maxTryCount, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the number of retries in the schedule
+     */
+    public int getScheduledCount() {
+        return scheduled.size();
+    }
+
+    public long getHorizonMillis() {
+        return horizonMillis;
+    }
+
+    public void setHorizonMillis(long horizonMillis) {
+        this.horizonMillis = horizonMillis;
+    }
+
+    public long getRefreshMillis() {
+        return refreshMillis;
+    }
+
+    public void setRefreshMillis(long refreshMillis) {
+        this.refreshMillis = refreshMillis;
+    }
+
+    public int getMaxTryCount() {
+        return maxTryCount;
+    }
+
+    /**
+     * @param maxTryCount
+     *            - only tasks tried fewer times are retried, a negative value
+     *            for no limit
+     */
+    public void setMaxTryCount(int maxTryCount) {
+        this.maxTryCount = maxTryCount;
+    }
+
+    public int getLoadSize() {
+        return loadSize;
+    }
+
+    public void setLoadSize(int loadSize) {
+        this.loadSize = loadSize;
+    }
+
+    public int getMaxScheduled() {
+        return maxScheduled;
+    }
+
+    /**
+     * @param maxScheduled
+     *            - the most retries held in the schedule, the rest are loaded
+     *            by later refreshes
+     */
+    public void setMaxScheduled(int maxScheduled) {
+        this.maxScheduled = maxScheduled;
+    }
+
+    /**
+     * Forget the loaded schedule, the next refresh loads it again.
+     */
+    public synchronized void clear() {
+        queue.clear();
+        scheduled.clear();
+        loadedUntil = Long.MIN_VALUE;
+        loadedUntilId = Long.valueOf(Long.MAX_VALUE);
+        lastRefresh = Long.MIN_VALUE;
+    }
+
+    private static final class ScheduledRetry implements Delayed {
+
+        private final Long id;
+        private final long nextExecution;
+
+        ScheduledRetry(Long id, long nextExecution) {
+            this.id = id;
+            this.nextExecution = nextExecution;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(nextExecution - System.currentTimeMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            ScheduledRetry that = (ScheduledRetry) other;
+            if (nextExecution != that.nextExecution) {
+                return nextExecution < that.nextExecution ? -1 : 1;
+            }
+            return id.compareTo(that.id);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A contiguous range of IndexTask shard keys, [from, to). Every task is
+ * assigned one of SHARD_COUNT shard keys derived from a stable hash of its
+ * pid, so all the tasks of a pid fall in the same shard. Dividing the shard
+ * keys between N indexing workers with forWorker gives each worker a disjoint
+ * slice of the queue: the workers never compete for the same tasks, and the
+ * tasks of one pid are always processed, in queue order, by one worker.
+ * 
+ * The hash is the first four bytes (big-endian) of the MD5 digest of the
+ * UTF-8 encoded pid, modulo SHARD_COUNT. The postgres schema scripts compute
+ * the same value in SQL to populate existing rows.
+ * 
+ */
+public final class IndexTaskShardRange implements Serializable {
+
+    private static final long serialVersionUID = -4719532870217664593L;
+
+    /**
+     * The number of shard keys. A power of two, and not to be changed once
+     * tasks have been stored.
+     */
+    public static final int SHARD_COUNT = 1024;
+
+    /**
+     * The range of all shard keys.
+     */
+    public static final IndexTaskShardRange ALL = new IndexTaskShardRange(0, SHARD_COUNT);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 is not available", e);
+            }
+        }
+    };
+
+    private final int from;
+    private final int to;
+
+    /**
+     * @param from
+     *            - the first shard key of the range
+     * @param to
+     *            - the shard key following the last shard key of the range
+     */
+    public IndexTaskShardRange(int from, int to) {
+        if (from < 0 || to > SHARD_COUNT || from > to) {
+            throw new IllegalArgumentException("Invalid shard range [" + from + ", " + to + ")");
+        }
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * The shard range owned by one of workerCount workers. The ranges of
+     * workers 0 to workerCount - 1 are disjoint and together cover all shard
+     * keys, and differ in size by one shard key at most.
+     * 
+     * @param worker
+     *            - the index of the worker, from 0 to workerCount - 1
+     * @param workerCount
+     *            - the number of workers, at most SHARD_COUNT
+     * @return
+     */
+    public static IndexTaskShardRange forWorker(int worker, int workerCount) {
+        if (workerCount < 1 || workerCount > SHARD_COUNT) {
+            throw new IllegalArgumentException("workerCount must be between 1 and "
+                    + SHARD_COUNT + ": " + workerCount);
+        }
+        if (worker < 0 || worker >= workerCount) {
+            throw new IllegalArgumentException("worker must be between 0 and "
+                    + (workerCount - 1) + ": " + worker);
+        }
+        return new IndexTaskShardRange(worker * SHARD_COUNT / workerCount, (worker + 1)
+                * SHARD_COUNT / workerCount);
+    }
+
+    /**
+     * The shard key of a pid.
+     * 
+     * @param pid
+     * @return a value from 0 to SHARD_COUNT - 1, 0 for a null pid
+     */
+    public static int shardKey(String pid) {
+        if (pid == null) {
+            return 0;
+        }
+        byte[] digest = MD5.get().digest(pid.getBytes(UTF_8));
+        int hash = ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16)
+                | ((digest[2] & 0xff) << 8) | (digest[3] & 0xff);
+        return hash & (SHARD_COUNT - 1);
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public int getTo() {
+        return to;
+    }
+
+    public boolean contains(int shardKey) {
+        return shardKey >= from && shardKey < to;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof IndexTaskShardRange)) {
+            return false;
+        }
+        IndexTaskShardRange other = (IndexTaskShardRange) obj;
+        return from == other.from && to == other.to;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * from + to;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexTaskShardRange [from=" + from + ", to=" + to + "]";
+    }
+}
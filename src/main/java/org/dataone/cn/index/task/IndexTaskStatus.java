@@ -0,0 +1,102 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+/**
+ * The processing states of an IndexTask and their compact encoding. The
+ * status property of IndexTask keeps the string values (the STATUS_*
+ * constants), the status column of index_task stores the code as a
+ * smallint (see IndexTaskStatusType).
+ * 
+ * Codes are persisted, so existing codes must never be changed or reused.
+ * 
+ */
+public enum IndexTaskStatus {
+
+    NEW(IndexTaskStatus.CODE_NEW, IndexTask.STATUS_NEW),
+    IN_PROCESS(IndexTaskStatus.CODE_IN_PROCESS, IndexTask.STATUS_IN_PROCESS),
+    COMPLETE(IndexTaskStatus.CODE_COMPLETE, IndexTask.STATUS_COMPLETE),
+    FAILED(IndexTaskStatus.CODE_FAILED, IndexTask.STATUS_FAILED);
+
+    /*
+     * The codes as constants, for use in JPQL and SQL statements.
+     */
+    static final int CODE_NEW = 1;
+    static final int CODE_IN_PROCESS = 2;
+    static final int CODE_COMPLETE = 3;
+    static final int CODE_FAILED = 4;
+
+    private final short code;
+    private final String value;
+
+    private IndexTaskStatus(int code, String value) {
+        this.code = (short) code;
+        this.value = value;
+    }
+
+    /**
+     * @return the value stored in the status column
+     */
+    public short getCode() {
+        return code;
+    }
+
+    /**
+     * @return the status as a STATUS_* constant of IndexTask
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @param value
+     *            - a STATUS_* constant of IndexTask
+     * @return the matching status
+     * @throws IllegalArgumentException
+     *             if the value is not a known status
+     */
+    public static IndexTaskStatus fromValue(String value) {
+        for (IndexTaskStatus status : values()) {
+            if (status.value.equals(value)) {
+                return status;
+            }
+        }
+        throw new IllegalArgumentException("Unknown index task status: " + value);
+    }
+
+    /**
+     * @param code
+     *            - a value of the status column
+     * @return the matching status
+     * @throws IllegalArgumentException
+     *             if the code is not a known status code
+     */
+    public static IndexTaskStatus fromCode(int code) {
+        for (IndexTaskStatus status : values()) {
+            if (status.code == code) {
+                return status;
+            }
+        }
+        throw new IllegalArgumentException("Unknown index task status code: " + code);
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import org.hibernate.HibernateException;
+import org.hibernate.usertype.UserType;
+
+/**
+ * Hibernate mapping of the IndexTask status property: the property is a
+ * STATUS_* string, the column a smallint holding the IndexTaskStatus code.
+ * Queries keep comparing the property with the string constants, the
+ * conversion happens when parameters are bound and results are read.
+ * 
+ */
+public class IndexTaskStatusType implements UserType {
+
+    private static final int[] SQL_TYPES = { Types.SMALLINT };
+
+    public int[] sqlTypes() {
+        return SQL_TYPES;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public Class returnedClass() {
+        return String.class;
+    }
+
+    public boolean equals(Object x, Object y) throws HibernateException {
+        return x == null ? y == null : x.equals(y);
+    }
+
+    public int hashCode(Object x) throws HibernateException {
+        return x.hashCode();
+    }
+
+    // the Hibernate 3.6 UserType SPI only offers the deprecated signature
+    @SuppressWarnings("deprecation")
+    public Object nullSafeGet(ResultSet rs, String[] names, Object owner)
+            throws HibernateException, SQLException {
+        short code = rs.getShort(names[0]);
+        if (rs.wasNull()) {
+            return null;
+        }
+        try {
+            return IndexTaskStatus.fromCode(code).getValue();
+        } catch (IllegalArgumentException e) {
+            throw new HibernateException(e.getMessage(), e);
+        }
+    }
+
+    // the Hibernate 3.6 UserType SPI only offers the deprecated signature
+    @SuppressWarnings("deprecation")
+    public void nullSafeSet(PreparedStatement st, Object value, int index)
+            throws HibernateException, SQLException {
+        if (value == null) {
+            st.setNull(index, Types.SMALLINT);
+            return;
+        }
+        try {
+            st.setShort(index, IndexTaskStatus.fromValue((String) value).getCode());
+        } catch (IllegalArgumentException e) {
+            throw new HibernateException(e.getMessage(), e);
+        }
+    }
+
+    public Object deepCopy(Object value) throws HibernateException {
+        return value;
+    }
+
+    public boolean isMutable() {
+        return false;
+    }
+
+    public Serializable disassemble(Object value) throws HibernateException {
+        return (Serializable) value;
+    }
+
+    public Object assemble(Serializable cached, Object owner) throws HibernateException {
+        return cached;
+    }
+
+    public Object replace(Object original, Object target, Object owner)
+            throws HibernateException {
+        return original;
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.io.Serializable;
+
+/**
+ * The scheduling fields of an IndexTask without its payload (sysMetadata,
+ * objectPath). Returned by the IndexTaskRepository summary finders so that
+ * scanning the queue does not read the large TEXT and bytea columns; the
+ * payloads of the tasks chosen for processing can then be loaded in one query
+ * with IndexTaskRepository.findByIdsInQueueOrder.
+ * 
+ */
+public final class IndexTaskSummary implements Serializable {
+
+    private static final long serialVersionUID = 6203458190375612817L;
+
+    /**
+     * The select clause of the summary finders, see IndexTaskRepository.
+     */
+    static final String SELECT_JPQL = "select new org.dataone.cn.index.task.IndexTaskSummary("
+            + "t.id, t.pid, t.formatId, t.priority, t.status, t.tryCount, t.nextExecution,"
+            + " t.taskModifiedDate) from IndexTask t";
+
+    private final Long id;
+    private final String pid;
+    private final String formatId;
+    private final int priority;
+    private final String status;
+    private final int tryCount;
+    private final long nextExecution;
+    private final long taskModifiedDate;
+
+    public IndexTaskSummary(Long id, String pid, String formatId, int priority, String status,
+            int tryCount, long nextExecution, long taskModifiedDate) {
+        this.id = id;
+        this.pid = pid;
+        this.formatId = formatId;
+        this.priority = priority;
+        this.status = status;
+        this.tryCount = tryCount;
+        this.nextExecution = nextExecution;
+        this.taskModifiedDate = taskModifiedDate;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public String getFormatId() {
+        return formatId;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public int getTryCount() {
+        return tryCount;
+    }
+
+    public long getNextExecution() {
+        return nextExecution;
+    }
+
+    public long getTaskModifiedDate() {
+        return taskModifiedDate;
+    }
+
+    /**
+     * The position of the task in the queue, for keyset pagination with
+     * findQueueSummaryPageAfter.
+     * 
+     * @return
+     */
+    public IndexTaskQueueKey getQueueKey() {
+        return new IndexTaskQueueKey(priority, taskModifiedDate, id.longValue());
+    }
+
+    @Override
+    public String toString() {
+        return "IndexTaskSummary [id=" + id + ", pid=" + pid + ", formatId=" + formatId
+                + ", priority=" + priority + ", status=" + status + ", tryCount=" + tryCount
+                + ", nextExecution=" + nextExecution + "]";
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+/**
+ * The default BackoffPolicy: a task that has been tried ALLOWED_RETRIES times
+ * is retried after 20 minutes, then after 2 hours, 8 hours, 1 day (three
+ * times) and every 7 days from then on.
+ * 
+ */
+public class LadderBackoffPolicy extends BackoffPolicy {
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    private static final long[] LADDER = { 20 * MINUTE, 2 * HOUR, 8 * HOUR, DAY, DAY, DAY,
+            7 * DAY };
+
+    /**
+     * The ladder without jitter.
+     */
+    public LadderBackoffPolicy() {
+        this(0);
+    }
+
+    /**
+     * @param jitter
+     *            - see BackoffPolicy
+     */
+    public LadderBackoffPolicy(double jitter) {
+        super(jitter);
+    }
+
+    @Override
+    public long getDelay(int tryCount) {
+        if (tryCount < IndexTask.ALLOWED_RETRIES) {
+            return NO_BACKOFF;
+        }
+        return LADDER[Math.min(tryCount - IndexTask.ALLOWED_RETRIES, LADDER.length - 1)];
+    }
+
+    @Override
+    public int getLastStep() {
+        return IndexTask.ALLOWED_RETRIES + LADDER.length - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "LadderBackoffPolicy [jitter=" + getJitter() + "]";
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * The in-JVM IndexTaskArrivalChannel. The JVM wide instance is notified when
+ * this JVM queues NEW tasks: by IndexTask when a NEW task is inserted or
+ * updated, and by the IndexTaskRepository operations that queue tasks with
+ * bulk or native statements. Notifications made within a transaction are
+ * delivered once, after it commits, so woken workers can see the tasks.
+ * 
+ * Used on its own with H2 and in tests; with Postgres the
+ * PostgresIndexTaskArrivalChannel also covers tasks queued by other JVMs.
+ * 
+ */
+public final class LocalIndexTaskArrivalChannel implements IndexTaskArrivalChannel {
+
+    private static final LocalIndexTaskArrivalChannel instance = new LocalIndexTaskArrivalChannel();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition arrived = lock.newCondition();
+    private volatile long generation = 0;
+
+    LocalIndexTaskArrivalChannel() {
+    }
+
+    /**
+     * @return the channel notified by this JVM
+     */
+    public static LocalIndexTaskArrivalChannel getInstance() {
+        return instance;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public boolean awaitArrival(long since, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (generation == since) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = arrived.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wake the waiting workers now.
+     */
+    public void notifyArrival() {
+        lock.lock();
+        try {
+            generation++;
+            arrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wake the waiting workers when the current transaction commits, or now if
+     * there is no transaction. Repeated calls within one transaction notify
+     * once.
+     */
+    public void notifyArrivalAfterCommit() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            notifyArrival();
+            return;
+        }
+        if (TransactionSynchronizationManager.hasResource(this)) {
+            return;
+        }
+        TransactionSynchronizationManager.bindResource(this, Boolean.TRUE);
+        TransactionSynchronizationManager
+                .registerSynchronization(new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCommit() {
+                        notifyArrival();
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        TransactionSynchronizationManager
+                                .unbindResourceIfPossible(LocalIndexTaskArrivalChannel.this);
+                    }
+                });
+    }
+}
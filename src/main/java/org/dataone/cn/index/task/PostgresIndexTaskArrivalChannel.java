@@ -0,0 +1,256 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.DelegatingConnection;
+import org.apache.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * The IndexTaskArrivalChannel for a postgres queue shared by several JVMs. A
+ * trigger on index_task (schema version 7) sends a notification on the
+ * index_task_new channel when a NEW task is inserted or a task returns to
+ * NEW; postgres delivers it once per transaction, after the commit. A single
+ * listener thread per JVM holds a connection that LISTENs on the channel and
+ * wakes the waiting workers when notifications arrive. The listener starts
+ * with the first getGeneration or awaitArrival, so only JVMs that wait for
+ * tasks hold a listener connection; start starts it up front.
+ * 
+ * The postgres driver in use only hands out notifications after a round trip
+ * on the connection, so the listener sends an empty query every pollMillis
+ * (default 20). Workers in other JVMs are therefore woken up to pollMillis
+ * after the commit, not within a few milliseconds; a shorter poll lowers that
+ * at the cost of more round trips. Arrivals from this JVM are signalled
+ * directly through the LocalIndexTaskArrivalChannel, without that delay. If
+ * the connection fails the listener reconnects after reconnectMillis and
+ * wakes the workers, since notifications may have been lost in between.
+ * 
+ * The listener keeps its connection for as long as it runs, so give it a
+ * datasource of its own rather than the shared pool (postgres-datasource.xml
+ * uses an unpooled DriverManagerDataSource). Notifications are read from the
+ * postgres driver connection; through a commons-dbcp datasource that requires
+ * accessToUnderlyingConnectionAllowed.
+ * 
+ */
+public class PostgresIndexTaskArrivalChannel implements IndexTaskArrivalChannel {
+
+    private static Logger logger = Logger.getLogger(PostgresIndexTaskArrivalChannel.class
+            .getName());
+
+    static final String NOTIFY_CHANNEL = "index_task_new";
+
+    private final LocalIndexTaskArrivalChannel local = LocalIndexTaskArrivalChannel
+            .getInstance();
+
+    private DataSource dataSource;
+    private long pollMillis = 20;
+    private long reconnectMillis = 5000;
+
+    private volatile Thread listener;
+    private volatile boolean stopped = false;
+
+    public long getGeneration() {
+        startIfNeeded();
+        return local.getGeneration();
+    }
+
+    public boolean awaitArrival(long generation, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        startIfNeeded();
+        return local.awaitArrival(generation, timeout, unit);
+    }
+
+    private void startIfNeeded() {
+        if (listener == null && !stopped) {
+            synchronized (this) {
+                if (!stopped) {
+                    start();
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the listener thread.
+     */
+    public synchronized void start() {
+        stopped = false;
+        if (listener != null) {
+            return;
+        }
+        listener = new Thread(new Runnable() {
+            public void run() {
+                listen();
+            }
+        }, "index-task-arrival-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /**
+     * Stop the listener thread. It is not started again until start is
+     * called.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        Thread running = listener;
+        listener = null;
+        if (running != null) {
+            running.interrupt();
+        }
+    }
+
+    private void listen() {
+        Thread self = Thread.currentThread();
+        while (listener == self) {
+            Connection connection = null;
+            try {
+                connection = dataSource.getConnection();
+                connection.setAutoCommit(true);
+                PGConnection pgConnection = pgConnection(connection);
+                Statement statement = connection.createStatement();
+                try {
+                    statement.execute("LISTEN " + NOTIFY_CHANNEL);
+                    logger.info("Listening for index task arrivals on " + NOTIFY_CHANNEL);
+                    // tasks may have arrived while not listening
+                    local.notifyArrival();
+                    while (listener == self) {
+                        statement.execute("SELECT 1");
+                        PGNotification[] notifications = pgConnection.getNotifications();
+                        if (notifications != null && notifications.length > 0) {
+                            local.notifyArrival();
+                        }
+                        Thread.sleep(pollMillis);
+                    }
+                } finally {
+                    statement.close();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (SQLException e) {
+                if (!awaitReconnect(e)) {
+                    break;
+                }
+            } catch (RuntimeException e) {
+                if (!awaitReconnect(e)) {
+                    break;
+                }
+            } finally {
+                close(connection);
+            }
+        }
+    }
+
+    /**
+     * @return false if interrupted while waiting to reconnect
+     */
+    private boolean awaitReconnect(Exception e) {
+        logger.error("Index task arrival listener failed, reconnecting in " + reconnectMillis
+                + " ms.", e);
+        try {
+            Thread.sleep(reconnectMillis);
+            return true;
+        } catch (InterruptedException ie) {
+            return false;
+        }
+    }
+
+    /**
+     * Return the postgres driver connection of a connection from the
+     * datasource, looking through commons-dbcp pooled connections. The driver
+     * does not implement Connection.unwrap.
+     * 
+     * @param connection
+     * @return
+     * @throws SQLException
+     *             if the connection is not a postgres connection, or the pool
+     *             does not allow access to the underlying connection
+     */
+    static PGConnection pgConnection(Connection connection) throws SQLException {
+        Connection underlying = connection;
+        if (underlying instanceof DelegatingConnection) {
+            underlying = ((DelegatingConnection) underlying).getInnermostDelegate();
+            if (underlying == null) {
+                throw new SQLException("The pooled datasource does not allow access to the"
+                        + " postgres connection, set accessToUnderlyingConnectionAllowed.");
+            }
+        }
+        if (underlying instanceof PGConnection) {
+            return (PGConnection) underlying;
+        }
+        throw new SQLException("Not a postgres connection: " + underlying.getClass().getName());
+    }
+
+    private void close(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute("UNLISTEN " + NOTIFY_CHANNEL);
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            logger.debug("Unable to UNLISTEN before closing the connection.", e);
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.warn("Unable to close the index task arrival listener connection.", e);
+        }
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public long getPollMillis() {
+        return pollMillis;
+    }
+
+    public void setPollMillis(long pollMillis) {
+        this.pollMillis = pollMillis;
+    }
+
+    public long getReconnectMillis() {
+        return reconnectMillis;
+    }
+
+    public void setReconnectMillis(long reconnectMillis) {
+        this.reconnectMillis = reconnectMillis;
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.validation.Schema;
+
+import org.dataone.exceptions.MarshallingException;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.dataone.service.util.TypeMarshaller;
+
+/**
+ * Marshals and un-marshals the SystemMetadata carried by IndexTasks.
+ * 
+ * Unlike TypeMarshaller, which creates a new Marshaller or Unmarshaller for
+ * every call and works on byte streams in the platform encoding, the codec
+ * keeps one Marshaller, Unmarshaller and output buffer per thread, marshals
+ * straight to characters and un-marshals from a character source. Documents
+ * are declared and, when compressed, encoded as UTF-8. Marshalled documents
+ * are validated against the DataONE schemas when TypeMarshaller is configured
+ * to validate (marshalling.d1.schema.validation).
+ * 
+ * The codec is thread safe.
+ */
+public final class SystemMetadataCodec {
+
+    /**
+     * Per-thread output buffers that grow beyond this many characters are
+     * discarded after use rather than kept for the next call.
+     */
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private static final JAXBContext context;
+    static {
+        try {
+            context = JAXBContext.newInstance(SystemMetadata.class);
+        } catch (JAXBException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final ThreadLocal<Marshaller> marshallers = new ThreadLocal<Marshaller>() {
+        @Override
+        protected Marshaller initialValue() {
+            try {
+                Marshaller marshaller = context.createMarshaller();
+                marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+                Schema schema = D1Schemas.getValidationSchema();
+                if (schema != null) {
+                    marshaller.setSchema(schema);
+                }
+                return marshaller;
+            } catch (JAXBException e) {
+                throw new IllegalStateException("Unable to create SystemMetadata marshaller", e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<Unmarshaller> unmarshallers = new ThreadLocal<Unmarshaller>() {
+        @Override
+        protected Unmarshaller initialValue() {
+            try {
+                return context.createUnmarshaller();
+            } catch (JAXBException e) {
+                throw new IllegalStateException("Unable to create SystemMetadata unmarshaller", e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<StringWriter> buffers = new ThreadLocal<StringWriter>() {
+        @Override
+        protected StringWriter initialValue() {
+            return new StringWriter(4096);
+        }
+    };
+
+    private SystemMetadataCodec() {
+    }
+
+    /**
+     * Marshal the system metadata to an XML document.
+     * 
+     * @param smd
+     * @return
+     * @throws MarshallingException
+     */
+    public static String marshal(SystemMetadata smd) throws MarshallingException {
+        StringWriter buffer = buffers.get();
+        buffer.getBuffer().setLength(0);
+        try {
+            marshallers.get().marshal(smd, buffer);
+            return buffer.toString();
+        } catch (JAXBException e) {
+            throw new MarshallingException(e.getMessage(), e);
+        } finally {
+            if (buffer.getBuffer().capacity() > MAX_RETAINED_BUFFER) {
+                buffers.remove();
+            }
+        }
+    }
+
+    /**
+     * Un-marshal system metadata from an XML document.
+     * 
+     * @param xml
+     * @return
+     * @throws MarshallingException
+     */
+    public static SystemMetadata unmarshal(String xml) throws MarshallingException {
+        return unmarshal(new StringReader(xml));
+    }
+
+    /**
+     * Un-marshal system metadata from a character source. The reader is not
+     * closed.
+     * 
+     * @param reader
+     * @return
+     * @throws MarshallingException
+     */
+    public static SystemMetadata unmarshal(Reader reader) throws MarshallingException {
+        try {
+            return (SystemMetadata) unmarshallers.get().unmarshal(reader);
+        } catch (JAXBException e) {
+            throw new MarshallingException(e.getMessage(), e);
+        } catch (ClassCastException e) {
+            throw new MarshallingException("Document is not a v2 SystemMetadata", e);
+        }
+    }
+
+    /**
+     * Exposes the DataONE schemas loaded by TypeMarshaller, so they are not
+     * parsed a second time.
+     */
+    private static class D1Schemas extends TypeMarshaller {
+        static Schema getValidationSchema() {
+            return USE_SCHEMA_VALIDATION ? D1_SCHEMAS : null;
+        }
+    }
+}
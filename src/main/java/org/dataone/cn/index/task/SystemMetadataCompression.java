@@ -0,0 +1,147 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes serialized system metadata for the compressed (binary) storage mode
+ * of IndexTask. The encoded form is a one byte format marker followed by the
+ * payload, currently always the raw deflate stream of the UTF-8 encoded XML.
+ * The marker allows the encoding to change without migrating stored rows.
+ * 
+ * Deflater and Inflater instances are reused per thread.
+ */
+final class SystemMetadataCompression {
+
+    /**
+     * Format marker of a raw deflate (RFC 1951) stream of UTF-8 XML.
+     */
+    static final byte FORMAT_DEFLATE = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private SystemMetadataCompression() {
+    }
+
+    /**
+     * Compress the serialized system metadata.
+     * 
+     * @param xml
+     * @return the format marker followed by the compressed XML
+     */
+    static byte[] compress(String xml) {
+        byte[] input = xml.getBytes(UTF_8);
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        ByteArrayOutputStream os = new ByteArrayOutputStream(input.length / 3 + 16);
+        os.write(FORMAT_DEFLATE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            os.write(buffer, 0, count);
+        }
+        return os.toByteArray();
+    }
+
+    /**
+     * Restore the serialized system metadata from its compressed form.
+     * 
+     * @param data
+     *            - the output of compress
+     * @return
+     * @throws IllegalArgumentException
+     *             if the data has an unknown format marker or is corrupt
+     */
+    static String decompress(byte[] data) {
+        checkFormat(data);
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data, 1, data.length - 1);
+        ByteArrayOutputStream os = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed system metadata.");
+                }
+                os.write(buffer, 0, count);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed system metadata.", e);
+        }
+        return new String(os.toByteArray(), UTF_8);
+    }
+
+    /**
+     * Open a character stream over the compressed system metadata, decoding
+     * as it is read without materializing the decompressed document. The
+     * reader uses this thread's Inflater and must be fully consumed before
+     * the next call to decompress or openReader on the same thread.
+     * 
+     * @param data
+     *            - the output of compress
+     * @return
+     */
+    static Reader openReader(byte[] data) {
+        checkFormat(data);
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        return new InputStreamReader(new InflaterInputStream(new ByteArrayInputStream(data, 1,
+                data.length - 1), inflater, BUFFER_SIZE), UTF_8);
+    }
+
+    private static void checkFormat(byte[] data) {
+        if (data.length == 0 || data[0] != FORMAT_DEFLATE) {
+            throw new IllegalArgumentException("Unknown compressed system metadata format: "
+                    + (data.length == 0 ? "empty" : String.valueOf(data[0])));
+        }
+    }
+}
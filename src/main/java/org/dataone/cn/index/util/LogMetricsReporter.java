@@ -0,0 +1,70 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.util;
+
+import java.util.Map;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes each MetricsSnapshot to a log4j logger, one line per metric:
+ * 
+ * <pre>
+ * timer IndexTaskPurger.purge COMPLETE (us), count=12, min=..., mean=..., p50=..., p99=..., p999=..., max=...
+ * counter name, 42
+ * gauge name, 7
+ * </pre>
+ * 
+ * PerformanceLogger reports to its performanceStats logger with this
+ * reporter.
+ * 
+ */
+public class LogMetricsReporter implements MetricsReporter {
+
+    private final Logger logger;
+    private final Level level;
+
+    public LogMetricsReporter(Logger logger, Level level) {
+        this.logger = logger;
+        this.level = level;
+    }
+
+    @Override
+    public void report(MetricsSnapshot snapshot) {
+        if (!logger.isEnabledFor(level)) {
+            return;
+        }
+        for (Map.Entry<String, HistogramSnapshot> entry : snapshot.getTimers().entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                logger.log(level, "timer " + entry.getKey() + " (us), " + entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Long> entry : snapshot.getCounters().entrySet()) {
+            logger.log(level, "counter " + entry.getKey() + ", " + entry.getValue());
+        }
+        for (Map.Entry<String, Long> entry : snapshot.getGauges().entrySet()) {
+            logger.log(level, "gauge " + entry.getKey() + ", " + entry.getValue());
+        }
+    }
+}
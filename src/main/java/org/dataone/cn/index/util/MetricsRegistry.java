@@ -0,0 +1,254 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A set of named timers, counters and gauges. Timers and counters are
+ * created on first use and can be updated from any thread without locking.
+ * Every reporting interval (see start) a MetricsSnapshot of all the metrics
+ * is taken, the timers and counters are reset, and the snapshot is passed to
+ * each MetricsReporter.
+ * 
+ * Each timer holds a histogram of a few tens of kilobytes, so the number of
+ * timers is capped (see setMaxTimers, default DEFAULT_MAX_TIMERS). Once the
+ * cap is reached, timings for new names go to the shared OVERFLOW_TIMER
+ * instead, and a timer that recorded nothing during a whole reporting
+ * interval is dropped when the interval is reported, making room for new
+ * names.
+ * 
+ * PerformanceLogger records into the shared instance returned by
+ * getInstance.
+ * 
+ */
+public class MetricsRegistry {
+
+    private static Logger logger = Logger.getLogger(MetricsRegistry.class.getName());
+
+    public static final int DEFAULT_MAX_TIMERS = 1000;
+
+    /** The timer that records for any name past the cap on the number of timers. */
+    public static final String OVERFLOW_TIMER = "MetricsRegistry.overflow";
+
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+    private final ConcurrentMap<String, Counter> counters =
+            new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    private final List<MetricsReporter> reporters = new CopyOnWriteArrayList<MetricsReporter>();
+
+    private volatile int maxTimers = DEFAULT_MAX_TIMERS;
+    private volatile long intervalStart = System.currentTimeMillis();
+    private ScheduledExecutorService scheduler;
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param name
+     * @return the timer with the given name, created if needed, or the
+     *         OVERFLOW_TIMER if there are already maxTimers timers
+     */
+    public Timer timer(String name) {
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            if (timers.size() >= maxTimers && !OVERFLOW_TIMER.equals(name)) {
+                return timer(OVERFLOW_TIMER);
+            }
+            Timer created = new Timer();
+            timer = timers.putIfAbsent(name, created);
+            if (timer == null) {
+                timer = created;
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * @param name
+     * @return the counter with the given name, created if needed
+     */
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public int getMaxTimers() {
+        return maxTimers;
+    }
+
+    /**
+     * @param maxTimers
+     *            the number of named timers to keep, after which timings for
+     *            new names are recorded by the OVERFLOW_TIMER
+     */
+    public void setMaxTimers(int maxTimers) {
+        if (maxTimers < 1) {
+            throw new IllegalArgumentException("maxTimers must be positive: " + maxTimers);
+        }
+        this.maxTimers = maxTimers;
+    }
+
+    /**
+     * Register a gauge, replacing any gauge with the same name.
+     * 
+     * @param name
+     * @param gauge
+     */
+    public void register(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public void unregister(String name) {
+        gauges.remove(name);
+    }
+
+    public void addReporter(MetricsReporter reporter) {
+        reporters.add(reporter);
+    }
+
+    public void removeReporter(MetricsReporter reporter) {
+        reporters.remove(reporter);
+    }
+
+    /**
+     * Take a snapshot of all the metrics without resetting them.
+     * 
+     * @return
+     */
+    public MetricsSnapshot snapshot() {
+        return takeSnapshot(false);
+    }
+
+    /**
+     * Take a snapshot of all the metrics, reset the timers and counters and
+     * pass the snapshot to the reporters. Timers that recorded nothing since
+     * the last report are dropped. Called every reporting interval once
+     * started; can also be called directly, for instance at shutdown.
+     * 
+     * @return the snapshot
+     */
+    public MetricsSnapshot report() {
+        MetricsSnapshot snapshot = takeSnapshot(true);
+        for (MetricsReporter reporter : reporters) {
+            try {
+                reporter.report(snapshot);
+            } catch (RuntimeException e) {
+                logger.error("Metrics reporter " + reporter + " failed: " + e.getMessage(), e);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Start reporting every periodMillis, on a daemon thread. Does nothing if
+     * already started.
+     * 
+     * @param periodMillis
+     */
+    public synchronized void start(long periodMillis) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MetricsRegistry reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        logger.info("Reporting metrics every " + periodMillis + " ms.");
+    }
+
+    /**
+     * Stop the periodic reporting started by start.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private MetricsSnapshot takeSnapshot(boolean reset) {
+        long now = System.currentTimeMillis();
+        Map<String, HistogramSnapshot> timerValues = new TreeMap<String, HistogramSnapshot>();
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            Timer timer = entry.getValue();
+            HistogramSnapshot value = reset ? timer.getSnapshotAndReset() : timer.getSnapshot();
+            if (reset && value.getCount() == 0) {
+                timers.remove(entry.getKey(), timer);
+            } else {
+                timerValues.put(entry.getKey(), value);
+            }
+        }
+        Map<String, Long> counterValues = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            counterValues.put(entry.getKey(), reset ? counter.getCountAndReset() : counter
+                    .getCount());
+        }
+        Map<String, Long> gaugeValues = new TreeMap<String, Long>();
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            try {
+                gaugeValues.put(entry.getKey(), entry.getValue().getValue());
+            } catch (RuntimeException e) {
+                logger.warn("Gauge " + entry.getKey() + " failed: " + e.getMessage());
+            }
+        }
+        MetricsSnapshot snapshot = new MetricsSnapshot(intervalStart, now, timerValues,
+                counterValues, gaugeValues);
+        if (reset) {
+            intervalStart = now;
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.util;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The values of all the metrics of a MetricsRegistry at the end of a
+ * reporting interval. Timers and counters cover the interval since the
+ * previous snapshot, gauges are read when the snapshot is taken. Metrics are
+ * sorted by name.
+ * 
+ */
+public final class MetricsSnapshot {
+
+    private final long intervalStart;
+    private final long takenAt;
+    private final Map<String, HistogramSnapshot> timers;
+    private final Map<String, Long> counters;
+    private final Map<String, Long> gauges;
+
+    MetricsSnapshot(long intervalStart, long takenAt, Map<String, HistogramSnapshot> timers,
+            Map<String, Long> counters, Map<String, Long> gauges) {
+        this.intervalStart = intervalStart;
+        this.takenAt = takenAt;
+        this.timers = Collections.unmodifiableMap(timers);
+        this.counters = Collections.unmodifiableMap(counters);
+        this.gauges = Collections.unmodifiableMap(gauges);
+    }
+
+    /**
+     * @return the time (millis) the interval covered by this snapshot started
+     */
+    public long getIntervalStart() {
+        return intervalStart;
+    }
+
+    /**
+     * @return the time (millis) this snapshot was taken
+     */
+    public long getTakenAt() {
+        return takenAt;
+    }
+
+    /**
+     * @return the durations recorded by each timer, in microseconds
+     */
+    public Map<String, HistogramSnapshot> getTimers() {
+        return timers;
+    }
+
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    public Map<String, Long> getGauges() {
+        return gauges;
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded, preallocated ring buffer of (id, duration) events that are
+ * written to a log4j logger by a background thread, so that the threads
+ * being measured neither build the log line nor wait on the appender. Any
+ * number of threads can offer events concurrently; offering an event is a
+ * compare-and-set and two array stores, without locking or allocation.
+ * 
+ * When the buffer is full the OverflowPolicy decides what happens to a new
+ * event: it is dropped (and counted, see getDroppedCount), the caller waits
+ * for space, or the caller writes it synchronously. A caller never waits
+ * while the writer thread is not running (before start or after stop, which
+ * a shutdown hook may call); it writes the event itself instead.
+ * 
+ * An idle writer thread parks for longer and longer, up to 100 ms, before it
+ * looks at the buffer again; a caller that finds the buffer full, and stop,
+ * wake it up.
+ * 
+ * The slot sequence scheme is the bounded multi-producer queue of Dmitry
+ * Vyukov: each slot carries the position it may next be written at, or read
+ * at plus one.
+ * 
+ */
+public class PerformanceLogRingBuffer {
+
+    /**
+     * What offer does with an event when the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** discard the event and count it as dropped */
+        DROP,
+        /** wait until the writer has made space */
+        BLOCK,
+        /** write the event on the calling thread */
+        CALLER_WRITES
+    }
+
+    /**
+     * The duration of events that carry a complete message instead of an id.
+     */
+    static final long NO_DURATION = Long.MIN_VALUE;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static Logger logger = Logger.getLogger(PerformanceLogRingBuffer.class.getName());
+
+    private final Logger target;
+    private final Level level;
+    private final OverflowPolicy overflowPolicy;
+
+    private final int mask;
+    private final String[] ids;
+    private final long[] durations;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    // only written by the writer thread
+    private volatile long head;
+
+    private volatile boolean running;
+    private volatile Thread writer;
+
+    /**
+     * @param target
+     *            - the logger the events are written to
+     * @param level
+     * @param capacity
+     *            - the number of events the buffer holds, rounded up to a
+     *            power of two
+     * @param overflowPolicy
+     */
+    public PerformanceLogRingBuffer(Logger target, Level level, int capacity,
+            OverflowPolicy overflowPolicy) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30: "
+                    + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.target = target;
+        this.level = level;
+        this.overflowPolicy = overflowPolicy;
+        this.mask = size - 1;
+        this.ids = new String[size];
+        this.durations = new long[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    public synchronized void start() {
+        if (writer != null) {
+            return;
+        }
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long idleNanos = IDLE_PARK_NANOS;
+                while (running) {
+                    if (drain() == 0) {
+                        LockSupport.parkNanos(PerformanceLogRingBuffer.this, idleNanos);
+                        idleNanos = Math.min(idleNanos * 2, MAX_IDLE_PARK_NANOS);
+                    } else {
+                        idleNanos = IDLE_PARK_NANOS;
+                    }
+                }
+                drain();
+            }
+        }, "PerformanceLogger writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop the writer thread after it has written the events offered so far.
+     * 
+     * @throws InterruptedException
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join();
+        writer = null;
+    }
+
+    /**
+     * Offer an event to be written as "id, duration".
+     * 
+     * @param id
+     * @param duration
+     */
+    public void offer(String id, long duration) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (available < 0) {
+                // the writer has not read the event offered a lap ago
+                Thread thread = writer;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+                if (overflowPolicy == OverflowPolicy.DROP) {
+                    dropped.incrementAndGet();
+                    return;
+                } else if (overflowPolicy == OverflowPolicy.CALLER_WRITES || !running) {
+                    // with no writer running nobody would make space
+                    write(id, duration);
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        ids[index] = id;
+        durations[index] = duration;
+        sequences.set(index, position + 1);
+    }
+
+    /**
+     * Offer a complete message.
+     * 
+     * @param message
+     */
+    public void offer(String message) {
+        offer(message, NO_DURATION);
+    }
+
+    /**
+     * Write the events offered so far. Only called by the writer thread.
+     * 
+     * @return the number of events written
+     */
+    private int drain() {
+        int count = 0;
+        while (true) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                return count;
+            }
+            String id = ids[index];
+            long duration = durations[index];
+            ids[index] = null;
+            sequences.set(index, head + mask + 1);
+            head++;
+            write(id, duration);
+            count++;
+        }
+    }
+
+    private void write(String id, long duration) {
+        try {
+            if (duration == NO_DURATION) {
+                target.log(level, id);
+            } else {
+                target.log(level, id + ", " + duration);
+            }
+            written.incrementAndGet();
+        } catch (RuntimeException e) {
+            logger.error("Unable to write performance log event: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the number of events discarded because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of events written
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of events waiting to be written
+     */
+    public long getPendingCount() {
+        return tail.get() - head;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+}
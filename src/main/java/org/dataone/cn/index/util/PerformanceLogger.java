@@ -1,46 +1,171 @@
-package org.dataone.cn.index.util;
-
-import org.apache.log4j.Level;
-import org.apache.log4j.Logger;
-import org.dataone.configuration.Settings;
-
-public class PerformanceLogger {
-
-    static final Logger defaultLogger = Logger.getLogger(PerformanceLogger.class);
-	
-    private static PerformanceLogger self = new PerformanceLogger(); // non-lazy singleton 
-    private static final Level LOGGING_LEVEL = Level.INFO;
-    private static Logger perfLogger;
-    private static boolean enabled;
-
-    
-    private PerformanceLogger() {
-        enabled = Settings.getConfiguration().getBoolean("dataone.indexing.performance.logging.enabled", Boolean.FALSE);
-        defaultLogger.warn("Setting up PerformanceLogger: set to enabled? " + enabled);
-        
-        perfLogger = Logger.getLogger("performanceStats");
-        
-        if (perfLogger == null) {
-            defaultLogger.error("Unable to create Logger for performanceStats appender!");
-            enabled = false;
-        }
-    }
-    
-    public static PerformanceLogger getInstance() {
-        return self;
-    }
-    
-    public void log(String id, long milliseconds) {
-        if (enabled)
-            log("" + id + ", " + milliseconds);
-    }
-    
-    public void log(String message) {
-        if (enabled)
-            perfLogger.log(LOGGING_LEVEL, message);
-    }
-    
-    public boolean isLogEnabled() {
-    	return enabled;
-    }
-}
+package org.dataone.cn.index.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.dataone.configuration.Settings;
+
+/**
+ * When dataone.indexing.performance.logging.enabled is set, writes each
+ * timing as an "id, millis" line to the performanceStats logger and records
+ * it into the shared MetricsRegistry, which reports percentiles of every
+ * timer to the same logger every
+ * dataone.indexing.performance.metrics.reportSeconds (default 60, 0 disables
+ * the summaries). Setting dataone.indexing.performance.metrics.enabled to
+ * false keeps the per-timing lines but skips the registry, and
+ * dataone.indexing.performance.metrics.maxTimers caps the number of timers it
+ * keeps (default MetricsRegistry.DEFAULT_MAX_TIMERS). With logging disabled
+ * nothing is recorded.
+ * 
+ * With dataone.indexing.performance.logging.async also set, timings are
+ * offered to a PerformanceLogRingBuffer of
+ * dataone.indexing.performance.logging.async.capacity events (default 8192)
+ * and written by its background thread instead of the calling thread. The
+ * dataone.indexing.performance.logging.async.overflow setting (DROP, BLOCK or
+ * CALLER_WRITES, default DROP) decides what happens when the buffer is full;
+ * dropped events are counted in the PerformanceLogger.async.dropped gauge.
+ */
+public class PerformanceLogger {
+
+    static final Logger defaultLogger = Logger.getLogger(PerformanceLogger.class);
+	
+    private static final Level LOGGING_LEVEL = Level.INFO;
+    private static final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private static PerformanceLogger self = new PerformanceLogger(); // non-lazy singleton 
+    private static Logger perfLogger;
+    private static boolean enabled;
+    private static boolean metricsEnabled;
+    private static PerformanceLogRingBuffer buffer;
+
+    
+    private PerformanceLogger() {
+        enabled = Settings.getConfiguration().getBoolean("dataone.indexing.performance.logging.enabled", Boolean.FALSE);
+        defaultLogger.warn("Setting up PerformanceLogger: set to enabled? " + enabled);
+        
+        perfLogger = Logger.getLogger("performanceStats");
+        
+        if (perfLogger == null) {
+            defaultLogger.error("Unable to create Logger for performanceStats appender!");
+            enabled = false;
+        }
+        if (enabled && Settings.getConfiguration().getBoolean(
+                "dataone.indexing.performance.logging.async", Boolean.FALSE)) {
+            startBuffer();
+        }
+        metricsEnabled = enabled && Settings.getConfiguration().getBoolean(
+                "dataone.indexing.performance.metrics.enabled", Boolean.TRUE);
+        if (metricsEnabled) {
+            int maxTimers = Settings.getConfiguration().getInt(
+                    "dataone.indexing.performance.metrics.maxTimers",
+                    MetricsRegistry.DEFAULT_MAX_TIMERS);
+            try {
+                metrics.setMaxTimers(maxTimers);
+            } catch (IllegalArgumentException e) {
+                defaultLogger.error("Ignoring performance metrics maxTimers: " + e.getMessage());
+            }
+        }
+        long reportSeconds = Settings.getConfiguration().getLong(
+                "dataone.indexing.performance.metrics.reportSeconds", 60L);
+        if (metricsEnabled && reportSeconds > 0) {
+            metrics.addReporter(new LogMetricsReporter(perfLogger, LOGGING_LEVEL));
+            metrics.start(TimeUnit.SECONDS.toMillis(reportSeconds));
+        }
+    }
+    
+    private void startBuffer() {
+        int capacity = Settings.getConfiguration().getInt(
+                "dataone.indexing.performance.logging.async.capacity", 8192);
+        String overflow = Settings.getConfiguration().getString(
+                "dataone.indexing.performance.logging.async.overflow",
+                PerformanceLogRingBuffer.OverflowPolicy.DROP.name());
+        PerformanceLogRingBuffer.OverflowPolicy overflowPolicy;
+        try {
+            overflowPolicy = PerformanceLogRingBuffer.OverflowPolicy.valueOf(overflow.trim()
+                    .toUpperCase());
+        } catch (IllegalArgumentException e) {
+            defaultLogger.error("Unknown performance logging overflow policy " + overflow
+                    + ", using DROP");
+            overflowPolicy = PerformanceLogRingBuffer.OverflowPolicy.DROP;
+        }
+        final PerformanceLogRingBuffer ringBuffer;
+        try {
+            ringBuffer = new PerformanceLogRingBuffer(perfLogger, LOGGING_LEVEL, capacity,
+                    overflowPolicy);
+        } catch (IllegalArgumentException e) {
+            defaultLogger.error("Unable to set up asynchronous performance logging: "
+                    + e.getMessage());
+            return;
+        }
+        ringBuffer.start();
+        metrics.register("PerformanceLogger.async.dropped", new Gauge() {
+            @Override
+            public long getValue() {
+                return ringBuffer.getDroppedCount();
+            }
+        });
+        metrics.register("PerformanceLogger.async.pending", new Gauge() {
+            @Override
+            public long getValue() {
+                return ringBuffer.getPendingCount();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ringBuffer.stop();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "PerformanceLogger shutdown"));
+        buffer = ringBuffer;
+        defaultLogger.warn("PerformanceLogger writing asynchronously, capacity "
+                + ringBuffer.getCapacity() + ", overflow " + overflowPolicy);
+    }
+
+    public static PerformanceLogger getInstance() {
+        return self;
+    }
+    
+    public void log(String id, long milliseconds) {
+        if (!enabled)
+            return;
+        if (metricsEnabled)
+            metrics.timer(id).record(milliseconds, TimeUnit.MILLISECONDS);
+        if (buffer != null)
+            buffer.offer(id, milliseconds);
+        else
+            perfLogger.log(LOGGING_LEVEL, id + ", " + milliseconds);
+    }
+    
+    public void log(String message) {
+        if (!enabled)
+            return;
+        if (buffer != null)
+            buffer.offer(message);
+        else
+            perfLogger.log(LOGGING_LEVEL, message);
+    }
+    
+    public boolean isLogEnabled() {
+    	return enabled;
+    }
+
+    /**
+     * @return the buffer timings are written through, or null when they are
+     *         written by the calling thread
+     */
+    public PerformanceLogRingBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the registry the timings are recorded into, for timers with
+     *         microsecond resolution, counters and gauges
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A named histogram of durations, in microseconds. See
+ * MetricsRegistry.timer.
+ * 
+ * <pre>
+ * long start = timer.start();
+ * ...
+ * timer.stop(start);
+ * </pre>
+ * 
+ */
+public final class Timer {
+
+    private final Histogram histogram = new Histogram();
+
+    Timer() {
+    }
+
+    /**
+     * @return the start time to pass to stop
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the time elapsed since start.
+     * 
+     * @param start
+     *            - a value returned by start
+     */
+    public void stop(long start) {
+        record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    public void record(long duration, TimeUnit unit) {
+        histogram.record(unit.toMicros(duration));
+    }
+
+    /**
+     * @return the durations, in microseconds, recorded since the last reset
+     */
+    public HistogramSnapshot getSnapshot() {
+        return histogram.snapshot();
+    }
+
+    HistogramSnapshot getSnapshotAndReset() {
+        return histogram.snapshotAndReset();
+    }
+}
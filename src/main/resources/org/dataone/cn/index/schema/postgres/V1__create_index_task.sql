@@ -0,0 +1,24 @@
+-- index_task schema version 1
+--
+-- The index_task table and id sequence as originally generated by hibernate
+-- (generateDdl=true) from the IndexTask entity. Databases created by an
+-- earlier release of d1_cn_index_common are already at this version.
+
+CREATE TABLE index_task (
+    id int8 NOT NULL,
+    dateSysMetaModified int8 NOT NULL,
+    deleted bool NOT NULL,
+    formatId varchar(255),
+    nextExecution int8 NOT NULL,
+    objectPath TEXT,
+    pid TEXT NOT NULL,
+    priority int4 NOT NULL,
+    status varchar(255),
+    sysMetadata TEXT,
+    taskModifiedDate int8 NOT NULL,
+    tryCount int4 NOT NULL,
+    version int4 NOT NULL,
+    PRIMARY KEY (id)
+);
+
+CREATE SEQUENCE hibernate_sequence;
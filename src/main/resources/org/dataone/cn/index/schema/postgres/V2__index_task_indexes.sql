@@ -0,0 +1,20 @@
+-- index_task schema version 2
+--
+-- Secondary indexes matching the IndexTaskRepository finders:
+--   idx_index_task_queue - findByStatusOrderByPriorityAscTaskModifiedDateAsc,
+--                          the TryCountLessThan variant, the keyset page
+--                          finders and claimNewTasks
+--   idx_index_task_retry - findByStatusAndNextExecutionLessThan and the
+--                          TryCountLessThan variant
+--   idx_index_task_pid   - findByPid, findByPidAndStatus
+--
+-- On a large, live queue table consider running these statements by hand
+-- with CREATE INDEX CONCURRENTLY (outside of a transaction) instead.
+
+CREATE INDEX idx_index_task_queue ON index_task (status, priority, taskModifiedDate, id);
+
+CREATE INDEX idx_index_task_retry ON index_task (status, nextExecution, tryCount);
+
+CREATE INDEX idx_index_task_pid ON index_task (pid);
+
+ANALYZE index_task;
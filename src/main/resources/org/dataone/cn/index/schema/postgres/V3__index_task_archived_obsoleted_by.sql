@@ -0,0 +1,25 @@
+-- index_task schema version 3
+--
+-- Adds the archived and obsoletedBy columns captured from the system metadata
+-- when an IndexTask is created, and fills them in for existing rows from the
+-- serialized system metadata. IndexTask.isDeleteTask and the
+-- findDeleteTasksByStatus finder rely on these columns instead of parsing
+-- sysMetadata.
+
+ALTER TABLE index_task ADD COLUMN archived bool DEFAULT false NOT NULL;
+
+ALTER TABLE index_task ADD COLUMN obsoletedBy TEXT;
+
+UPDATE index_task SET
+    archived = coalesce((xpath('/*/archived/text()', XMLPARSE(DOCUMENT sysMetadata)))[1]::text = 'true', false),
+    obsoletedBy = (xpath('/*/obsoletedBy/text()', XMLPARSE(DOCUMENT sysMetadata)))[1]::text
+WHERE sysMetadata IS NOT NULL;
+
+-- removal tasks are a small part of the queue, a partial index keeps
+-- findDeleteTasksByStatus cheap without indexing every row
+CREATE INDEX idx_index_task_removal ON index_task (status, priority, taskModifiedDate, id)
+    WHERE deleted OR archived;
+
+CREATE INDEX idx_index_task_obsoleted_by ON index_task (obsoletedBy);
+
+ANALYZE index_task;
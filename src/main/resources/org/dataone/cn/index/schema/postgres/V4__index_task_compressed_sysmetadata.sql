@@ -0,0 +1,8 @@
+-- index_task schema version 4
+--
+-- Adds the sysMetadataCompressed column used by the compressed system
+-- metadata storage mode (dataone.indexing.task.sysmeta.compressed=true).
+-- A row stores its system metadata either as text in sysMetadata or
+-- compressed in sysMetadataCompressed, existing rows are read as they are.
+
+ALTER TABLE index_task ADD COLUMN sysMetadataCompressed bytea;
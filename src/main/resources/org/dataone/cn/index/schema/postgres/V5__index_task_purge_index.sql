@@ -0,0 +1,10 @@
+-- index_task schema version 5
+--
+-- Index for IndexTaskPurger, which selects the oldest COMPLETE (and
+-- optionally FAILED) tasks by taskModifiedDate:
+--   idx_index_task_purge - findIdsByStatusModifiedBefore
+--
+-- On a large, live queue table consider running this statement by hand
+-- with CREATE INDEX CONCURRENTLY (outside of a transaction) instead.
+
+CREATE INDEX idx_index_task_purge ON index_task (status, taskModifiedDate);
@@ -0,0 +1,25 @@
+-- index_task schema version 6
+--
+-- Stores the task status as a smallint code instead of text (see
+-- IndexTaskStatus): 1 NEW, 2 IN PROCESS, 3 COMPLETE, 4 FAILED.
+-- The indexes on status (idx_index_task_queue, idx_index_task_retry,
+-- idx_index_task_purge) are rebuilt by the ALTER TABLE statement.
+--
+-- Rows with any other status would be left without one, so the
+-- statement fails on them instead; correct or delete such rows first:
+--   SELECT status, count(*) FROM index_task
+--   WHERE status NOT IN ('NEW', 'IN PROCESS', 'COMPLETE', 'FAILED') GROUP BY status;
+--
+-- The table is rewritten while holding an exclusive lock, run this during
+-- a maintenance window on a large queue table.
+
+ALTER TABLE index_task ALTER COLUMN status TYPE smallint USING
+    CASE status
+        WHEN 'NEW' THEN 1
+        WHEN 'IN PROCESS' THEN 2
+        WHEN 'COMPLETE' THEN 3
+        WHEN 'FAILED' THEN 4
+        ELSE CAST('unknown index_task status ' || status AS smallint)
+    END;
+
+ANALYZE index_task;
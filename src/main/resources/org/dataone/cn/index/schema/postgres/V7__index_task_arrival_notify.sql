@@ -0,0 +1,20 @@
+-- index_task schema version 7
+--
+-- Notifies listeners on the index_task_new channel when a NEW task is
+-- inserted or a task returns to NEW (status code 1, see IndexTaskStatus).
+-- Notifications with the same channel and payload are delivered once per
+-- transaction, after it commits, so a bulk enqueue sends one notification.
+-- Read by PostgresIndexTaskArrivalChannel.
+
+CREATE OR REPLACE FUNCTION index_task_notify_new() RETURNS trigger AS $$
+BEGIN
+    PERFORM pg_notify('index_task_new', '');
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER index_task_notify_new
+    AFTER INSERT OR UPDATE OF status ON index_task
+    FOR EACH ROW
+    WHEN (NEW.status = 1)
+    EXECUTE PROCEDURE index_task_notify_new();
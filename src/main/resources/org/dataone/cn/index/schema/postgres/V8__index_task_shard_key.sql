@@ -0,0 +1,21 @@
+-- index_task schema version 8
+--
+-- Adds the shard key used to partition the queue between indexing workers
+-- (see IndexTaskShardRange): the first four bytes of the MD5 digest of the
+-- pid, modulo 1024. The expression below matches IndexTaskShardRange.shardKey
+-- for databases with UTF8 encoding.
+--
+-- Existing rows are assigned their shard key by the UPDATE statement. Tasks
+-- inserted by components that predate this version get shard key 0; repeat
+-- the UPDATE (restricted to status = 1) once all of them are upgraded.
+--
+-- No index is added: shard-filtered queue finders and claims walk
+-- idx_index_task_queue in queue order and filter on the shard key, which
+-- keeps the ordering within each worker's slice.
+
+ALTER TABLE index_task ADD COLUMN shardKey integer NOT NULL DEFAULT 0;
+
+UPDATE index_task
+    SET shardKey = CAST(CAST('x' || substr(md5(pid), 1, 8) AS bit(32)) AS integer) & 1023;
+
+ANALYZE index_task;
@@ -0,0 +1,36 @@
+-- index_task schema version 9
+--
+-- Moves the serialized system metadata (sysMetadata, sysMetadataCompressed)
+-- out of index_task into index_task_payload, which shares the primary key
+-- of index_task (see IndexTaskPayload). Status updates then rewrite the
+-- narrow index_task row only, and queue scans do not read the payload.
+--
+-- The payload row is inserted before its task, so the foreign key runs from
+-- index_task to index_task_payload. IndexTaskRepository deletes the payload
+-- together with the task; payload rows left behind by tasks deleted by hand
+-- can be found with:
+--   SELECT p.id FROM index_task_payload p
+--   WHERE NOT EXISTS (SELECT 1 FROM index_task t WHERE t.id = p.id);
+--
+-- Stop the indexing components before running this script; the copy and
+-- the ALTER TABLE statements hold an exclusive lock on index_task. Dropping
+-- the columns does not return their space, run VACUUM FULL index_task (or
+-- pg_repack) afterwards to shrink the table.
+
+CREATE TABLE index_task_payload (
+    id int8 NOT NULL,
+    sysMetadata TEXT,
+    sysMetadataCompressed bytea,
+    PRIMARY KEY (id)
+);
+
+INSERT INTO index_task_payload (id, sysMetadata, sysMetadataCompressed)
+    SELECT id, sysMetadata, sysMetadataCompressed FROM index_task;
+
+ALTER TABLE index_task
+    ADD CONSTRAINT fk_index_task_payload FOREIGN KEY (id) REFERENCES index_task_payload (id),
+    DROP COLUMN sysMetadata,
+    DROP COLUMN sysMetadataCompressed;
+
+ANALYZE index_task_payload;
+ANALYZE index_task;
@@ -0,0 +1,116 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test;
+
+import org.dataone.cn.index.task.BackoffPolicy;
+import org.dataone.cn.index.task.ExponentialBackoffPolicy;
+import org.dataone.cn.index.task.LadderBackoffPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BackoffPolicyTest {
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    @Test
+    public void testLadder() {
+        BackoffPolicy ladder = new LadderBackoffPolicy();
+        Assert.assertEquals(BackoffPolicy.NO_BACKOFF, ladder.getDelay(0));
+        Assert.assertEquals(BackoffPolicy.NO_BACKOFF, ladder.getDelay(1));
+        Assert.assertEquals(20 * MINUTE, ladder.getDelay(2));
+        Assert.assertEquals(2 * HOUR, ladder.getDelay(3));
+        Assert.assertEquals(8 * HOUR, ladder.getDelay(4));
+        Assert.assertEquals(DAY, ladder.getDelay(5));
+        Assert.assertEquals(DAY, ladder.getDelay(7));
+        Assert.assertEquals(7 * DAY, ladder.getDelay(8));
+        Assert.assertEquals(7 * DAY, ladder.getDelay(100));
+
+        long now = System.currentTimeMillis();
+        Assert.assertEquals(BackoffPolicy.NO_BACKOFF, ladder.nextExecution(1, now, 5L));
+        Assert.assertEquals(now + 2 * HOUR, ladder.nextExecution(3, now, 5L));
+        Assert.assertEquals(now + 7 * DAY, ladder.nextExecution(50, now, null));
+    }
+
+    @Test
+    public void testExponentialWithCap() {
+        BackoffPolicy policy = new ExponentialBackoffPolicy(MINUTE, 2, HOUR, 0);
+        Assert.assertEquals(BackoffPolicy.NO_BACKOFF, policy.getDelay(1));
+        Assert.assertEquals(MINUTE, policy.getDelay(2));
+        Assert.assertEquals(2 * MINUTE, policy.getDelay(3));
+        Assert.assertEquals(32 * MINUTE, policy.getDelay(7));
+        Assert.assertEquals(HOUR, policy.getDelay(8));
+        Assert.assertEquals(8, policy.getLastStep());
+        Assert.assertEquals(HOUR, policy.getDelay(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testExponentialStepsAreBounded() {
+        // 1.2^64 is about 117000, enough for a minute to a day
+        BackoffPolicy policy = new ExponentialBackoffPolicy(MINUTE, 1.2, DAY, 0);
+        Assert.assertTrue(policy.getLastStep() <= 2 + ExponentialBackoffPolicy.MAX_STEPS);
+        Assert.assertEquals(DAY, policy.getDelay(policy.getLastStep()));
+        try {
+            new ExponentialBackoffPolicy(MINUTE, 1.01, DAY, 0);
+            Assert.fail("a multiplier of 1.01 needs hundreds of steps");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new ExponentialBackoffPolicy(MINUTE, 1.0000001, DAY, 0);
+            Assert.fail("a multiplier close to 1 needs millions of steps");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // a multiplier of 1 is a constant delay, one step
+        Assert.assertEquals(2, new ExponentialBackoffPolicy(MINUTE, 1, DAY, 0).getLastStep());
+    }
+
+    @Test
+    public void testJitter() {
+        BackoffPolicy policy = new ExponentialBackoffPolicy(HOUR, 2, DAY, 0.5);
+        long now = System.currentTimeMillis();
+        long earliest = Long.MAX_VALUE;
+        long latest = Long.MIN_VALUE;
+        for (long id = 0; id < 1000; id++) {
+            long next = policy.nextExecution(2, now, id);
+            Assert.assertTrue(next <= now + HOUR);
+            Assert.assertTrue(next >= now + HOUR / 2);
+            earliest = Math.min(earliest, next);
+            latest = Math.max(latest, next);
+            // stable for a task
+            Assert.assertEquals(next, policy.nextExecution(2, now, id));
+        }
+        // tasks that failed together are spread over the window
+        Assert.assertTrue(latest - earliest > HOUR / 3);
+
+        long next = policy.nextExecution(2, now, null);
+        Assert.assertTrue(next <= now + HOUR && next >= now + HOUR / 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidJitter() {
+        new LadderBackoffPolicy(1.5);
+    }
+}
@@ -1,7 +1,13 @@
 package org.dataone.cn.index.test;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 import org.dataone.cn.index.task.IgnoringIndexIdPool;
+import org.dataone.cn.index.task.IgnoringIndexIdRules;
+import org.dataone.configuration.Settings;
 import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
 import org.dataone.service.types.v2.SystemMetadata;
 import org.junit.Assert;
 import org.junit.Test;
@@ -23,4 +29,85 @@ public class IgnoringIndexIdPoolTest {
         Assert.assertFalse(IgnoringIndexIdPool.isNotIgnorePid(sysm));
     }
 
+    @Test
+    public void testRules() {
+        IgnoringIndexIdRules rules = new IgnoringIndexIdRules(Arrays.asList("OBJECT_FORMAT_LIST.1",
+                "test.", "test.sub."), Arrays.asList("doi:10.5063/F1XX", "test"),
+                Arrays.asList("http://www.example.org/ignored"));
+        Assert.assertTrue(rules.isIgnoredPid("OBJECT_FORMAT_LIST.1.1"));
+        Assert.assertTrue(rules.isIgnoredPid("OBJECT_FORMAT_LIST.1"));
+        Assert.assertFalse(rules.isIgnoredPid("OBJECT_FORMAT_LIST.2"));
+        Assert.assertFalse(rules.isIgnoredPid("OBJECT_FORMAT_LIST."));
+        Assert.assertTrue(rules.isIgnoredPid("test.sub.1"));
+        Assert.assertTrue(rules.isIgnoredPid("test.1"));
+        // exact pids only match the whole pid
+        Assert.assertTrue(rules.isIgnoredPid("test"));
+        Assert.assertFalse(rules.isIgnoredPid("tes"));
+        Assert.assertFalse(rules.isIgnoredPid("testing"));
+        Assert.assertTrue(rules.isIgnoredPid("doi:10.5063/F1XX"));
+        Assert.assertFalse(rules.isIgnoredPid("doi:10.5063/F1XX.1"));
+        Assert.assertFalse(rules.isIgnoredPid("doi:10.5063/F1X"));
+        Assert.assertFalse(rules.isIgnoredPid(""));
+        Assert.assertFalse(rules.isIgnoredPid(null));
+
+        Assert.assertTrue(rules.isIgnoredFormatId("http://www.example.org/ignored"));
+        Assert.assertFalse(rules.isIgnoredFormatId("http://www.example.org/ignored/2"));
+        Assert.assertFalse(rules.isIgnoredFormatId(null));
+        Assert.assertTrue(rules.isIgnored("foo", "http://www.example.org/ignored"));
+        Assert.assertTrue(rules.isIgnored("test.1", null));
+        Assert.assertFalse(rules.isIgnored("foo", "eml://ecoinformatics.org/eml-2.1.1"));
+
+        Assert.assertFalse(IgnoringIndexIdRules.NONE.isIgnored("OBJECT_FORMAT_LIST.1.1", null));
+    }
+
+    @Test
+    public void testSetRules() {
+        IgnoringIndexIdRules configured = IgnoringIndexIdPool.getRules();
+        try {
+            IgnoringIndexIdPool.setRules(new IgnoringIndexIdRules(Arrays.asList("ignored."),
+                    Collections.<String> emptyList(), Arrays.asList("ignored/format")));
+            Assert.assertFalse(IgnoringIndexIdPool.isNotIgnorePid("ignored.1"));
+            Assert.assertTrue(IgnoringIndexIdPool.isNotIgnorePid("OBJECT_FORMAT_LIST.1.1"));
+            Assert.assertFalse(IgnoringIndexIdPool.isNotIgnorePid("foo", "ignored/format"));
+            Assert.assertTrue(IgnoringIndexIdPool.isNotIgnorePid("foo", "other/format"));
+
+            SystemMetadata sysm = new SystemMetadata();
+            Identifier id = new Identifier();
+            id.setValue("foo");
+            sysm.setIdentifier(id);
+            Assert.assertTrue(IgnoringIndexIdPool.isNotIgnorePid(sysm));
+            ObjectFormatIdentifier formatId = new ObjectFormatIdentifier();
+            formatId.setValue("ignored/format");
+            sysm.setFormatId(formatId);
+            Assert.assertFalse(IgnoringIndexIdPool.isNotIgnorePid(sysm));
+        } finally {
+            IgnoringIndexIdPool.setRules(configured);
+        }
+    }
+
+    @Test
+    public void testReload() {
+        IgnoringIndexIdRules configured = IgnoringIndexIdPool.getRules();
+        try {
+            Settings.getConfiguration().setProperty("dataone.indexing.ignore.pidPrefixes",
+                    "reloaded., OBJECT_FORMAT_LIST.1");
+            Settings.getConfiguration().setProperty("dataone.indexing.ignore.pids",
+                    "urn:uuid:ignored");
+            IgnoringIndexIdPool.reload();
+            Assert.assertFalse(IgnoringIndexIdPool.isNotIgnorePid("reloaded.1"));
+            Assert.assertFalse(IgnoringIndexIdPool.isNotIgnorePid("OBJECT_FORMAT_LIST.1.1"));
+            Assert.assertFalse(IgnoringIndexIdPool.isNotIgnorePid("urn:uuid:ignored"));
+            Assert.assertTrue(IgnoringIndexIdPool.isNotIgnorePid("urn:uuid:ignored2"));
+
+            Settings.getConfiguration().clearProperty("dataone.indexing.ignore.pidPrefixes");
+            Settings.getConfiguration().clearProperty("dataone.indexing.ignore.pids");
+            IgnoringIndexIdPool.reload();
+            Assert.assertTrue(IgnoringIndexIdPool.isNotIgnorePid("reloaded.1"));
+            Assert.assertFalse(IgnoringIndexIdPool.isNotIgnorePid("OBJECT_FORMAT_LIST.1.1"));
+        } finally {
+            Settings.getConfiguration().clearProperty("dataone.indexing.ignore.pidPrefixes");
+            Settings.getConfiguration().clearProperty("dataone.indexing.ignore.pids");
+            IgnoringIndexIdPool.setRules(configured);
+        }
+    }
 }
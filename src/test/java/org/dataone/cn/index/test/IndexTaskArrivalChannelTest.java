@@ -0,0 +1,301 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.cn.index.task.IndexTaskArrivalChannel;
+import org.dataone.cn.index.task.IndexTaskRepository;
+import org.dataone.cn.index.task.LocalIndexTaskArrivalChannel;
+import org.dataone.cn.index.task.PostgresIndexTaskArrivalChannel;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "test-context.xml" })
+public class IndexTaskArrivalChannelTest {
+
+    @Autowired
+    private IndexTaskRepository repo;
+
+    @Autowired
+    private IndexTaskArrivalChannel channel;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Test
+    public void testAwaitTimesOutWithoutArrivals() throws Exception {
+        long generation = channel.getGeneration();
+        Assert.assertFalse(channel.awaitArrival(generation, 100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testWorkerWokenByNewTask() throws Exception {
+        long generation = channel.getGeneration();
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                repo.save(newTask());
+            }
+        });
+        long start = System.currentTimeMillis();
+        producer.start();
+        Assert.assertTrue(channel.awaitArrival(generation, 10, TimeUnit.SECONDS));
+        Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+        producer.join();
+    }
+
+    @Test
+    public void testNotifiedAfterCommitOnly() throws Exception {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        final long before = channel.getGeneration();
+        transaction.execute(new TransactionCallbackWithoutResult() {
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                repo.save(newTask());
+                repo.save(newTask());
+                Assert.assertEquals(before, channel.getGeneration());
+            }
+        });
+        Assert.assertEquals(before + 1, channel.getGeneration());
+
+        transaction.execute(new TransactionCallbackWithoutResult() {
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                repo.save(newTask());
+                status.setRollbackOnly();
+            }
+        });
+        Assert.assertEquals(before + 1, channel.getGeneration());
+    }
+
+    @Test
+    public void testBulkMarkNewNotifies() throws Exception {
+        IndexTask task = newTask();
+        task.setStatus(IndexTask.STATUS_IN_PROCESS);
+        task = repo.save(task);
+        long generation = channel.getGeneration();
+        repo.markNew(Collections.singletonList(task.getId()), System.currentTimeMillis());
+        Assert.assertTrue(channel.awaitArrival(generation, 0, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * The postgres listener reads notifications through the commons-dbcp
+     * pooled datasource of postgres-datasource.xml, over a driver whose
+     * connections implement PGConnection but not Connection.unwrap. The first
+     * poll fails as a dropped connection would; the listener reconnects and
+     * delivers the notification.
+     */
+    @Test
+    public void testPostgresListenerThroughPooledDataSource() throws Exception {
+        FakePostgresDriver.notificationPolls.set(0);
+        FakePostgresDriver.failFirstPoll.set(true);
+        BasicDataSource dataSource = new BasicDataSource();
+        dataSource.setDriverClassName(FakePostgresDriver.class.getName());
+        dataSource.setUrl(FakePostgresDriver.URL);
+        dataSource.setAccessToUnderlyingConnectionAllowed(true);
+
+        PostgresIndexTaskArrivalChannel postgresChannel = new PostgresIndexTaskArrivalChannel();
+        postgresChannel.setDataSource(dataSource);
+        postgresChannel.setPollMillis(10);
+        postgresChannel.setReconnectMillis(10);
+        long generation = LocalIndexTaskArrivalChannel.getInstance().getGeneration();
+        postgresChannel.start();
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (FakePostgresDriver.notificationPolls.get() < 3
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // the failed poll, then a delivered notification and an empty poll
+            Assert.assertTrue(FakePostgresDriver.notificationPolls.get() >= 3);
+            Assert.assertFalse(FakePostgresDriver.failFirstPoll.get());
+            Assert.assertTrue(postgresChannel.getGeneration() >= generation + 3);
+        } finally {
+            postgresChannel.stop();
+            dataSource.close();
+        }
+    }
+
+    /**
+     * The postgres listener of postgres-datasource.xml, on an unpooled
+     * datasource, connects only once a worker waits for tasks.
+     */
+    @Test
+    public void testPostgresListenerStartsWhenAwaited() throws Exception {
+        FakePostgresDriver.notificationPolls.set(0);
+        FakePostgresDriver.failFirstPoll.set(false);
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(FakePostgresDriver.URL);
+
+        PostgresIndexTaskArrivalChannel postgresChannel = new PostgresIndexTaskArrivalChannel();
+        postgresChannel.setDataSource(dataSource);
+        postgresChannel.setPollMillis(10);
+        try {
+            Thread.sleep(100);
+            Assert.assertEquals(0, FakePostgresDriver.notificationPolls.get());
+
+            long generation = postgresChannel.getGeneration();
+            Assert.assertTrue(postgresChannel.awaitArrival(generation, 10, TimeUnit.SECONDS));
+            Assert.assertTrue(FakePostgresDriver.notificationPolls.get() > 0);
+        } finally {
+            postgresChannel.stop();
+        }
+        // not restarted by a worker after stop
+        Thread.sleep(50);
+        int polls = FakePostgresDriver.notificationPolls.get();
+        postgresChannel.awaitArrival(postgresChannel.getGeneration(), 50, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(polls, FakePostgresDriver.notificationPolls.get());
+    }
+
+    private IndexTask newTask() {
+        IndexTask task = new IndexTask();
+        task.setPid("arrival-" + UUID.randomUUID().toString());
+        return task;
+    }
+
+    /**
+     * A JDBC driver whose connections are PGConnections that accept any
+     * statement and return one notification on every other poll.
+     */
+    public static class FakePostgresDriver implements Driver {
+
+        static final String URL = "jdbc:fakepostgresql:arrivals";
+
+        static final AtomicInteger notificationPolls = new AtomicInteger();
+        static final AtomicBoolean failFirstPoll = new AtomicBoolean();
+
+        static {
+            try {
+                DriverManager.registerDriver(new FakePostgresDriver());
+            } catch (SQLException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {
+                    Connection.class, PGConnection.class }, new InvocationHandler() {
+                private boolean closed;
+
+                public Object invoke(Object proxy, Method method, Object[] args)
+                        throws SQLException {
+                    String name = method.getName();
+                    if (name.equals("getNotifications")) {
+                        if (failFirstPoll.compareAndSet(true, false)) {
+                            notificationPolls.incrementAndGet();
+                            throw new SQLException("connection reset");
+                        }
+                        return notificationPolls.incrementAndGet() % 2 == 0 ? new PGNotification[1]
+                                : new PGNotification[0];
+                    } else if (name.equals("createStatement")) {
+                        return Proxy.newProxyInstance(getClass().getClassLoader(),
+                                new Class<?>[] { Statement.class }, new InvocationHandler() {
+                                    public Object invoke(Object statement, Method method,
+                                            Object[] args) {
+                                        return defaultValue(method.getReturnType());
+                                    }
+                                });
+                    } else if (name.equals("close")) {
+                        closed = true;
+                        return null;
+                    } else if (name.equals("isClosed")) {
+                        return closed;
+                    } else if (name.equals("getAutoCommit")) {
+                        return true;
+                    } else if (name.equals("equals")) {
+                        return proxy == args[0];
+                    } else if (name.equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    } else if (name.equals("toString")) {
+                        return "FakePostgresConnection";
+                    }
+                    return defaultValue(method.getReturnType());
+                }
+            });
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) {
+                return Boolean.FALSE;
+            } else if (type == int.class) {
+                return Integer.valueOf(0);
+            } else if (type == long.class) {
+                return Long.valueOf(0);
+            }
+            return null;
+        }
+
+        public boolean acceptsURL(String url) {
+            return url != null && url.startsWith(URL);
+        }
+
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
@@ -25,27 +25,42 @@ package org.dataone.cn.index.test;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
+import javax.sql.DataSource;
+
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.dataone.exceptions.MarshallingException;
 import org.apache.log4j.Logger;
+import org.dataone.cn.index.task.BackoffPolicy;
+import org.dataone.cn.index.task.ExponentialBackoffPolicy;
 import org.dataone.cn.index.task.IndexTask;
+import org.dataone.cn.index.task.IndexTaskQueueIterator;
+import org.dataone.cn.index.task.IndexTaskQueueKey;
+import org.dataone.cn.index.task.IndexTaskQueueStatistics;
+import org.dataone.cn.index.task.IndexTaskQueueStatisticsCache;
 import org.dataone.cn.index.task.IndexTaskRepository;
-import org.dataone.service.types.v1.Checksum;
+import org.dataone.cn.index.task.IndexTaskShardRange;
+import org.dataone.cn.index.task.IndexTaskSummary;
 import org.dataone.service.types.v1.Identifier;
-import org.dataone.service.types.v1.ObjectFormatIdentifier;
-import org.dataone.service.types.v1.Subject;
 import org.dataone.service.types.v2.SystemMetadata;
 import org.dataone.service.util.TypeMarshaller;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.orm.hibernate3.HibernateOptimisticLockingFailureException;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
@@ -61,6 +76,12 @@ public class IndexTaskJpaRepositoryTest {
     @Autowired
     private IndexTaskRepository repo;
 
+    @Autowired
+    private IndexTaskQueueStatisticsCache statisticsCache;
+
+    @Autowired
+    private DataSource dataSource;
+
     @Test
     public void testRepositoryInjection() {
         Assert.assertNotNull(repo);
@@ -294,11 +315,11 @@ public class IndexTaskJpaRepositoryTest {
     @Test
     public void testFindByPidAndStatusQuery() {
         String pidValue = "find by pid:" + UUID.randomUUID().toString();
-        String status = "TEST-STATUS";
+        String status = IndexTask.STATUS_COMPLETE;
         saveIndexTaskWithStatus(pidValue, status);
 
         String pidValue2 = "find by pid:" + UUID.randomUUID().toString();
-        String status2 = "TEST-STATUS2";
+        String status2 = IndexTask.STATUS_FAILED;
         saveIndexTaskWithStatus(pidValue2, status2);
 
         List<IndexTask> itList = repo.findByPidAndStatus(pidValue, status);
@@ -311,12 +332,13 @@ public class IndexTaskJpaRepositoryTest {
 
     @Test
     public void testFindByStatusAndNextExection() {
+        repo.deleteAll();
         String pidValue = "find by pid:" + UUID.randomUUID().toString();
-        String status = "TEST-NEXT";
+        String status = IndexTask.STATUS_FAILED;
         saveIndexTaskWithStatus(pidValue, status);
 
         String pidValue2 = "find by pid:" + UUID.randomUUID().toString();
-        IndexTask task2 = saveIndexTaskWithStatus(pidValue2, "TEST-NEXT");
+        IndexTask task2 = saveIndexTaskWithStatus(pidValue2, status);
         Calendar cal = Calendar.getInstance();
         cal.setTimeInMillis(System.currentTimeMillis());
         cal.add(Calendar.DATE, 1);
@@ -338,10 +360,10 @@ public class IndexTaskJpaRepositoryTest {
     @Test
     public void testFindIndexTaskQueue() {
         saveIndexTaskWithStatusAndPriority("garbage task" + UUID.randomUUID().toString(),
-                "garbage status", 1);
+                IndexTask.STATUS_COMPLETE, 1);
 
-        String status = "findQueue";
-        String status2 = "badStatus";
+        String status = IndexTask.STATUS_NEW;
+        String status2 = IndexTask.STATUS_FAILED;
 
         repo.deleteAll();
 
@@ -388,8 +410,8 @@ public class IndexTaskJpaRepositoryTest {
      */
     @Test
     public void testFindByStatusOrderAndTryCount() {
-        String status = "new";
-        String status2 = "new2";
+        String status = IndexTask.STATUS_NEW;
+        String status2 = IndexTask.STATUS_FAILED;
       
         repo.deleteAll();
 
@@ -429,13 +451,501 @@ public class IndexTaskJpaRepositoryTest {
         
     }
     
+    /**
+     * Tests that keyset pages of the task queue follow each other without gaps
+     * or repeats, including tasks sharing priority and modified date.
+     */
+    @Test
+    public void testFindQueuePageAfter() {
+        String status = IndexTask.STATUS_NEW;
+        repo.deleteAll();
+
+        List<String> expected = new ArrayList<String>();
+        for (int priority = 1; priority <= 3; priority++) {
+            for (int i = 0; i < 3; i++) {
+                String pid = "paged task " + priority + "-" + i + ": " + UUID.randomUUID().toString();
+                IndexTask it = new IndexTask(buildTestSysMetaData(pid, "test-format"), null);
+                it.setStatus(status);
+                it.setPriority(priority);
+                // same modified date within a priority, ordered by id
+                it.setTaskModifiedDate(1000L);
+                repo.save(it);
+                expected.add(pid);
+            }
+        }
+        saveIndexTaskWithStatusAndPriority("other status task", IndexTask.STATUS_FAILED, 1);
+
+        PageRequest pageRequest = new PageRequest(0, 2);
+        List<String> actual = new ArrayList<String>();
+        List<IndexTask> page = repo.findByStatusOrderByPriorityAscTaskModifiedDateAscIdAsc(status,
+                pageRequest);
+        while (!page.isEmpty()) {
+            Assert.assertTrue(page.size() <= 2);
+            for (IndexTask task : page) {
+                actual.add(task.getPid());
+            }
+            IndexTask last = page.get(page.size() - 1);
+            page = repo.findQueuePageAfter(status, last.getPriority(), last.getTaskModifiedDate(),
+                    last.getId(), pageRequest);
+        }
+        Assert.assertEquals(expected, actual);
+    }
+
+    /**
+     * Tests the IndexTaskQueueIterator returns the same tasks in the same order
+     * as the list based queue queries, ties broken by id, while the caller
+     * changes the tasks it receives.
+     */
+    @Test
+    public void testIndexTaskQueueIterator() {
+        String status = IndexTask.STATUS_NEW;
+        repo.deleteAll();
+
+        for (int i = 0; i < 7; i++) {
+            saveIndexTaskWithStatusAndPriorityAndTryCount("iterated task " + i + ": "
+                    + UUID.randomUUID().toString(), status, i % 3, i % 2);
+        }
+
+        List<IndexTask> queue = repo.findByStatusOrderByPriorityAscTaskModifiedDateAscIdAsc(
+                status, new PageRequest(0, 100));
+        Assert.assertEquals(7, queue.size());
+        IndexTaskQueueIterator iterator = new IndexTaskQueueIterator(repo, status, 3);
+        for (IndexTask task : queue) {
+            Assert.assertTrue(iterator.hasNext());
+            IndexTask next = iterator.next();
+            Assert.assertEquals(task.getId(), next.getId());
+            // moves the task to the end of the queue if it were the cursor
+            next.setPriority(99);
+            next.markInProgress();
+        }
+        Assert.assertFalse(iterator.hasNext());
+
+        queue = repo.findByStatusAndTryCountLessThanOrderByPriorityAscTaskModifiedDateAscIdAsc(
+                status, 1, new PageRequest(0, 100));
+        Assert.assertEquals(4, queue.size());
+        iterator = new IndexTaskQueueIterator(repo, status, 1, 2);
+        for (IndexTask task : queue) {
+            Assert.assertTrue(iterator.hasNext());
+            IndexTask next = iterator.next();
+            Assert.assertEquals(task.getId(), next.getId());
+            // moves the task to the front of the queue if it were the cursor
+            next.setPriority(-1);
+            next.setTaskModifiedDate(0);
+        }
+        Assert.assertFalse(iterator.hasNext());
+    }
+
+    /**
+     * Tests that claimNewTasks hands out the highest priority NEW tasks once,
+     * marking them in process.
+     */
+    @Test
+    public void testClaimNewTasks() {
+        repo.deleteAll();
+
+        String pidValue1 = "claim priority 2: " + UUID.randomUUID().toString();
+        saveIndexTaskWithStatusAndPriority(pidValue1, IndexTask.STATUS_NEW, 2);
+        String pidValue2 = "claim priority 1: " + UUID.randomUUID().toString();
+        saveIndexTaskWithStatusAndPriority(pidValue2, IndexTask.STATUS_NEW, 1);
+        String pidValue3 = "claim priority 3: " + UUID.randomUUID().toString();
+        saveIndexTaskWithStatusAndPriority(pidValue3, IndexTask.STATUS_NEW, 3);
+        saveIndexTaskWithStatusAndPriority("claim failed: " + UUID.randomUUID().toString(),
+                IndexTask.STATUS_FAILED, 1);
+
+        List<IndexTask> claimed = repo.claimNewTasks(2);
+        Assert.assertEquals(2, claimed.size());
+        Assert.assertEquals(pidValue2, claimed.get(0).getPid());
+        Assert.assertEquals(pidValue1, claimed.get(1).getPid());
+        for (IndexTask task : claimed) {
+            IndexTask stored = repo.findOne(task.getId());
+            Assert.assertEquals(IndexTask.STATUS_IN_PROCESS, stored.getStatus());
+            Assert.assertEquals(1, stored.getTryCount());
+            Assert.assertEquals(task.getVersion(), stored.getVersion());
+        }
+
+        claimed = repo.claimNewTasks(2);
+        Assert.assertEquals(1, claimed.size());
+        Assert.assertEquals(pidValue3, claimed.get(0).getPid());
+
+        Assert.assertEquals(0, repo.claimNewTasks(2).size());
+        Assert.assertEquals(Long.valueOf(3), repo.countByStatus(IndexTask.STATUS_IN_PROCESS));
+    }
+
+    /**
+     * Tests that claimNewTasksWithTryCountLessThan skips over tried tasks.
+     */
+    @Test
+    public void testClaimNewTasksWithTryCountLessThan() {
+        repo.deleteAll();
+
+        String pidValue1 = "claim tried: " + UUID.randomUUID().toString();
+        saveIndexTaskWithStatusAndPriorityAndTryCount(pidValue1, IndexTask.STATUS_NEW, 1, 3);
+        String pidValue2 = "claim untried: " + UUID.randomUUID().toString();
+        saveIndexTaskWithStatusAndPriorityAndTryCount(pidValue2, IndexTask.STATUS_NEW, 2, 0);
+
+        List<IndexTask> claimed = repo.claimNewTasksWithTryCountLessThan(5, 3);
+        Assert.assertEquals(1, claimed.size());
+        Assert.assertEquals(pidValue2, claimed.get(0).getPid());
+        Assert.assertEquals(1, repo.findOne(claimed.get(0).getId()).getTryCount());
+        Assert.assertEquals(1, repo.findByPidAndStatus(pidValue1, IndexTask.STATUS_NEW).size());
+    }
+
+    /**
+     * Tests that workers claiming from their own shard ranges split the queue
+     * between them, and that the shard-filtered finders see the same slices.
+     */
+    @Test
+    public void testClaimNewTasksInShards() {
+        repo.deleteAll();
+
+        IndexTaskShardRange lower = IndexTaskShardRange.forWorker(0, 2);
+        IndexTaskShardRange upper = IndexTaskShardRange.forWorker(1, 2);
+        int lowerCount = 0;
+        for (int i = 0; i < 20; i++) {
+            IndexTask task = saveIndexTaskWithStatusAndPriority("shard " + i + ": "
+                    + UUID.randomUUID().toString(), IndexTask.STATUS_NEW, i % 3);
+            Assert.assertEquals(IndexTaskShardRange.shardKey(task.getPid()), task.getShardKey());
+            if (lower.contains(task.getShardKey())) {
+                lowerCount++;
+            }
+        }
+
+        List<IndexTask> page = repo.findQueuePageInShards(IndexTask.STATUS_NEW, lower.getFrom(),
+                lower.getTo(), new PageRequest(0, 3));
+        List<IndexTask> lowerQueue = new ArrayList<IndexTask>(page);
+        while (!page.isEmpty()) {
+            IndexTask last = page.get(page.size() - 1);
+            page = repo.findQueuePageAfterInShards(IndexTask.STATUS_NEW, lower.getFrom(),
+                    lower.getTo(), last.getPriority(), last.getTaskModifiedDate(), last.getId(),
+                    new PageRequest(0, 3));
+            lowerQueue.addAll(page);
+        }
+        Assert.assertEquals(lowerCount, lowerQueue.size());
+
+        List<IndexTask> lowerClaimed = repo.claimNewTasksInShards(100, lower);
+        Assert.assertEquals(lowerCount, lowerClaimed.size());
+        for (int i = 0; i < lowerClaimed.size(); i++) {
+            Assert.assertTrue(lower.contains(lowerClaimed.get(i).getShardKey()));
+            Assert.assertEquals(lowerQueue.get(i).getId(), lowerClaimed.get(i).getId());
+        }
+        Assert.assertTrue(repo.claimNewTasksInShards(100, lower).isEmpty());
+
+        List<IndexTask> upperClaimed = repo.claimNewTasksInShards(100, upper);
+        Assert.assertEquals(20 - lowerCount, upperClaimed.size());
+        for (IndexTask task : upperClaimed) {
+            Assert.assertTrue(upper.contains(task.getShardKey()));
+        }
+        Assert.assertEquals(Long.valueOf(20), repo.countByStatus(IndexTask.STATUS_IN_PROCESS));
+    }
+
+    /**
+     * Tests the payload-free summary finders and loading the payloads of the
+     * chosen tasks.
+     */
+    @Test
+    public void testSummaryFinders() {
+        repo.deleteAll();
+
+        List<Long> queue = new ArrayList<Long>();
+        for (int i = 0; i < 5; i++) {
+            queue.add(saveIndexTaskWithStatusAndPriority("summary-" + i + ":"
+                    + UUID.randomUUID().toString(), IndexTask.STATUS_NEW, 1).getId());
+        }
+        saveIndexTaskWithStatusAndPriority("summary-failed:" + UUID.randomUUID().toString(),
+                IndexTask.STATUS_FAILED, 1);
+
+        List<IndexTaskSummary> page = repo.findQueueSummaryPage(IndexTask.STATUS_NEW,
+                new PageRequest(0, 3));
+        Assert.assertEquals(3, page.size());
+        IndexTaskSummary first = page.get(0);
+        IndexTask stored = repo.findOne(first.getId());
+        Assert.assertEquals(stored.getPid(), first.getPid());
+        Assert.assertEquals("test-format", first.getFormatId());
+        Assert.assertEquals(1, first.getPriority());
+        Assert.assertEquals(IndexTask.STATUS_NEW, first.getStatus());
+        Assert.assertEquals(stored.getTryCount(), first.getTryCount());
+        Assert.assertEquals(stored.getNextExecution(), first.getNextExecution());
+
+        List<Long> ids = new ArrayList<Long>();
+        for (IndexTaskSummary summary : page) {
+            ids.add(summary.getId());
+        }
+        IndexTaskQueueKey last = page.get(2).getQueueKey();
+        page = repo.findQueueSummaryPageAfter(IndexTask.STATUS_NEW, last.getPriority(),
+                last.getTaskModifiedDate(), last.getId(), new PageRequest(0, 3));
+        Assert.assertEquals(2, page.size());
+        for (IndexTaskSummary summary : page) {
+            ids.add(summary.getId());
+        }
+        Assert.assertEquals(queue, ids);
+
+        List<Long> chosen = new ArrayList<Long>();
+        chosen.add(ids.get(3));
+        chosen.add(ids.get(1));
+        chosen.add(Long.valueOf(-1));
+        List<IndexTask> loaded = repo.findByIdsInQueueOrder(chosen);
+        Assert.assertEquals(2, loaded.size());
+        Assert.assertEquals(ids.get(1), loaded.get(0).getId());
+        Assert.assertEquals(ids.get(3), loaded.get(1).getId());
+        Assert.assertNotNull(loaded.get(0).unMarshalSystemMetadata());
+
+        List<IndexTaskSummary> due = repo.findDueSummaries(IndexTask.STATUS_FAILED,
+                System.currentTimeMillis(), 10, new PageRequest(0, 10));
+        Assert.assertEquals(1, due.size());
+        Assert.assertEquals(IndexTask.STATUS_FAILED, due.get(0).getStatus());
+    }
+
+    /**
+     * Tests that the system metadata is stored in index_task_payload, fetched
+     * by findOne and the finders, loaded lazily otherwise, and deleted with
+     * its task.
+     */
+    @Test
+    public void testPayloadTable() {
+        repo.deleteAll();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        Assert.assertEquals(0, jdbcTemplate.queryForInt("SELECT count(*)"
+                + " FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = 'INDEX_TASK'"
+                + " AND COLUMN_NAME LIKE 'SYSMETADATA%'"));
+
+        String pidValue = "payload-" + UUID.randomUUID().toString();
+        IndexTask task = saveIndexTaskWithStatusAndPriority(pidValue, IndexTask.STATUS_NEW, 1);
+        Assert.assertEquals(1, jdbcTemplate.queryForInt("SELECT count(*) FROM index_task_payload"
+                + " WHERE id = ? AND sysMetadata IS NOT NULL", task.getId()));
+
+        Assert.assertEquals(pidValue, repo.findOne(task.getId()).unMarshalSystemMetadata()
+                .getIdentifier().getValue());
+        Assert.assertEquals(pidValue, repo.findByPid(pidValue).get(0).unMarshalSystemMetadata()
+                .getIdentifier().getValue());
+
+        // the inherited finders and save load the payload too, so system
+        // metadata can be read outside a transaction
+        Assert.assertEquals(pidValue, repo.findAll(Collections.singletonList(task.getId()))
+                .get(0).unMarshalSystemMetadata().getIdentifier().getValue());
+        Assert.assertEquals(pidValue, repo.findAll().get(0).unMarshalSystemMetadata()
+                .getIdentifier().getValue());
+        Assert.assertEquals(pidValue, repo.findAll(new Sort("id")).get(0)
+                .unMarshalSystemMetadata().getIdentifier().getValue());
+        Page<IndexTask> page = repo.findAll(new PageRequest(0, 10));
+        Assert.assertEquals(1, page.getTotalElements());
+        Assert.assertEquals(pidValue, page.getContent().get(0).unMarshalSystemMetadata()
+                .getIdentifier().getValue());
+        IndexTask detached = repo.findOne(task.getId());
+        detached.setPriority(3);
+        IndexTask saved = repo.save(detached);
+        Assert.assertEquals(3, saved.getPriority());
+        Assert.assertEquals(pidValue, saved.unMarshalSystemMetadata().getIdentifier()
+                .getValue());
+
+        long now = System.currentTimeMillis();
+        List<Long> ids = Collections.singletonList(task.getId());
+        Assert.assertEquals(1, repo.markComplete(ids, now));
+        Assert.assertEquals(1, repo.deleteByIdsAndStatusModifiedBefore(ids,
+                IndexTask.STATUS_COMPLETE, now + 1));
+        Assert.assertEquals(0, jdbcTemplate.queryForInt("SELECT count(*)"
+                + " FROM index_task_payload WHERE id = ?", task.getId()));
+    }
+
+    /**
+     * Tests bulk insert of tasks across several flush/clear batches.
+     */
+    @Test
+    public void testEnqueueAll() {
+        repo.deleteAll();
+        String status = IndexTask.STATUS_NEW;
+        List<IndexTask> tasks = new ArrayList<IndexTask>();
+        for (int i = 0; i < 237; i++) {
+            IndexTask task = new IndexTask(buildTestSysMetaData("bulk-" + i + "-"
+                    + UUID.randomUUID().toString(), "test-format"), null);
+            task.setStatus(status);
+            task.setPriority(i % 5);
+            tasks.add(task);
+        }
+
+        Assert.assertEquals(237, repo.enqueueAll(tasks));
+
+        Set<Long> ids = new HashSet<Long>();
+        for (IndexTask task : tasks) {
+            Assert.assertNotNull(task.getId());
+            ids.add(task.getId());
+        }
+        Assert.assertEquals(237, ids.size());
+        Assert.assertEquals(Long.valueOf(237), repo.countByStatus(status));
+        IndexTask stored = repo.findOne(tasks.get(100).getId());
+        Assert.assertEquals(tasks.get(100).getPid(), stored.getPid());
+        Assert.assertEquals(tasks.get(100).getPid(), stored.unMarshalSystemMetadata()
+                .getIdentifier().getValue());
+    }
+
     /**
      * Test the method of findByStatusAndNextExecutionLessThanAndTryCountLessThan
      */
+    @Test
+    public void testEnqueueOrMerge() {
+        String pid = "merge-" + UUID.randomUUID().toString();
+
+        IndexTask first = repo.enqueueOrMerge(buildMergeTask(pid, "format-1", 1000L,
+                4));
+        Assert.assertNotNull(first.getId());
+
+        // newer system metadata replaces the payload, the better priority is kept
+        IndexTask merged = repo.enqueueOrMerge(buildMergeTask(pid, "format-2", 2000L,
+                1));
+        Assert.assertEquals(first.getId(), merged.getId());
+        Assert.assertEquals("format-2", merged.getFormatId());
+        Assert.assertEquals(2000L, merged.getDateSysMetaModified());
+        Assert.assertEquals(1, merged.getPriority());
+        Assert.assertEquals(first.getTaskModifiedDate(), merged.getTaskModifiedDate());
+
+        // older system metadata leaves the payload alone
+        merged = repo.enqueueOrMerge(buildMergeTask(pid, "format-0", 500L,
+                4));
+        Assert.assertEquals(first.getId(), merged.getId());
+        Assert.assertEquals("format-2", merged.getFormatId());
+        Assert.assertEquals(1, merged.getPriority());
+        Assert.assertEquals("format-2", repo.findOne(first.getId()).unMarshalSystemMetadata()
+                .getFormatId().getValue());
+        Assert.assertEquals(1, repo.findByPid(pid).size());
+
+        // a task that is in process is not merged into
+        IndexTask inProcess = repo.findOne(first.getId());
+        inProcess.markInProgress();
+        repo.save(inProcess);
+        IndexTask next = repo.enqueueOrMerge(buildMergeTask(pid, "format-3", 3000L,
+                4));
+        Assert.assertFalse(first.getId().equals(next.getId()));
+        Assert.assertEquals(2, repo.findByPid(pid).size());
+        Assert.assertEquals(1, repo.findByPidAndStatus(pid, IndexTask.STATUS_NEW).size());
+    }
+
+    private IndexTask buildMergeTask(String pid, String formatId, long dateSysMetaModified,
+            int priority) {
+        SystemMetadata smd = buildTestSysMetaData(pid, formatId);
+        smd.setDateSysMetadataModified(new Date(dateSysMetaModified));
+        IndexTask task = new IndexTask(smd, null);
+        task.setPriority(priority);
+        return task;
+    }
+
+    @Test
+    public void testBulkStatusTransitions() {
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 3; i++) {
+            ids.add(saveIndexTask("bulk-status-" + UUID.randomUUID().toString()).getId());
+        }
+        IndexTask stale = repo.findOne(ids.get(0));
+
+        long now = System.currentTimeMillis();
+        Assert.assertEquals(3, repo.markInProgress(ids, now));
+        for (Long id : ids) {
+            IndexTask task = repo.findOne(id);
+            Assert.assertEquals(IndexTask.STATUS_IN_PROCESS, task.getStatus());
+            Assert.assertEquals(1, task.getTryCount());
+            Assert.assertEquals(now, task.getTaskModifiedDate());
+            Assert.assertEquals(stale.getVersion() + 1, task.getVersion());
+        }
+        try {
+            stale.setObjectPath("/stale");
+            repo.save(stale);
+            Assert.fail("A task loaded before the bulk update should not save.");
+        } catch (HibernateOptimisticLockingFailureException e) {
+            // expected
+        }
+
+        // first try, back to the queue
+        Assert.assertEquals(3, repo.markNew(ids, now));
+        Assert.assertEquals(IndexTask.STATUS_NEW, repo.findOne(ids.get(0)).getStatus());
+
+        // second try, failed with the first backoff
+        repo.markInProgress(ids, now);
+        Assert.assertEquals(2, repo.markNew(ids.subList(0, 2), now));
+        IndexTask failed = repo.findOne(ids.get(0));
+        Assert.assertEquals(IndexTask.STATUS_FAILED, failed.getStatus());
+        Assert.assertEquals(now + 20 * 60 * 1000L, failed.getNextExecution());
+
+        // third try, failed with the second backoff
+        repo.markInProgress(ids.subList(0, 1), now);
+        Assert.assertEquals(1, repo.markFailed(ids.subList(0, 1), now));
+        failed = repo.findOne(ids.get(0));
+        Assert.assertEquals(IndexTask.STATUS_FAILED, failed.getStatus());
+        Assert.assertEquals(now + 2 * 60 * 60 * 1000L, failed.getNextExecution());
+
+        Assert.assertEquals(1, repo.markComplete(ids.subList(2, 3), now));
+        Assert.assertEquals(IndexTask.STATUS_COMPLETE, repo.findOne(ids.get(2)).getStatus());
+    }
+
+    @Test
+    public void testBulkStatusTransitionsUseBackoffPolicy() {
+        BackoffPolicy defaultPolicy = IndexTask.getBackoffPolicy();
+        BackoffPolicy policy = new ExponentialBackoffPolicy(60000, 3, 3600000, 0.5);
+        IndexTask.setBackoffPolicy(policy);
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            for (int i = 0; i < 5; i++) {
+                IndexTask task = saveIndexTaskWithStatusAndPriorityAndTryCount("bulk-backoff-"
+                        + UUID.randomUUID().toString(), IndexTask.STATUS_IN_PROCESS, 1, 2 + i);
+                ids.add(task.getId());
+            }
+            long now = System.currentTimeMillis();
+            Assert.assertEquals(5, repo.markFailed(ids, now));
+            for (Long id : ids) {
+                IndexTask task = repo.findOne(id);
+                Assert.assertEquals(policy.nextExecution(task.getTryCount(), now, id),
+                        task.getNextExecution());
+            }
+
+            // the entity path uses the same policy
+            IndexTask task = repo.findOne(ids.get(0));
+            task.markInProgress();
+            task.markNew();
+            Assert.assertEquals(IndexTask.STATUS_FAILED, task.getStatus());
+            Assert.assertTrue(task.getNextExecution() <= System.currentTimeMillis() + 180000);
+            Assert.assertTrue(task.getNextExecution() >= now + 90000);
+        } finally {
+            IndexTask.setBackoffPolicy(defaultPolicy);
+        }
+    }
+
+    @Test
+    public void testQueueStatistics() {
+        repo.deleteAll();
+        long now = System.currentTimeMillis();
+        saveIndexTaskWithStatusAndPriority("stats-" + UUID.randomUUID(), IndexTask.STATUS_NEW, 1);
+        saveIndexTaskWithStatusAndPriority("stats-" + UUID.randomUUID(), IndexTask.STATUS_NEW, 2);
+        IndexTask oldest = saveIndexTaskWithStatusAndPriority("stats-" + UUID.randomUUID(),
+                IndexTask.STATUS_NEW, 2);
+        oldest.setTaskModifiedDate(now - 60000);
+        repo.save(oldest);
+        saveIndexTaskWithStatusAndPriorityAndTryCountAndNextExecution("stats-" + UUID.randomUUID(),
+                IndexTask.STATUS_FAILED, 1, 3, now - 1000);
+        saveIndexTaskWithStatusAndPriorityAndTryCountAndNextExecution("stats-" + UUID.randomUUID(),
+                IndexTask.STATUS_FAILED, 1, 3, now + 60000);
+
+        IndexTaskQueueStatistics stats = IndexTaskQueueStatistics.query(repo);
+        Assert.assertEquals(5, stats.getTotal());
+        Assert.assertEquals(3, stats.getCount(IndexTask.STATUS_NEW));
+        Assert.assertEquals(1, stats.getCount(IndexTask.STATUS_NEW, 1));
+        Assert.assertEquals(2, stats.getCount(IndexTask.STATUS_NEW, 2));
+        Assert.assertEquals(2, stats.getCount(IndexTask.STATUS_FAILED));
+        Assert.assertEquals(0, stats.getCount(IndexTask.STATUS_COMPLETE));
+        Assert.assertEquals(1, stats.getFailedDueCount());
+        Assert.assertEquals(now - 60000, stats.getOldestTaskModifiedDate(IndexTask.STATUS_NEW));
+        Assert.assertTrue(stats.getOldestTaskAge(IndexTask.STATUS_NEW) >= 60000);
+        Assert.assertEquals(-1, stats.getOldestTaskModifiedDate(IndexTask.STATUS_COMPLETE));
+
+        statisticsCache.setTtlMillis(60000);
+        IndexTaskQueueStatistics cached = statisticsCache.refresh();
+        saveIndexTaskWithStatus("stats-" + UUID.randomUUID(), IndexTask.STATUS_NEW);
+        Assert.assertSame(cached, statisticsCache.getStatistics());
+        Assert.assertEquals(6, statisticsCache.refresh().getTotal());
+        statisticsCache.setTtlMillis(0);
+        Assert.assertNotSame(statisticsCache.getStatistics(), statisticsCache.getStatistics());
+    }
+
     @Test
     public void testFindByStatusAndNextExecutionLessThanAndTryCountLessThan() throws Exception {
-        String status = "new";
-        String status2 = "new2";
+        String status = IndexTask.STATUS_NEW;
+        String status2 = IndexTask.STATUS_FAILED;
       
         repo.deleteAll();
 
@@ -513,6 +1023,162 @@ public class IndexTaskJpaRepositoryTest {
         Assert.assertTrue(formatValue.equals(smd.getFormatId().getValue()));
     }
 
+    /**
+     * Tests that the un-marshaled system metadata is reused until the
+     * serialized system metadata is replaced.
+     */
+    @Test
+    public void testSystemMetadataUnMarshalCache() {
+        String pidValue = "unmarshal-cache-" + UUID.randomUUID().toString();
+        IndexTask task = repo.save(new IndexTask(buildTestSysMetaData(pidValue, "CF-1.0"), null));
+        task = repo.findOne(task.getId());
+        Assert.assertFalse(task.isDeleteTask());
+        SystemMetadata smd = task.unMarshalSystemMetadata();
+        Assert.assertNotNull(smd);
+        Assert.assertSame(smd, task.unMarshalSystemMetadata());
+
+        SystemMetadata archived = buildTestSysMetaData(pidValue, "CF-1.0");
+        archived.setArchived(Boolean.TRUE);
+        task.setSysMetadata(new IndexTask(archived, null).getSysMetadata());
+        Assert.assertNotSame(smd, task.unMarshalSystemMetadata());
+        Assert.assertTrue(task.unMarshalSystemMetadata().getArchived().booleanValue());
+        Assert.assertTrue(task.isDeleteTask());
+    }
+
+    /**
+     * Tests that the archived and obsoletedBy system metadata values are
+     * stored in their own columns and used to find removal tasks.
+     */
+    @Test
+    public void testArchivedAndObsoletedByColumns() {
+        repo.deleteAll();
+        String status = IndexTask.STATUS_NEW;
+
+        String obsoletingPid = "obsoleting-" + UUID.randomUUID().toString();
+        SystemMetadata smd = buildTestSysMetaData("archived-" + UUID.randomUUID().toString(),
+                "CF-1.0");
+        smd.setArchived(Boolean.TRUE);
+        Identifier obsoletedBy = new Identifier();
+        obsoletedBy.setValue(obsoletingPid);
+        smd.setObsoletedBy(obsoletedBy);
+        IndexTask archivedTask = new IndexTask(smd, null);
+        archivedTask.setStatus(status);
+        archivedTask = repo.save(archivedTask);
+
+        IndexTask deletedTask = saveIndexTaskWithStatusAndPriority(
+                "deleted-" + UUID.randomUUID().toString(), status, 1);
+        deletedTask.setDeleted(true);
+        deletedTask = repo.save(deletedTask);
+
+        saveIndexTaskWithStatusAndPriority("update-" + UUID.randomUUID().toString(), status, 1);
+
+        IndexTask task = repo.findOne(archivedTask.getId());
+        Assert.assertTrue(task.isArchived());
+        Assert.assertEquals(obsoletingPid, task.getObsoletedBy());
+        Assert.assertTrue(task.isDeleteTask());
+
+        List<IndexTask> obsoleted = repo.findByObsoletedBy(obsoletingPid);
+        Assert.assertEquals(1, obsoleted.size());
+        Assert.assertEquals(archivedTask.getId(), obsoleted.get(0).getId());
+
+        List<IndexTask> removals = repo.findDeleteTasksByStatus(status, new PageRequest(0, 10));
+        Assert.assertEquals(2, removals.size());
+        Assert.assertEquals(deletedTask.getId(), removals.get(0).getId());
+        Assert.assertEquals(archivedTask.getId(), removals.get(1).getId());
+    }
+
+    /**
+     * Tests the compressed system metadata storage mode, including reading
+     * tasks stored as text while the mode is enabled. Logs the stored bytes
+     * per task and the marshal/un-marshal cost in both modes.
+     */
+    @Test
+    public void testCompressedSysMetadataStorage() {
+        String pidValue = "compressed-" + UUID.randomUUID().toString();
+        SystemMetadata smd = buildRealisticSysMetaData(pidValue, "eml://ecoinformatics.org/eml-2.1.1");
+        boolean compress = IndexTask.isCompressSysMetadata();
+        try {
+            IndexTask.setCompressSysMetadata(false);
+            // warm up the marshalling code before timing either mode
+            timeRoundTrip(smd, 200);
+            IndexTask textTask = repo.save(new IndexTask(smd, null));
+            long textNanos = timeRoundTrip(smd, 200);
+
+            IndexTask.setCompressSysMetadata(true);
+            IndexTask compressedTask = repo.save(new IndexTask(smd, null));
+            long compressedNanos = timeRoundTrip(smd, 200);
+
+            compressedTask = repo.findOne(compressedTask.getId());
+            Assert.assertNotNull(compressedTask.getSysMetadataCompressed());
+            Assert.assertEquals(pidValue, compressedTask.unMarshalSystemMetadata().getIdentifier()
+                    .getValue());
+            Assert.assertEquals(5, compressedTask.unMarshalSystemMetadata().getReplicaList()
+                    .size());
+
+            // text rows remain readable with compression enabled
+            textTask = repo.findOne(textTask.getId());
+            Assert.assertNull(textTask.getSysMetadataCompressed());
+            Assert.assertEquals(textTask.getSysMetadata(), compressedTask.getSysMetadata());
+            Assert.assertEquals(pidValue, textTask.unMarshalSystemMetadata().getIdentifier()
+                    .getValue());
+
+            int textBytes = textTask.getSysMetadata().getBytes("UTF-8").length;
+            int compressedBytes = compressedTask.getSysMetadataCompressed().length;
+            Assert.assertTrue(compressedBytes < textBytes);
+            logger.info("System metadata bytes per task: text " + textBytes + ", compressed "
+                    + compressedBytes + ". Marshal/un-marshal round trip: text "
+                    + (textNanos / 1000) + " us, compressed " + (compressedNanos / 1000) + " us");
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            IndexTask.setCompressSysMetadata(compress);
+        }
+    }
+
+    /**
+     * A task whose compressed system metadata is corrupt logs the error and
+     * reads as null, like a task whose system metadata does not parse.
+     */
+    @Test
+    public void testCorruptCompressedSysMetadata() {
+        String pidValue = "corrupt-" + UUID.randomUUID().toString();
+        boolean compress = IndexTask.isCompressSysMetadata();
+        byte[] compressed;
+        try {
+            IndexTask.setCompressSysMetadata(true);
+            compressed = new IndexTask(buildTestSysMetaData(pidValue, "test-format"), null)
+                    .getSysMetadataCompressed();
+        } finally {
+            IndexTask.setCompressSysMetadata(compress);
+        }
+        byte[] unknownFormat = compressed.clone();
+        unknownFormat[0] = 99;
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+        byte[] garbage = compressed.clone();
+        for (int i = 1; i < garbage.length; i++) {
+            garbage[i] = (byte) 0xff;
+        }
+        for (byte[] corrupt : Arrays.asList(unknownFormat, truncated, garbage)) {
+            IndexTask task = new IndexTask();
+            task.setPid(pidValue);
+            task.setSysMetadataCompressed(corrupt);
+            task = repo.findOne(repo.save(task).getId());
+            Assert.assertArrayEquals(corrupt, task.getSysMetadataCompressed());
+            Assert.assertNull(task.getSysMetadata());
+            Assert.assertNull(task.unMarshalSystemMetadata());
+        }
+    }
+
+    private long timeRoundTrip(SystemMetadata smd, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            IndexTask task = new IndexTask(smd, null);
+            task.setSysMetadata(task.getSysMetadata());
+            Assert.assertNotNull(task.unMarshalSystemMetadata());
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
     /**
      * This test is a redundant test of serializing, de-serializing system
      * metadata object. Sanity-check.
@@ -581,32 +1247,14 @@ public class IndexTaskJpaRepositoryTest {
 
 
     public SystemMetadata buildTestSysMetaData(String pidValue, String formatValue) {
-        SystemMetadata systemMetadata = new SystemMetadata();
-
-        Identifier identifier = new Identifier();
-        identifier.setValue(pidValue);
-        systemMetadata.setIdentifier(identifier);
-
-        ObjectFormatIdentifier fmtid = new ObjectFormatIdentifier();
-        fmtid.setValue(formatValue);
-        systemMetadata.setFormatId(fmtid);
-
-        systemMetadata.setSerialVersion(BigInteger.TEN);
-        systemMetadata.setSize(BigInteger.TEN);
-        Checksum checksum = new Checksum();
-        checksum.setValue("V29ybGQgSGVsbG8h");
-        checksum.setAlgorithm("SHA-1");
-        systemMetadata.setChecksum(checksum);
-
-        Subject rightsHolder = new Subject();
-        rightsHolder.setValue("DataONE");
-        systemMetadata.setRightsHolder(rightsHolder);
-
-        Subject submitter = new Subject();
-        submitter.setValue("Kermit de Frog");
-        systemMetadata.setSubmitter(submitter);
+        return SystemMetadataFixtures.buildTestSysMetaData(pidValue, formatValue);
+    }
 
-        systemMetadata.setDateSysMetadataModified(new Date());
-        return systemMetadata;
+    /**
+     * Build a system metadata instance of typical production size, with an
+     * access policy and a replica list.
+     */
+    public SystemMetadata buildRealisticSysMetaData(String pidValue, String formatValue) {
+        return SystemMetadataFixtures.buildRealisticSysMetaData(pidValue, formatValue);
     }
 }
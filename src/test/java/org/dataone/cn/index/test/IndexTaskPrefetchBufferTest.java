@@ -0,0 +1,189 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.cn.index.task.IndexTaskArrivalChannel;
+import org.dataone.cn.index.task.IndexTaskPrefetchBuffer;
+import org.dataone.cn.index.task.IndexTaskRepository;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "test-context.xml" })
+public class IndexTaskPrefetchBufferTest {
+
+    @Autowired
+    private IndexTaskRepository repo;
+
+    @Autowired
+    private IndexTaskArrivalChannel arrivals;
+
+    @Before
+    public void setUp() {
+        repo.deleteAll();
+    }
+
+    @Test
+    public void testConsumersShareBatches() throws Exception {
+        List<IndexTask> tasks = new ArrayList<IndexTask>();
+        for (int i = 0; i < 100; i++) {
+            tasks.add(newTask(i % 3));
+        }
+        repo.enqueueAll(tasks);
+
+        final IndexTaskPrefetchBuffer buffer = new IndexTaskPrefetchBuffer(repo, arrivals, 20, 5);
+        buffer.setIdleMillis(200);
+        buffer.start();
+        final Set<Long> taken = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final AtomicInteger duplicates = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        IndexTask task = buffer.poll(2, TimeUnit.SECONDS);
+                        while (task != null) {
+                            Assert.assertEquals(IndexTask.STATUS_IN_PROCESS, task.getStatus());
+                            if (!taken.add(task.getId())) {
+                                duplicates.incrementAndGet();
+                            }
+                            task = buffer.poll(1, TimeUnit.SECONDS);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(0, buffer.shutdown());
+
+        Assert.assertEquals(0, duplicates.get());
+        Assert.assertEquals(100, taken.size());
+        Assert.assertEquals(100, buffer.getClaimedCount());
+        // about one claim per batch, not one per task
+        Assert.assertTrue(String.valueOf(buffer.getRefillCount()), buffer.getRefillCount() < 40);
+    }
+
+    @Test
+    public void testPriorityOrderWithinBuffer() throws Exception {
+        List<IndexTask> tasks = new ArrayList<IndexTask>();
+        for (int i = 0; i < 10; i++) {
+            tasks.add(newTask(5 - i % 5));
+        }
+        repo.enqueueAll(tasks);
+
+        IndexTaskPrefetchBuffer buffer = new IndexTaskPrefetchBuffer(repo, arrivals, 10, 0);
+        buffer.start();
+        waitForSize(buffer, 10);
+        int previous = Integer.MIN_VALUE;
+        for (int i = 0; i < 10; i++) {
+            IndexTask task = buffer.poll(1, TimeUnit.SECONDS);
+            Assert.assertTrue(task.getPriority() >= previous);
+            previous = task.getPriority();
+        }
+        buffer.shutdown();
+    }
+
+    @Test
+    public void testQueueOrderWithinPriority() throws Exception {
+        // queued in the reverse of id order, so claiming them in the same
+        // millisecond must not reorder them by id
+        long queued = System.currentTimeMillis() - 100000;
+        List<IndexTask> tasks = new ArrayList<IndexTask>();
+        for (int i = 0; i < 12; i++) {
+            IndexTask task = newTask(1);
+            task.setTaskModifiedDate(queued - i * 1000);
+            tasks.add(task);
+        }
+        repo.enqueueAll(tasks);
+
+        IndexTaskPrefetchBuffer buffer = new IndexTaskPrefetchBuffer(repo, arrivals, 4, 0);
+        buffer.setIdleMillis(200);
+        buffer.start();
+        for (int i = 11; i >= 0; i--) {
+            IndexTask task = buffer.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(task);
+            Assert.assertEquals(tasks.get(i).getId(), task.getId());
+        }
+        buffer.shutdown();
+    }
+
+    @Test
+    public void testShutdownReleasesClaims() throws Exception {
+        List<IndexTask> tasks = new ArrayList<IndexTask>();
+        for (int i = 0; i < 8; i++) {
+            tasks.add(newTask(1));
+        }
+        repo.enqueueAll(tasks);
+
+        IndexTaskPrefetchBuffer buffer = new IndexTaskPrefetchBuffer(repo, arrivals, 8, 2);
+        buffer.start();
+        waitForSize(buffer, 8);
+        IndexTask consumed = buffer.poll(1, TimeUnit.SECONDS);
+        Assert.assertNotNull(consumed);
+
+        Assert.assertEquals(7, buffer.shutdown());
+        Assert.assertNull(buffer.poll(10, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(Long.valueOf(7), repo.countByStatus(IndexTask.STATUS_NEW));
+        for (IndexTask task : repo.findByStatusOrderByPriorityAscTaskModifiedDateAsc(
+                IndexTask.STATUS_NEW)) {
+            Assert.assertEquals(0, task.getTryCount());
+        }
+        Assert.assertEquals(IndexTask.STATUS_IN_PROCESS, repo.findOne(consumed.getId())
+                .getStatus());
+    }
+
+    private void waitForSize(IndexTaskPrefetchBuffer buffer, int size) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (buffer.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(size, buffer.size());
+    }
+
+    private IndexTask newTask(int priority) {
+        IndexTask task = new IndexTask();
+        task.setPid("prefetch-" + UUID.randomUUID().toString());
+        task.setPriority(priority);
+        return task;
+    }
+}
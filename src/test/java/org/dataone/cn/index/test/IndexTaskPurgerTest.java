@@ -0,0 +1,149 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.cn.index.task.IndexTaskArchiver;
+import org.dataone.cn.index.task.IndexTaskPurger;
+import org.dataone.cn.index.task.IndexTaskRepository;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "test-context.xml" })
+public class IndexTaskPurgerTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    @Autowired
+    private IndexTaskRepository repo;
+
+    @Autowired
+    private IndexTaskPurger purger;
+
+    @Before
+    public void setUp() {
+        repo.deleteAll();
+        purger.setChunkSize(3);
+        purger.setCompleteRetentionDays(7);
+        purger.setFailedRetentionDays(-1);
+        purger.setArchiver(null);
+    }
+
+    @After
+    public void tearDown() {
+        purger.setChunkSize(1000);
+        purger.setArchiver(null);
+    }
+
+    @Test
+    public void testPurgeCompleteTasks() throws Exception {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 8; i++) {
+            saveTask(IndexTask.STATUS_COMPLETE, now - (10 + i) * DAY);
+        }
+        IndexTask recent = saveTask(IndexTask.STATUS_COMPLETE, now - DAY);
+        IndexTask oldNew = saveTask(IndexTask.STATUS_NEW, now - 30 * DAY);
+        IndexTask oldFailed = saveTask(IndexTask.STATUS_FAILED, now - 30 * DAY);
+
+        long purgedBefore = purger.getPurgedCount();
+        Assert.assertEquals(8, purger.purge());
+        Assert.assertEquals(8, purger.getPurgedCount() - purgedBefore);
+        Assert.assertEquals(3, repo.count());
+        Assert.assertNotNull(repo.findOne(recent.getId()));
+        Assert.assertNotNull(repo.findOne(oldNew.getId()));
+        Assert.assertNotNull(repo.findOne(oldFailed.getId()));
+
+        purger.setFailedRetentionDays(14);
+        Assert.assertEquals(1, purger.purge());
+        Assert.assertNull(repo.findOne(oldFailed.getId()));
+        Assert.assertEquals(0, purger.purge());
+    }
+
+    @Test
+    public void testPurgeWithArchiver() throws Exception {
+        long now = System.currentTimeMillis();
+        // the older tasks have the lower priority, so queue order is newest
+        // first
+        for (int i = 0; i < 5; i++) {
+            IndexTask task = saveTask(IndexTask.STATUS_COMPLETE, now - (10 + i) * DAY);
+            task.setPriority(i);
+            repo.save(task);
+        }
+        final List<IndexTask> archived = new ArrayList<IndexTask>();
+        purger.setArchiver(new IndexTaskArchiver() {
+            public void archive(List<IndexTask> tasks) {
+                Assert.assertTrue(tasks.size() <= 3);
+                archived.addAll(tasks);
+            }
+        });
+        Assert.assertEquals(5, purger.purge());
+        Assert.assertEquals(5, archived.size());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(now - (14 - i) * DAY, archived.get(i).getTaskModifiedDate());
+        }
+        Assert.assertEquals(0, repo.count());
+    }
+
+    @Test
+    public void testArchiverFailureKeepsChunk() throws Exception {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            saveTask(IndexTask.STATUS_COMPLETE, now - (10 + i) * DAY);
+        }
+        purger.setArchiver(new IndexTaskArchiver() {
+            private int calls = 0;
+
+            public void archive(List<IndexTask> tasks) throws Exception {
+                if (++calls > 1) {
+                    throw new Exception("archive unavailable");
+                }
+            }
+        });
+        try {
+            purger.purge();
+            Assert.fail("The archiver failure should stop the purge.");
+        } catch (Exception e) {
+            Assert.assertEquals("archive unavailable", e.getMessage());
+        }
+        Assert.assertEquals(2, repo.count());
+    }
+
+    private IndexTask saveTask(String status, long taskModifiedDate) {
+        IndexTask task = new IndexTask();
+        task.setPid("purge-" + UUID.randomUUID().toString());
+        task.setStatus(status);
+        task.setTaskModifiedDate(taskModifiedDate);
+        return repo.save(task);
+    }
+}
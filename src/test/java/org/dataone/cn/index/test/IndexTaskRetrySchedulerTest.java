@@ -0,0 +1,266 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.cn.index.task.IndexTaskRepository;
+import org.dataone.cn.index.task.IndexTaskRetryScheduler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "test-context.xml" })
+public class IndexTaskRetrySchedulerTest {
+
+    @Autowired
+    private IndexTaskRepository repo;
+
+    @Autowired
+    private IndexTaskRetryScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        repo.deleteAll();
+        scheduler.clear();
+        scheduler.setHorizonMillis(60 * 1000L);
+        scheduler.setLoadSize(10000);
+        scheduler.setMaxScheduled(100000);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+        scheduler.clear();
+    }
+
+    @Test
+    public void testReleasesRetriesWhenDue() throws Exception {
+        long now = System.currentTimeMillis();
+        IndexTask overdue = saveFailedTask(now - 1000);
+        IndexTask soon = saveFailedTask(now + 700);
+        saveFailedTask(now + 24 * 60 * 60 * 1000L);
+        saveIndexTask(IndexTask.STATUS_NEW, now - 1000);
+
+        Assert.assertEquals(2, scheduler.refresh());
+        Assert.assertEquals(2, scheduler.getScheduledCount());
+
+        List<IndexTask> due = scheduler.takeDueTasks(10, 1, TimeUnit.SECONDS);
+        Assert.assertEquals(1, due.size());
+        Assert.assertEquals(overdue.getId(), due.get(0).getId());
+        Assert.assertEquals(IndexTask.STATUS_IN_PROCESS, due.get(0).getStatus());
+        Assert.assertEquals(4, due.get(0).getTryCount());
+        Assert.assertEquals(IndexTask.STATUS_IN_PROCESS, repo.findOne(overdue.getId())
+                .getStatus());
+
+        due = scheduler.takeDueTasks(10, 5, TimeUnit.SECONDS);
+        Assert.assertTrue(System.currentTimeMillis() >= soon.getNextExecution());
+        Assert.assertEquals(1, due.size());
+        Assert.assertEquals(soon.getId(), due.get(0).getId());
+
+        Assert.assertTrue(scheduler.takeDueTasks(10, 200, TimeUnit.MILLISECONDS).isEmpty());
+    }
+
+    @Test
+    public void testRefreshIsIncremental() throws Exception {
+        long now = System.currentTimeMillis();
+        saveFailedTask(now + 30000);
+        Assert.assertEquals(1, scheduler.refresh());
+        Assert.assertEquals(0, scheduler.refresh());
+
+        // failed after the refresh, due within the part already loaded
+        IndexTask late = saveFailedTask(now - 500);
+        Assert.assertEquals(1, scheduler.refresh());
+        List<IndexTask> due = scheduler.takeDueTasks(10, 1, TimeUnit.SECONDS);
+        Assert.assertEquals(1, due.size());
+        Assert.assertEquals(late.getId(), due.get(0).getId());
+    }
+
+    @Test
+    public void testSkipsTasksNoLongerDue() throws Exception {
+        IndexTask task = saveFailedTask(System.currentTimeMillis() - 1000);
+        scheduler.refresh();
+        task = repo.findOne(task.getId());
+        task.setStatus(IndexTask.STATUS_NEW);
+        repo.save(task);
+        Assert.assertTrue(scheduler.takeDueTasks(10, 1, TimeUnit.SECONDS).isEmpty());
+        Assert.assertEquals(0, scheduler.getScheduledCount());
+    }
+
+    /**
+     * More tasks than loadSize due at the same time, as a bulk markFailed
+     * without jitter leaves them, are all loaded by one refresh; so are the
+     * tasks modified since the previous refresh.
+     */
+    @Test
+    public void testRefreshPagesThroughEqualNextExecutions() throws Exception {
+        scheduler.setLoadSize(2);
+        long nextExecution = System.currentTimeMillis() + 30000;
+        for (int i = 0; i < 5; i++) {
+            saveFailedTask(nextExecution);
+        }
+        saveFailedTask(nextExecution + 1);
+        Assert.assertEquals(6, scheduler.refresh());
+        Assert.assertEquals(6, scheduler.getScheduledCount());
+
+        for (int i = 0; i < 5; i++) {
+            saveFailedTask(System.currentTimeMillis() - 1000);
+        }
+        Assert.assertEquals(5, scheduler.refresh());
+        Assert.assertEquals(11, scheduler.getScheduledCount());
+    }
+
+    /**
+     * The first load after an outage takes the oldest overdue retries up to
+     * maxScheduled; later refreshes load the rest as retries are released.
+     */
+    @Test
+    public void testScheduleIsCapped() throws Exception {
+        scheduler.setLoadSize(2);
+        scheduler.setMaxScheduled(3);
+        long now = System.currentTimeMillis();
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(saveFailedTask(now - (10 - i) * 60 * 1000L).getId());
+        }
+        Assert.assertEquals(3, scheduler.refresh());
+        Assert.assertEquals(3, scheduler.getScheduledCount());
+        Assert.assertEquals(0, scheduler.refresh());
+
+        List<IndexTask> due = scheduler.takeDueTasks(10, 1, TimeUnit.SECONDS);
+        Assert.assertEquals(3, due.size());
+        Assert.assertEquals(ids.subList(0, 3), idsOf(due));
+
+        // failed again meanwhile, loaded once there is room
+        IndexTask again = due.get(0);
+        again.setStatus(IndexTask.STATUS_FAILED);
+        again.setNextExection(now - 1000);
+        repo.save(again);
+        Assert.assertEquals(3, scheduler.refresh());
+        due = scheduler.takeDueTasks(10, 1, TimeUnit.SECONDS);
+        Assert.assertEquals(3, due.size());
+        Assert.assertEquals(Arrays.asList(ids.get(3), ids.get(4), again.getId()), idsOf(due));
+    }
+
+    /**
+     * A due retry is handed to one caller only, and not to a worker claiming
+     * NEW tasks, even when another scheduler loaded the same schedule.
+     */
+    @Test
+    public void testDueTasksAreClaimedOnce() throws Exception {
+        IndexTask task = saveFailedTask(System.currentTimeMillis() - 1000);
+        IndexTaskRetryScheduler other = new IndexTaskRetryScheduler();
+        ReflectionTestUtils.setField(other, "repository", repo);
+        other.setHorizonMillis(60 * 1000L);
+        Assert.assertEquals(1, scheduler.refresh());
+        Assert.assertEquals(1, other.refresh());
+
+        List<IndexTask> due = scheduler.takeDueTasks(10, 1, TimeUnit.SECONDS);
+        Assert.assertEquals(1, due.size());
+        Assert.assertEquals(task.getId(), due.get(0).getId());
+        Assert.assertTrue(other.takeDueTasks(10, 1, TimeUnit.SECONDS).isEmpty());
+        Assert.assertTrue(repo.claimNewTasks(10).isEmpty());
+    }
+
+    /**
+     * A refresh that reschedules a task while takeDueTasks releases its
+     * earlier entry keeps the new entry, and the retry is released when that
+     * comes due.
+     */
+    @Test
+    public void testRefreshDuringTakeKeepsRescheduledRetry() throws Exception {
+        final IndexTask task = saveFailedTask(System.currentTimeMillis() - 1000);
+        final IndexTaskRetryScheduler other = new IndexTaskRetryScheduler();
+        ReflectionTestUtils.setField(other, "repository", repo);
+        other.setHorizonMillis(60 * 1000L);
+        final AtomicBoolean rescheduled = new AtomicBoolean();
+        // the task fails again, and is refreshed, just as its first entry is
+        // released
+        ReflectionTestUtils.setField(other, "scheduled", new ConcurrentHashMap<Long, Long>() {
+            @Override
+            public Long remove(Object key) {
+                reschedule();
+                return super.remove(key);
+            }
+
+            @Override
+            public boolean remove(Object key, Object value) {
+                reschedule();
+                return super.remove(key, value);
+            }
+
+            private void reschedule() {
+                if (rescheduled.compareAndSet(false, true)) {
+                    IndexTask failed = repo.findOne(task.getId());
+                    failed.setNextExection(System.currentTimeMillis() + 700);
+                    failed.setStatus(IndexTask.STATUS_FAILED);
+                    repo.save(failed);
+                    Assert.assertEquals(1, other.refresh());
+                }
+            }
+        });
+        Assert.assertEquals(1, other.refresh());
+
+        Assert.assertTrue(other.takeDueTasks(10, 1, TimeUnit.SECONDS).isEmpty());
+        Assert.assertTrue(rescheduled.get());
+        Assert.assertEquals(1, other.getScheduledCount());
+        List<IndexTask> due = other.takeDueTasks(10, 5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, due.size());
+        Assert.assertEquals(task.getId(), due.get(0).getId());
+    }
+
+    private List<Long> idsOf(List<IndexTask> tasks) {
+        List<Long> ids = new ArrayList<Long>();
+        for (IndexTask task : tasks) {
+            ids.add(task.getId());
+        }
+        return ids;
+    }
+
+    private IndexTask saveFailedTask(long nextExecution) {
+        return saveIndexTask(IndexTask.STATUS_FAILED, nextExecution);
+    }
+
+    private IndexTask saveIndexTask(String status, long nextExecution) {
+        IndexTask task = new IndexTask();
+        task.setPid("retry-" + UUID.randomUUID().toString());
+        task.setStatus(status);
+        task.setTryCount(3);
+        task.setNextExection(nextExecution);
+        return repo.save(task);
+    }
+}
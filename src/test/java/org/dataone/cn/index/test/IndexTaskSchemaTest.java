@@ -0,0 +1,173 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.UUID;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.cn.index.task.IndexTaskRepository;
+import org.dataone.cn.index.task.IndexTaskStatus;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.hql.QueryTranslator;
+import org.hibernate.hql.ast.ASTQueryTranslatorFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Verifies which index of the index_task table the H2 planner chooses for the
+ * SQL that Hibernate generates from the JPQL of the IndexTaskRepository
+ * finders, with literal values in place of the query parameters.
+ * 
+ * The retry finders must use idx_index_task_retry and the purge finder
+ * idx_index_task_purge. The H2 planner does not take the ORDER BY clause into
+ * account when choosing between indexes with the same leading column, and
+ * prefers the narrower idx_index_task_purge for the queue finders, so for them
+ * the test only requires an index lookup on status rather than a table scan;
+ * that idx_index_task_queue serves their order is not checked here.
+ * 
+ * idx_index_task_pid is not covered: H2 can not index the TEXT pid column, so
+ * the index only exists in the postgres schema scripts.
+ * 
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "test-context.xml" })
+public class IndexTaskSchemaTest {
+
+    private static Logger logger = Logger.getLogger(IndexTaskSchemaTest.class.getName());
+
+    private static final int NEW = IndexTaskStatus.fromValue(IndexTask.STATUS_NEW).getCode();
+    private static final int FAILED = IndexTaskStatus.fromValue(IndexTask.STATUS_FAILED)
+            .getCode();
+
+    @Autowired
+    private IndexTaskRepository repo;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private JdbcTemplate jdbcTemplate;
+
+    @Before
+    public void setUp() {
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        repo.deleteAll();
+        for (int i = 0; i < 20; i++) {
+            IndexTask task = new IndexTask();
+            task.setPid("schema-test-" + UUID.randomUUID().toString());
+            task.setPriority(i % 4);
+            if (i % 2 == 0) {
+                task.markFailed();
+            }
+            repo.save(task);
+        }
+    }
+
+    @Test
+    public void testQueueFindersUseStatusIndex() {
+        String[] finders = { "findByStatusOrderByPriorityAscTaskModifiedDateAscIdAsc",
+                "findByStatusAndTryCountLessThanOrderByPriorityAscTaskModifiedDateAscIdAsc",
+                "findQueuePageAfter", "findQueueSummaryPage", "findQueueSummaryPageAfter" };
+        for (String finder : finders) {
+            String plan = explainFinder(finder, NEW);
+            Assert.assertFalse(finder + ": " + plan, plan.contains("TABLESCAN"));
+            assertIndexLookup(finder, plan, "IDX_INDEX_TASK_[A-Z]+", "STATUS = " + NEW);
+        }
+    }
+
+    @Test
+    public void testRetryFindersUseRetryIndex() {
+        String[] finders = { "findRetrySchedule", "findRetryScheduleModifiedSince",
+                "findDueSummaries", "findByStatusAndNextExecutionLessThan",
+                "findByStatusAndNextExecutionLessThanAndTryCountLessThan" };
+        for (String finder : finders) {
+            String plan = explainFinder(finder, FAILED);
+            assertIndexLookup(finder, plan, "IDX_INDEX_TASK_RETRY", "STATUS = " + FAILED);
+        }
+    }
+
+    @Test
+    public void testPurgeFinderUsesPurgeIndex() {
+        String finder = "findIdsByStatusModifiedBefore";
+        String plan = explainFinder(finder, FAILED);
+        assertIndexLookup(finder, plan, "IDX_INDEX_TASK_PURGE", "STATUS = " + FAILED);
+        assertIndexLookup(finder, plan, "IDX_INDEX_TASK_PURGE", "TASKMODIFIEDDATE < 0");
+    }
+
+    /*
+     * Asserts that the plan looks up the index_task rows through an index
+     * matching the pattern, with the condition among the index conditions
+     * H2 lists in the comment after the index name.
+     */
+    private void assertIndexLookup(String finder, String plan, String index, String condition) {
+        Assert.assertTrue(finder + ": " + plan, plan.matches("(?s).*/\\* PUBLIC\\." + index
+                + ":[^*]*\\b" + condition + "\\b.*"));
+    }
+
+    /*
+     * Translates the JPQL of the named finder to SQL, with the status code in
+     * place of :status and 0 in place of every other parameter, and returns
+     * the H2 plan of the SQL.
+     */
+    private String explainFinder(String finder, int status) {
+        String jpql = null;
+        for (Method method : IndexTaskRepository.class.getMethods()) {
+            Query query = method.getAnnotation(Query.class);
+            if (method.getName().equals(finder) && query != null) {
+                jpql = query.value();
+            }
+        }
+        Assert.assertNotNull("No @Query on " + finder, jpql);
+        jpql = jpql.replace(":status", Integer.toString(status)).replaceAll(":\\w+", "0");
+
+        SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor) ((HibernateEntityManagerFactory) entityManagerFactory)
+                .getSessionFactory();
+        QueryTranslator translator = new ASTQueryTranslatorFactory().createQueryTranslator(jpql,
+                jpql, Collections.EMPTY_MAP, sessionFactory);
+        translator.compile(Collections.EMPTY_MAP, false);
+        return explain(translator.getSQLString());
+    }
+
+    private String explain(String sql) {
+        jdbcTemplate.execute("ANALYZE");
+        String plan = jdbcTemplate.queryForObject("EXPLAIN " + sql, String.class);
+        logger.info("Query plan: " + plan);
+        return plan.toUpperCase();
+    }
+}
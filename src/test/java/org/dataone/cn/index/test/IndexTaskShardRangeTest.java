@@ -0,0 +1,62 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test;
+
+import org.dataone.cn.index.task.IndexTaskShardRange;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IndexTaskShardRangeTest {
+
+    /**
+     * The shard keys must match the SQL expression of the postgres schema
+     * script: ('x' || substr(md5(pid), 1, 8))::bit(32)::int & 1023
+     */
+    @Test
+    public void testShardKey() {
+        Assert.assertEquals(648, IndexTaskShardRange.shardKey("doi:10.5063/F1QN652R"));
+        Assert.assertEquals(577, IndexTaskShardRange.shardKey("résumé-ü"));
+        Assert.assertEquals(0, IndexTaskShardRange.shardKey(null));
+    }
+
+    @Test
+    public void testForWorkerCoversAllShards() {
+        for (int workerCount : new int[] { 1, 3, 7, 1024 }) {
+            int next = 0;
+            for (int worker = 0; worker < workerCount; worker++) {
+                IndexTaskShardRange range = IndexTaskShardRange.forWorker(worker, workerCount);
+                Assert.assertEquals(next, range.getFrom());
+                Assert.assertTrue(range.getTo() - range.getFrom() >= IndexTaskShardRange.SHARD_COUNT
+                        / workerCount);
+                next = range.getTo();
+            }
+            Assert.assertEquals(IndexTaskShardRange.SHARD_COUNT, next);
+        }
+        Assert.assertEquals(IndexTaskShardRange.ALL, IndexTaskShardRange.forWorker(0, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testForWorkerOutOfRange() {
+        IndexTaskShardRange.forWorker(4, 4);
+    }
+}
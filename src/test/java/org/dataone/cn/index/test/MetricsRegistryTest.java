@@ -0,0 +1,188 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dataone.cn.index.util.Gauge;
+import org.dataone.cn.index.util.Histogram;
+import org.dataone.cn.index.util.HistogramSnapshot;
+import org.dataone.cn.index.util.MetricsRegistry;
+import org.dataone.cn.index.util.MetricsReporter;
+import org.dataone.cn.index.util.MetricsSnapshot;
+import org.dataone.cn.index.util.PerformanceLogger;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void testHistogramPercentiles() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+        HistogramSnapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(100000, snapshot.getCount());
+        Assert.assertEquals(1, snapshot.getMin());
+        Assert.assertEquals(100000, snapshot.getMax());
+        Assert.assertEquals(50000.5, snapshot.getMean(), 0.001);
+        assertWithinPrecision(50000, snapshot.getP50());
+        assertWithinPrecision(99000, snapshot.getP99());
+        assertWithinPrecision(99900, snapshot.getP999());
+        Assert.assertEquals(100000, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testHistogramPrecision() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            Histogram histogram = new Histogram();
+            histogram.record(value);
+            histogram.record(Long.MAX_VALUE);
+            assertWithinPrecision(value, histogram.snapshot().getP50());
+        }
+        Histogram histogram = new Histogram();
+        histogram.record(127);
+        Assert.assertEquals(127, histogram.snapshot().getP50());
+    }
+
+    @Test
+    public void testSnapshotAndResetCountsEachValueOnce() throws Exception {
+        final Histogram histogram = new Histogram();
+        final int threads = 4;
+        final int perThread = 100000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        histogram.record(i % 1000);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        long counted = 0;
+        while (!done.await(1, TimeUnit.MILLISECONDS)) {
+            counted += histogram.snapshotAndReset().getCount();
+        }
+        counted += histogram.snapshotAndReset().getCount();
+        Assert.assertEquals(threads * perThread, counted);
+        Assert.assertEquals(0, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void testReport() {
+        MetricsRegistry registry = new MetricsRegistry();
+        final List<MetricsSnapshot> reported = new ArrayList<MetricsSnapshot>();
+        registry.addReporter(new MetricsReporter() {
+            @Override
+            public void report(MetricsSnapshot snapshot) {
+                reported.add(snapshot);
+            }
+        });
+        final AtomicLong queueLength = new AtomicLong(7);
+        registry.register("queue", new Gauge() {
+            @Override
+            public long getValue() {
+                return queueLength.get();
+            }
+        });
+        registry.counter("claimed").increment(3);
+        registry.timer("index").record(2, TimeUnit.MILLISECONDS);
+        registry.timer("index").record(4, TimeUnit.MILLISECONDS);
+
+        Assert.assertSame(registry.timer("index"), registry.timer("index"));
+        Assert.assertEquals(2, registry.snapshot().getTimers().get("index").getCount());
+
+        MetricsSnapshot snapshot = registry.report();
+        Assert.assertEquals(1, reported.size());
+        Assert.assertSame(snapshot, reported.get(0));
+        Assert.assertEquals(Long.valueOf(3), snapshot.getCounters().get("claimed"));
+        Assert.assertEquals(Long.valueOf(7), snapshot.getGauges().get("queue"));
+        HistogramSnapshot index = snapshot.getTimers().get("index");
+        Assert.assertEquals(2, index.getCount());
+        Assert.assertEquals(2000, index.getMin());
+        Assert.assertEquals(4000, index.getMax());
+
+        // timers and counters cover the interval since the last report, idle
+        // timers are dropped
+        queueLength.set(9);
+        snapshot = registry.report();
+        Assert.assertEquals(Long.valueOf(0), snapshot.getCounters().get("claimed"));
+        Assert.assertNull(snapshot.getTimers().get("index"));
+        Assert.assertEquals(Long.valueOf(9), snapshot.getGauges().get("queue"));
+        Assert.assertEquals(reported.get(0).getTakenAt(), snapshot.getIntervalStart());
+    }
+
+    @Test
+    public void testTimersAreCapped() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.setMaxTimers(3);
+        registry.timer("a").record(1, TimeUnit.MILLISECONDS);
+        registry.timer("b").record(1, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 100; i++) {
+            registry.timer("pid-" + i).record(1, TimeUnit.MILLISECONDS);
+        }
+        Assert.assertSame(registry.timer(MetricsRegistry.OVERFLOW_TIMER), registry.timer("c"));
+        Assert.assertSame(registry.timer("a"), registry.timer("a"));
+
+        MetricsSnapshot snapshot = registry.report();
+        Assert.assertEquals(4, snapshot.getTimers().size());
+        Assert.assertEquals(1, snapshot.getTimers().get("pid-0").getCount());
+        Assert.assertEquals(99, snapshot.getTimers().get(MetricsRegistry.OVERFLOW_TIMER)
+                .getCount());
+
+        // idle timers are dropped at the next report, making room for new names
+        registry.timer("a").record(1, TimeUnit.MILLISECONDS);
+        snapshot = registry.report();
+        Assert.assertEquals(1, snapshot.getTimers().size());
+        registry.timer("a").record(1, TimeUnit.MILLISECONDS);
+        registry.timer("c").record(1, TimeUnit.MILLISECONDS);
+        snapshot = registry.report();
+        Assert.assertEquals(2, snapshot.getTimers().size());
+        Assert.assertEquals(1, snapshot.getTimers().get("c").getCount());
+    }
+
+    @Test
+    public void testDisabledPerformanceLoggerRecordsNothing() {
+        Assume.assumeTrue(!PerformanceLogger.getInstance().isLogEnabled());
+        String id = "MetricsRegistryTest.disabled";
+        PerformanceLogger.getInstance().log(id, 5);
+        Assert.assertNull(MetricsRegistry.getInstance().snapshot().getTimers().get(id));
+    }
+
+    private void assertWithinPrecision(long expected, long actual) {
+        Assert.assertTrue(expected + " > " + actual, actual >= expected);
+        Assert.assertTrue(expected + " << " + actual, actual - expected <= expected / 64);
+    }
+}
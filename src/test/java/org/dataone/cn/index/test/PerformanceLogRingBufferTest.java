@@ -0,0 +1,225 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.dataone.cn.index.util.PerformanceLogRingBuffer;
+import org.dataone.cn.index.util.PerformanceLogRingBuffer.OverflowPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PerformanceLogRingBufferTest {
+
+    @Test
+    public void testConcurrentOffersAreAllWritten() throws Exception {
+        final CapturingAppender appender = new CapturingAppender();
+        final PerformanceLogRingBuffer buffer = new PerformanceLogRingBuffer(
+                logger("concurrent", appender), Level.INFO, 16, OverflowPolicy.BLOCK);
+        buffer.start();
+
+        final int threads = 4;
+        final int perThread = 10000;
+        final CountDownLatch go = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final String id = "producer" + t;
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        buffer.offer(id, i);
+                    }
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+        go.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        buffer.stop();
+
+        Assert.assertEquals(0, buffer.getDroppedCount());
+        Assert.assertEquals(0, buffer.getPendingCount());
+        Assert.assertEquals(threads * perThread, buffer.getWrittenCount());
+        List<String> messages = appender.getMessages();
+        Assert.assertEquals(threads * perThread, messages.size());
+        // each producer's events are written in the order it offered them
+        int[] next = new int[threads];
+        for (String message : messages) {
+            int producer = Integer.parseInt(message.substring("producer".length(),
+                    message.indexOf(',')));
+            Assert.assertEquals("producer" + producer + ", " + next[producer], message);
+            next[producer]++;
+        }
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        CapturingAppender appender = new CapturingAppender();
+        PerformanceLogRingBuffer buffer = new PerformanceLogRingBuffer(logger("drop", appender),
+                Level.INFO, 5, OverflowPolicy.DROP);
+        Assert.assertEquals(8, buffer.getCapacity());
+
+        for (int i = 0; i < 20; i++) {
+            buffer.offer("timing", i);
+        }
+        Assert.assertEquals(12, buffer.getDroppedCount());
+        Assert.assertEquals(8, buffer.getPendingCount());
+        Assert.assertTrue(appender.getMessages().isEmpty());
+
+        buffer.start();
+        buffer.stop();
+        Assert.assertEquals(8, buffer.getWrittenCount());
+        Assert.assertEquals(0, buffer.getPendingCount());
+        List<String> messages = appender.getMessages();
+        for (int i = 0; i < 8; i++) {
+            Assert.assertEquals("timing, " + i, messages.get(i));
+        }
+    }
+
+    @Test
+    public void testCallerWritesWhenFull() throws Exception {
+        CapturingAppender appender = new CapturingAppender();
+        PerformanceLogRingBuffer buffer = new PerformanceLogRingBuffer(logger("caller", appender),
+                Level.INFO, 4, OverflowPolicy.CALLER_WRITES);
+
+        for (int i = 0; i < 6; i++) {
+            buffer.offer("timing", i);
+        }
+        Assert.assertEquals(0, buffer.getDroppedCount());
+        Assert.assertEquals(4, buffer.getPendingCount());
+        Assert.assertEquals(2, buffer.getWrittenCount());
+        Assert.assertEquals("timing, 4", appender.getMessages().get(0));
+        Assert.assertEquals("timing, 5", appender.getMessages().get(1));
+
+        buffer.start();
+        buffer.stop();
+        Assert.assertEquals(6, buffer.getWrittenCount());
+        Assert.assertEquals("timing, 0", appender.getMessages().get(2));
+    }
+
+    @Test(timeout = 10000)
+    public void testBlockWritesWhenStopped() throws Exception {
+        CapturingAppender appender = new CapturingAppender();
+        PerformanceLogRingBuffer buffer = new PerformanceLogRingBuffer(logger("stopped", appender),
+                Level.INFO, 2, OverflowPolicy.BLOCK);
+        buffer.start();
+        buffer.stop();
+
+        // nobody drains the buffer any more, the callers must not wait
+        for (int i = 0; i < 5; i++) {
+            buffer.offer("timing", i);
+        }
+        Assert.assertEquals(0, buffer.getDroppedCount());
+        Assert.assertEquals(2, buffer.getPendingCount());
+        Assert.assertEquals(3, buffer.getWrittenCount());
+        Assert.assertEquals("timing, 2", appender.getMessages().get(0));
+    }
+
+    @Test
+    public void testIdleWriterWakesForFullBufferAndStop() throws Exception {
+        CapturingAppender appender = new CapturingAppender();
+        PerformanceLogRingBuffer buffer = new PerformanceLogRingBuffer(logger("idle", appender),
+                Level.INFO, 2, OverflowPolicy.BLOCK);
+        buffer.start();
+        // long enough for the writer to back off to its longest park
+        Thread.sleep(500);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            buffer.offer("timing", i);
+        }
+        buffer.stop();
+        Assert.assertTrue(System.currentTimeMillis() - start < 100);
+        Assert.assertEquals(10, buffer.getWrittenCount());
+        Assert.assertEquals("timing, 9", appender.getMessages().get(9));
+    }
+
+    @Test
+    public void testMessagesAreWrittenAsOffered() throws Exception {
+        CapturingAppender appender = new CapturingAppender();
+        PerformanceLogRingBuffer buffer = new PerformanceLogRingBuffer(
+                logger("message", appender), Level.INFO, 8, OverflowPolicy.DROP);
+        buffer.start();
+        buffer.offer("indexed 10 tasks");
+        buffer.offer("timing", 0);
+        buffer.stop();
+
+        Assert.assertEquals(2, appender.getMessages().size());
+        Assert.assertEquals("indexed 10 tasks", appender.getMessages().get(0));
+        Assert.assertEquals("timing, 0", appender.getMessages().get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new PerformanceLogRingBuffer(Logger.getLogger("performanceStats"), Level.INFO, 0,
+                OverflowPolicy.DROP);
+    }
+
+    private static Logger logger(String name, CapturingAppender appender) {
+        Logger logger = Logger.getLogger(PerformanceLogRingBufferTest.class.getName() + "." + name);
+        logger.removeAllAppenders();
+        logger.setAdditivity(false);
+        logger.setLevel(Level.INFO);
+        logger.addAppender(appender);
+        return logger;
+    }
+
+    private static class CapturingAppender extends AppenderSkeleton {
+
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        protected void append(LoggingEvent event) {
+            messages.add(event.getRenderedMessage());
+        }
+
+        List<String> getMessages() {
+            return new ArrayList<String>(messages);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean requiresLayout() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.cn.index.task.SystemMetadataCodec;
+import org.dataone.service.types.v1.Checksum;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
+import org.dataone.service.types.v1.Subject;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.dataone.service.util.TypeMarshaller;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SystemMetadataCodecTest {
+
+    @Test
+    public void testRoundTripNonAsciiIdentifier() throws Exception {
+        String pid = "doi:10.5063/été-数据-ü";
+        String xml = SystemMetadataCodec.marshal(buildSysMetaData(pid));
+        Assert.assertTrue(xml.contains("UTF-8"));
+        Assert.assertEquals(pid, SystemMetadataCodec.unmarshal(xml).getIdentifier().getValue());
+
+        boolean compress = IndexTask.isCompressSysMetadata();
+        try {
+            IndexTask.setCompressSysMetadata(true);
+            IndexTask task = new IndexTask(buildSysMetaData(pid), null);
+            Assert.assertEquals(pid, task.unMarshalSystemMetadata().getIdentifier().getValue());
+            IndexTask.setCompressSysMetadata(false);
+            task = new IndexTask(buildSysMetaData(pid), null);
+            Assert.assertEquals(pid, task.unMarshalSystemMetadata().getIdentifier().getValue());
+        } finally {
+            IndexTask.setCompressSysMetadata(compress);
+        }
+    }
+
+    @Test
+    public void testReadsTypeMarshallerDocuments() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        TypeMarshaller.marshalTypeToOutputStream(buildSysMetaData("type-marshaller-pid"), os);
+        SystemMetadata smd = SystemMetadataCodec.unmarshal(os.toString("UTF-8"));
+        Assert.assertEquals("type-marshaller-pid", smd.getIdentifier().getValue());
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int matched = 0;
+                        for (int i = 0; i < 100; i++) {
+                            String pid = "concurrent-" + thread + "-" + i;
+                            String xml = SystemMetadataCodec.marshal(buildSysMetaData(pid));
+                            if (pid.equals(SystemMetadataCodec.unmarshal(xml).getIdentifier()
+                                    .getValue())) {
+                                matched++;
+                            }
+                        }
+                        return matched;
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                Assert.assertEquals(Integer.valueOf(100), result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private SystemMetadata buildSysMetaData(String pidValue) {
+        SystemMetadata systemMetadata = new SystemMetadata();
+        Identifier identifier = new Identifier();
+        identifier.setValue(pidValue);
+        systemMetadata.setIdentifier(identifier);
+        ObjectFormatIdentifier fmtid = new ObjectFormatIdentifier();
+        fmtid.setValue("test-format");
+        systemMetadata.setFormatId(fmtid);
+        systemMetadata.setSerialVersion(BigInteger.ONE);
+        systemMetadata.setSize(BigInteger.TEN);
+        Checksum checksum = new Checksum();
+        checksum.setValue("V29ybGQgSGVsbG8h");
+        checksum.setAlgorithm("SHA-1");
+        systemMetadata.setChecksum(checksum);
+        Subject subject = new Subject();
+        subject.setValue("DataONE");
+        systemMetadata.setRightsHolder(subject);
+        systemMetadata.setSubmitter(subject);
+        systemMetadata.setDateSysMetadataModified(new Date());
+        return systemMetadata;
+    }
+}
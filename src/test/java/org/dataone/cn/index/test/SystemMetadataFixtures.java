@@ -0,0 +1,124 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+import org.dataone.service.types.v1.AccessPolicy;
+import org.dataone.service.types.v1.AccessRule;
+import org.dataone.service.types.v1.Checksum;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
+import org.dataone.service.types.v1.Permission;
+import org.dataone.service.types.v1.Replica;
+import org.dataone.service.types.v1.ReplicationPolicy;
+import org.dataone.service.types.v1.ReplicationStatus;
+import org.dataone.service.types.v1.Subject;
+import org.dataone.service.types.v2.SystemMetadata;
+
+/**
+ * System metadata instances shared by the repository tests, benchmarks and
+ * the load test.
+ */
+public class SystemMetadataFixtures {
+
+    private SystemMetadataFixtures() {
+    }
+
+    public static SystemMetadata buildTestSysMetaData(String pidValue, String formatValue) {
+        SystemMetadata systemMetadata = new SystemMetadata();
+
+        Identifier identifier = new Identifier();
+        identifier.setValue(pidValue);
+        systemMetadata.setIdentifier(identifier);
+
+        ObjectFormatIdentifier fmtid = new ObjectFormatIdentifier();
+        fmtid.setValue(formatValue);
+        systemMetadata.setFormatId(fmtid);
+
+        systemMetadata.setSerialVersion(BigInteger.TEN);
+        systemMetadata.setSize(BigInteger.TEN);
+        Checksum checksum = new Checksum();
+        checksum.setValue("V29ybGQgSGVsbG8h");
+        checksum.setAlgorithm("SHA-1");
+        systemMetadata.setChecksum(checksum);
+
+        Subject rightsHolder = new Subject();
+        rightsHolder.setValue("DataONE");
+        systemMetadata.setRightsHolder(rightsHolder);
+
+        Subject submitter = new Subject();
+        submitter.setValue("Kermit de Frog");
+        systemMetadata.setSubmitter(submitter);
+
+        systemMetadata.setDateSysMetadataModified(new Date());
+        return systemMetadata;
+    }
+
+    /**
+     * Build a system metadata instance of typical production size, with an
+     * access policy and a replica list.
+     */
+    public static SystemMetadata buildRealisticSysMetaData(String pidValue, String formatValue) {
+        SystemMetadata systemMetadata = buildTestSysMetaData(pidValue, formatValue);
+
+        AccessPolicy accessPolicy = new AccessPolicy();
+        AccessRule publicRead = new AccessRule();
+        Subject publicSubject = new Subject();
+        publicSubject.setValue("public");
+        publicRead.addSubject(publicSubject);
+        publicRead.addPermission(Permission.READ);
+        accessPolicy.addAllow(publicRead);
+        AccessRule groupWrite = new AccessRule();
+        Subject group = new Subject();
+        group.setValue("CN=test-group,DC=dataone,DC=org");
+        groupWrite.addSubject(group);
+        groupWrite.addPermission(Permission.WRITE);
+        groupWrite.addPermission(Permission.CHANGE_PERMISSION);
+        accessPolicy.addAllow(groupWrite);
+        systemMetadata.setAccessPolicy(accessPolicy);
+
+        ReplicationPolicy replicationPolicy = new ReplicationPolicy();
+        replicationPolicy.setReplicationAllowed(Boolean.TRUE);
+        replicationPolicy.setNumberReplicas(Integer.valueOf(3));
+        systemMetadata.setReplicationPolicy(replicationPolicy);
+
+        NodeReference origin = new NodeReference();
+        origin.setValue("urn:node:mnTestKNB");
+        systemMetadata.setOriginMemberNode(origin);
+        systemMetadata.setAuthoritativeMemberNode(origin);
+        for (int i = 0; i < 5; i++) {
+            Replica replica = new Replica();
+            NodeReference node = new NodeReference();
+            node.setValue("urn:node:mnReplica" + i);
+            replica.setReplicaMemberNode(node);
+            replica.setReplicationStatus(ReplicationStatus.COMPLETED);
+            replica.setReplicaVerified(new Date());
+            systemMetadata.addReplica(replica);
+        }
+        systemMetadata.setDateUploaded(new Date());
+        return systemMetadata;
+    }
+}
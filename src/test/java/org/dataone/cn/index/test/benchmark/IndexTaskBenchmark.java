@@ -0,0 +1,136 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test.benchmark;
+
+import org.dataone.cn.index.task.IgnoringIndexIdPool;
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.cn.index.test.SystemMetadataFixtures;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Measures the IndexTask operations run for every task on the indexing path:
+ * building a task from system metadata, parsing it back, and deciding its
+ * kind, priority and whether it is ignored. Run with mvn -Pbenchmark test.
+ */
+public class IndexTaskBenchmark {
+
+    private static final String OBJECT_PATH = "/var/metacat/data/benchmark";
+
+    @Test
+    public void benchmarkIndexTask() throws Exception {
+        final SystemMetadata smd = SystemMetadataFixtures.buildRealisticSysMetaData(
+                "benchmark-pid", "eml://ecoinformatics.org/eml-2.1.1");
+        final SystemMetadata ignored = SystemMetadataFixtures.buildRealisticSysMetaData(
+                "OBJECT_FORMAT_LIST.1.1", "eml://ecoinformatics.org/eml-2.1.1");
+        final SystemMetadata resourceMap = SystemMetadataFixtures.buildRealisticSysMetaData(
+                "benchmark-resource-map", "http://www.openarchives.org/ore/terms");
+        MicroBenchmark benchmark = new MicroBenchmark();
+
+        boolean compress = IndexTask.isCompressSysMetadata();
+        try {
+            IndexTask.setCompressSysMetadata(false);
+            final IndexTask textTask = new IndexTask(smd, OBJECT_PATH);
+            benchmark.run("new IndexTask(SystemMetadata, String)", new MicroBenchmark.Operation() {
+                @Override
+                public Object run(int invocation) {
+                    return new IndexTask(smd, OBJECT_PATH);
+                }
+            });
+            benchmark.run("unMarshalSystemMetadata()", new MicroBenchmark.Operation() {
+                @Override
+                public Object run(int invocation) {
+                    // clears the parsed instance kept by the task
+                    textTask.setSysMetadataCompressed(null);
+                    return textTask.unMarshalSystemMetadata();
+                }
+            });
+
+            IndexTask.setCompressSysMetadata(true);
+            final IndexTask compressedTask = new IndexTask(smd, OBJECT_PATH);
+            final byte[] compressed = compressedTask.getSysMetadataCompressed();
+            Assert.assertNotNull(compressed);
+            benchmark.run("new IndexTask(SystemMetadata, String) compressed",
+                    new MicroBenchmark.Operation() {
+                        @Override
+                        public Object run(int invocation) {
+                            return new IndexTask(smd, OBJECT_PATH);
+                        }
+                    });
+            benchmark.run("unMarshalSystemMetadata() compressed", new MicroBenchmark.Operation() {
+                @Override
+                public Object run(int invocation) {
+                    compressedTask.setSysMetadataCompressed(compressed);
+                    return compressedTask.unMarshalSystemMetadata();
+                }
+            });
+        } finally {
+            IndexTask.setCompressSysMetadata(compress);
+        }
+
+        final IndexTask[] tasks = { new IndexTask(smd, OBJECT_PATH),
+                new IndexTask(resourceMap, OBJECT_PATH) };
+        benchmark.run("isDeleteTask()", new MicroBenchmark.Operation() {
+            @Override
+            public Object run(int invocation) {
+                return tasks[invocation & 1].isDeleteTask();
+            }
+        });
+        benchmark.run("setAddPriority()", new MicroBenchmark.Operation() {
+            @Override
+            public Object run(int invocation) {
+                IndexTask task = tasks[invocation & 1];
+                task.setAddPriority();
+                return task.getPriority();
+            }
+        });
+        benchmark.run("setUpdatePriority()", new MicroBenchmark.Operation() {
+            @Override
+            public Object run(int invocation) {
+                IndexTask task = tasks[invocation & 1];
+                task.setUpdatePriority();
+                return task.getPriority();
+            }
+        });
+
+        final SystemMetadata[] pids = { smd, ignored };
+        benchmark.run("IgnoringIndexIdPool.isNotIgnorePid", new MicroBenchmark.Operation() {
+            @Override
+            public Object run(int invocation) {
+                return IgnoringIndexIdPool.isNotIgnorePid(pids[invocation & 1]);
+            }
+        });
+
+        final String[] pidValues = { "benchmark-pid", "OBJECT_FORMAT_LIST.1.1" };
+        benchmark.run("IgnoringIndexIdPool.isNotIgnorePid(String)", new MicroBenchmark.Operation() {
+            @Override
+            public Object run(int invocation) {
+                return IgnoringIndexIdPool.isNotIgnorePid(pidValues[invocation & 1]);
+            }
+        });
+
+        benchmark.report("IndexTask operations, realistic system metadata:");
+        Assert.assertEquals(9, benchmark.getResults().size());
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.cn.index.task.IndexTaskRepository;
+import org.dataone.cn.index.test.SystemMetadataFixtures;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Measures the IndexTaskRepository finders used by the indexing processor
+ * against the embedded database of the tests, with a queue of
+ * benchmark.tasks tasks (default 5000) carrying realistic system metadata.
+ * Run with mvn -Pbenchmark test.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/org/dataone/cn/index/test/test-context.xml" })
+public class IndexTaskRepositoryBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+
+    private static final String[] FORMATS = { "eml://ecoinformatics.org/eml-2.1.1",
+            "application/octet-stream", "http://www.openarchives.org/ore/terms" };
+
+    @Autowired
+    private IndexTaskRepository repo;
+
+    @Test
+    public void benchmarkFinders() throws Exception {
+        int taskCount = Integer.getInteger("benchmark.tasks", 5000);
+        final List<Long> ids = new ArrayList<Long>(taskCount);
+        final List<String> pids = new ArrayList<String>(taskCount);
+        populate(taskCount, ids, pids);
+        final Random random = new Random(42);
+        MicroBenchmark benchmark = new MicroBenchmark();
+
+        benchmark.run("findOne", new MicroBenchmark.Operation() {
+            @Override
+            public Object run(int invocation) {
+                return repo.findOne(ids.get(random.nextInt(ids.size())));
+            }
+        });
+        benchmark.run("findByPid", new MicroBenchmark.Operation() {
+            @Override
+            public Object run(int invocation) {
+                return repo.findByPid(pids.get(random.nextInt(pids.size())));
+            }
+        });
+        benchmark.run("findByPidAndStatus", new MicroBenchmark.Operation() {
+            @Override
+            public Object run(int invocation) {
+                return repo.findByPidAndStatus(pids.get(random.nextInt(pids.size())),
+                        IndexTask.STATUS_NEW);
+            }
+        });
+        benchmark.run("findByStatusOrderBy...IdAsc, page of " + PAGE_SIZE,
+                new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run(int invocation) {
+                        return repo.findByStatusOrderByPriorityAscTaskModifiedDateAscIdAsc(
+                                IndexTask.STATUS_NEW, new PageRequest(0, PAGE_SIZE));
+                    }
+                });
+        final IndexTask lastOfFirstPage = last(repo
+                .findByStatusOrderByPriorityAscTaskModifiedDateAscIdAsc(IndexTask.STATUS_NEW,
+                        new PageRequest(0, PAGE_SIZE)));
+        benchmark.run("findQueuePageAfter, page of " + PAGE_SIZE, new MicroBenchmark.Operation() {
+            @Override
+            public Object run(int invocation) {
+                return repo.findQueuePageAfter(IndexTask.STATUS_NEW,
+                        lastOfFirstPage.getPriority(), lastOfFirstPage.getTaskModifiedDate(),
+                        lastOfFirstPage.getId(), new PageRequest(0, PAGE_SIZE));
+            }
+        });
+        benchmark.run("findQueueSummaryPage, page of " + PAGE_SIZE,
+                new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run(int invocation) {
+                        return repo.findQueueSummaryPage(IndexTask.STATUS_NEW, new PageRequest(0,
+                                PAGE_SIZE));
+                    }
+                });
+        benchmark.run("findDueSummaries, page of " + PAGE_SIZE, new MicroBenchmark.Operation() {
+            @Override
+            public Object run(int invocation) {
+                return repo.findDueSummaries(IndexTask.STATUS_FAILED,
+                        System.currentTimeMillis(), 3, new PageRequest(0, PAGE_SIZE));
+            }
+        });
+        benchmark.run("claimNewTasks(10) and markNew", new MicroBenchmark.Operation() {
+            @Override
+            public Object run(int invocation) {
+                List<IndexTask> claimed = repo.claimNewTasks(10);
+                List<Long> claimedIds = new ArrayList<Long>(claimed.size());
+                for (IndexTask task : claimed) {
+                    claimedIds.add(task.getId());
+                }
+                if (!claimedIds.isEmpty()) {
+                    // puts the tasks back at the end of the queue
+                    repo.markNew(claimedIds, System.currentTimeMillis());
+                }
+                return claimed;
+            }
+        });
+
+        benchmark.report("IndexTaskRepository finders, " + taskCount + " tasks:");
+        Assert.assertEquals(8, benchmark.getResults().size());
+        repo.deleteAll();
+    }
+
+    /**
+     * Insert NEW tasks with add and update priorities over a mix of formats,
+     * and one in ten FAILED tasks that are due for a retry.
+     */
+    private void populate(int taskCount, List<Long> ids, List<String> pids) {
+        repo.deleteAll();
+        Random random = new Random(7);
+        List<IndexTask> tasks = new ArrayList<IndexTask>(taskCount);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < taskCount; i++) {
+            String pid = "benchmark-" + i + "-" + Long.toHexString(random.nextLong());
+            IndexTask task = new IndexTask(SystemMetadataFixtures.buildRealisticSysMetaData(pid,
+                    FORMATS[random.nextInt(FORMATS.length)]), "/var/metacat/data/" + pid);
+            if (random.nextInt(10) < 6) {
+                task.setAddPriority();
+            } else {
+                task.setUpdatePriority();
+            }
+            if (random.nextInt(10) == 0) {
+                task.setStatus(IndexTask.STATUS_FAILED);
+                task.setTryCount(1 + random.nextInt(2));
+                task.setNextExection(now - random.nextInt(60000));
+            } else {
+                task.setStatus(IndexTask.STATUS_NEW);
+            }
+            task.setTaskModifiedDate(now - taskCount + i);
+            tasks.add(task);
+        }
+        repo.enqueueAll(tasks);
+        for (IndexTask task : tasks) {
+            ids.add(task.getId());
+            pids.add(task.getPid());
+        }
+    }
+
+    private static IndexTask last(List<IndexTask> tasks) {
+        Assert.assertFalse(tasks.isEmpty());
+        return tasks.get(tasks.size() - 1);
+    }
+}
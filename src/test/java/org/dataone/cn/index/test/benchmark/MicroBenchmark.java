@@ -0,0 +1,204 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A small benchmark harness for the *Benchmark classes, run by the benchmark
+ * profile (mvn -Pbenchmark test). Each operation is run for a number of
+ * warmup iterations, then measured for a number of timed iterations, and the
+ * throughput, time and heap allocation per operation are reported.
+ * 
+ * The iteration counts and length are taken from the system properties
+ * benchmark.warmupIterations (default 3), benchmark.iterations (default 5)
+ * and benchmark.iterationMillis (default 1000). The allocation rate is read
+ * from the HotSpot thread allocation counter and reported as -1 on JVMs
+ * without one.
+ */
+public class MicroBenchmark {
+
+    /**
+     * An operation to measure. The value returned is kept so that the JIT
+     * cannot remove the work done to compute it.
+     */
+    public interface Operation {
+        Object run(int invocation) throws Exception;
+    }
+
+    /**
+     * The measurements of one operation.
+     */
+    public static class Result {
+
+        private final String name;
+        private final long operations;
+        private final long nanos;
+        private final long bytes;
+
+        Result(String name, long operations, long nanos, long bytes) {
+            this.name = name;
+            this.operations = operations;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getOperationsPerSecond() {
+            return operations * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+        }
+
+        public double getNanosPerOperation() {
+            return nanos / (double) operations;
+        }
+
+        /**
+         * @return the bytes allocated per operation, or -1 when unknown
+         */
+        public double getBytesPerOperation() {
+            return bytes < 0 ? -1 : bytes / (double) operations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-48s %14.1f ops/s %14.1f ns/op %12.1f B/op", name,
+                    getOperationsPerSecond(), getNanosPerOperation(), getBytesPerOperation());
+        }
+    }
+
+    private static Logger logger = Logger.getLogger(MicroBenchmark.class.getName());
+
+    private static final long MIN_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int warmupIterations = Integer.getInteger("benchmark.warmupIterations", 3);
+    private final int iterations = Integer.getInteger("benchmark.iterations", 5);
+    private final long iterationNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "benchmark.iterationMillis", 1000L));
+
+    private final List<Result> results = new ArrayList<Result>();
+
+    // written after every operation so its result is not dead code
+    private volatile Object sink;
+
+    /**
+     * Warm up and measure an operation, logging and keeping the result.
+     * 
+     * @param name
+     * @param operation
+     * @return
+     * @throws Exception
+     */
+    public Result run(String name, Operation operation) throws Exception {
+        int invocation = 0;
+        int batch = 1;
+        for (int i = 0; i < warmupIterations; i++) {
+            long[] measured = iteration(operation, invocation, batch);
+            invocation += (int) measured[0];
+            batch = (int) measured[3];
+        }
+        long operations = 0;
+        long nanos = 0;
+        long bytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] measured = iteration(operation, invocation, batch);
+            invocation += (int) measured[0];
+            batch = (int) measured[3];
+            operations += measured[0];
+            nanos += measured[1];
+            bytes = bytes < 0 || measured[2] < 0 ? -1 : bytes + measured[2];
+        }
+        Result result = new Result(name, operations, nanos, bytes);
+        results.add(result);
+        logger.info(result);
+        return result;
+    }
+
+    /**
+     * Run the operation in batches until the iteration time has passed,
+     * doubling the batch size while a batch takes less than a millisecond so
+     * that reading the clock does not dominate cheap operations.
+     * 
+     * @return the operations, nanos, allocated bytes and the batch size
+     */
+    private long[] iteration(Operation operation, int invocation, int batch) throws Exception {
+        long operations = 0;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long now = start;
+        while (now - start < iterationNanos) {
+            long batchStart = now;
+            for (int i = 0; i < batch; i++) {
+                sink = operation.run(invocation++);
+            }
+            operations += batch;
+            now = System.nanoTime();
+            if (now - batchStart < MIN_BATCH_NANOS && batch < (1 << 20)) {
+                batch <<= 1;
+            }
+        }
+        long allocatedAfter = allocatedBytes();
+        long bytes = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+        return new long[] { operations, now - start, bytes, batch };
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported()
+                    && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the results of the operations measured so far
+     */
+    public List<Result> getResults() {
+        return results;
+    }
+
+    /**
+     * Log all results as one table.
+     * 
+     * @param title
+     */
+    public void report(String title) {
+        StringBuilder table = new StringBuilder(title);
+        for (Result result : results) {
+            table.append('\n').append(result);
+        }
+        logger.info(table);
+    }
+}
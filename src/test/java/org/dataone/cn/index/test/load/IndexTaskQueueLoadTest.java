@@ -0,0 +1,325 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test.load;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.cn.index.task.IndexTaskRepository;
+import org.dataone.cn.index.task.IndexTaskShardRange;
+import org.dataone.cn.index.util.Histogram;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Fills the task queue with a backlog of synthetic tasks, then runs
+ * concurrent producers (enqueueOrMerge) and consumers (claimNewTasks and
+ * markComplete) through the repository for a fixed time and reports the
+ * throughput, claim conflicts, claim and queue latency percentiles and heap
+ * usage. Run with mvn -Ploadtest test; it is not part of the unit tests.
+ * 
+ * The run is configured with system properties:
+ * <ul>
+ * <li>loadtest.tasks - backlog size (default 200000; millions need a larger
+ * heap for the embedded database, e.g. -DargLine=-Xmx6g)</li>
+ * <li>loadtest.producers, loadtest.consumers - thread counts (default 2 and
+ * 4)</li>
+ * <li>loadtest.seconds - length of the run (default 30)</li>
+ * <li>loadtest.claimSize - tasks per claim (default 20)</li>
+ * <li>loadtest.workMicros - simulated indexing time per task (default 0)</li>
+ * <li>loadtest.producerRate - tasks per second per producer, 0 for
+ * unlimited (default 200)</li>
+ * <li>loadtest.sharded - consumers claim from disjoint shard ranges (default
+ * false)</li>
+ * <li>datasource.* - see load-test-context.xml, to run against postgres</li>
+ * </ul>
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "load-test-context.xml" })
+public class IndexTaskQueueLoadTest {
+
+    private static Logger logger = Logger.getLogger(IndexTaskQueueLoadTest.class.getName());
+
+    private static final int POPULATE_CHUNK = 10000;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int backlog = Integer.getInteger("loadtest.tasks", 200000);
+    private final int producers = Integer.getInteger("loadtest.producers", 2);
+    private final int consumers = Integer.getInteger("loadtest.consumers", 4);
+    private final int seconds = Integer.getInteger("loadtest.seconds", 30);
+    private final int claimSize = Integer.getInteger("loadtest.claimSize", 20);
+    private final long workMicros = Long.getLong("loadtest.workMicros", 0L);
+    private final int producerRate = Integer.getInteger("loadtest.producerRate", 200);
+    private final boolean sharded = Boolean.getBoolean("loadtest.sharded");
+
+    @Autowired
+    private IndexTaskRepository repo;
+
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong producerErrors = new AtomicLong();
+    private final AtomicLong claims = new AtomicLong();
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong emptyClaims = new AtomicLong();
+    private final AtomicLong claimConflicts = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong completeConflicts = new AtomicLong();
+    private final AtomicLong doubleClaims = new AtomicLong();
+    private final Set<Long> claimedIds = Collections
+            .newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    // microseconds per claim call
+    private final Histogram claimLatency = new Histogram();
+    // milliseconds from the last update of a task to its claim
+    private final Histogram backlogLatency = new Histogram();
+    private final Histogram producedLatency = new Histogram();
+
+    private final AtomicLong maxHeapUsed = new AtomicLong();
+
+    @Test
+    public void testQueueUnderLoad() throws Exception {
+        repo.deleteAll();
+        long populateStart = System.currentTimeMillis();
+        populate();
+        long populateMillis = System.currentTimeMillis() - populateStart;
+        System.gc();
+        long heapAfterPopulate = heapUsed();
+        logger.info("Queued " + backlog + " synthetic tasks in " + populateMillis + " ms ("
+                + rate(backlog, populateMillis) + " tasks/s), heap used "
+                + megabytes(heapAfterPopulate) + " MB");
+
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        final long runStart = System.currentTimeMillis();
+        final CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < producers; i++) {
+            threads.add(startProducer(i, go));
+        }
+        for (int i = 0; i < consumers; i++) {
+            threads.add(startConsumer(i, go, runStart));
+        }
+        go.countDown();
+        long end = runStart + TimeUnit.SECONDS.toMillis(seconds);
+        while (System.currentTimeMillis() < end) {
+            recordHeapUsed();
+            Thread.sleep(250);
+        }
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long runMillis = System.currentTimeMillis() - runStart;
+
+        StringBuilder report = new StringBuilder();
+        report.append("Queue load test: ").append(backlog).append(" task backlog, ")
+                .append(producers).append(" producers, ").append(consumers)
+                .append(sharded ? " sharded" : "").append(" consumers claiming ")
+                .append(claimSize).append(", ").append(runMillis).append(" ms");
+        report.append("\nenqueued ").append(enqueued).append(" (")
+                .append(rate(enqueued.get(), runMillis)).append("/s), producer errors ")
+                .append(producerErrors);
+        report.append("\nclaimed ").append(claimed).append(" in ").append(claims)
+                .append(" claims (").append(rate(claimed.get(), runMillis))
+                .append("/s), completed ").append(completed).append(" (")
+                .append(rate(completed.get(), runMillis)).append("/s)");
+        report.append("\nclaim conflicts ").append(claimConflicts).append(", empty claims ")
+                .append(emptyClaims).append(", complete conflicts ").append(completeConflicts)
+                .append(", tasks claimed twice ").append(doubleClaims);
+        report.append("\nclaim latency us: ").append(claimLatency.snapshot());
+        report.append("\nqueue latency ms, backlog: ").append(backlogLatency.snapshot());
+        report.append("\nqueue latency ms, produced: ").append(producedLatency.snapshot());
+        report.append("\nheap used MB: after populating ").append(megabytes(heapAfterPopulate))
+                .append(", max during run ").append(megabytes(maxHeapUsed.get()))
+                .append("; gc ").append(gcCount() - gcCountBefore).append(" collections, ")
+                .append(gcMillis() - gcMillisBefore).append(" ms");
+        logger.info(report);
+
+        Assert.assertEquals(0, doubleClaims.get());
+        Assert.assertTrue(completed.get() > 0);
+        repo.deleteAll();
+    }
+
+    private void populate() {
+        SyntheticIndexTaskGenerator generator = new SyntheticIndexTaskGenerator(1);
+        long now = System.currentTimeMillis();
+        for (int queued = 0; queued < backlog; queued += POPULATE_CHUNK) {
+            int size = Math.min(POPULATE_CHUNK, backlog - queued);
+            List<IndexTask> chunk = new ArrayList<IndexTask>(size);
+            for (int i = 0; i < size; i++) {
+                chunk.add(generator.nextQueued(now));
+            }
+            repo.enqueueAll(chunk);
+            recordHeapUsed();
+        }
+    }
+
+    private Thread startProducer(final int producer, final CountDownLatch go) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                await(go);
+                SyntheticIndexTaskGenerator generator = new SyntheticIndexTaskGenerator(
+                        1000 + producer);
+                long intervalNanos = producerRate > 0 ? TimeUnit.SECONDS.toNanos(1)
+                        / producerRate : 0;
+                long next = System.nanoTime();
+                while (running.get()) {
+                    try {
+                        repo.enqueueOrMerge(generator.next(System.currentTimeMillis()));
+                        enqueued.incrementAndGet();
+                    } catch (DataAccessException e) {
+                        producerErrors.incrementAndGet();
+                        logger.debug("enqueue failed: " + e.getMessage());
+                    }
+                    if (intervalNanos > 0) {
+                        next += intervalNanos;
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                }
+            }
+        }, "load test producer " + producer);
+        thread.start();
+        return thread;
+    }
+
+    private Thread startConsumer(final int consumer, final CountDownLatch go, final long runStart) {
+        final IndexTaskShardRange shards = sharded ? IndexTaskShardRange.forWorker(consumer,
+                consumers) : IndexTaskShardRange.ALL;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                await(go);
+                while (running.get()) {
+                    List<IndexTask> tasks;
+                    long start = System.nanoTime();
+                    try {
+                        tasks = repo.claimNewTasksInShards(claimSize, shards);
+                    } catch (DataAccessException e) {
+                        claimConflicts.incrementAndGet();
+                        logger.debug("claim failed: " + e.getMessage());
+                        continue;
+                    }
+                    claimLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                    claims.incrementAndGet();
+                    if (tasks.isEmpty()) {
+                        emptyClaims.incrementAndGet();
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                        continue;
+                    }
+                    long now = System.currentTimeMillis();
+                    List<Long> ids = new ArrayList<Long>(tasks.size());
+                    for (IndexTask task : tasks) {
+                        if (!claimedIds.add(task.getId())) {
+                            doubleClaims.incrementAndGet();
+                        }
+                        long latency = Math.max(0, now - task.getDateSysMetaModified());
+                        if (task.getDateSysMetaModified() >= runStart) {
+                            producedLatency.record(latency);
+                        } else {
+                            backlogLatency.record(latency);
+                        }
+                        ids.add(task.getId());
+                    }
+                    claimed.addAndGet(tasks.size());
+                    if (workMicros > 0) {
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(workMicros
+                                * tasks.size()));
+                    }
+                    try {
+                        completed.addAndGet(repo.markComplete(ids, System.currentTimeMillis()));
+                    } catch (DataAccessException e) {
+                        completeConflicts.incrementAndGet();
+                        logger.debug("complete failed: " + e.getMessage());
+                    }
+                }
+            }
+        }, "load test consumer " + consumer);
+        thread.start();
+        return thread;
+    }
+
+    private static void await(CountDownLatch go) {
+        try {
+            go.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void recordHeapUsed() {
+        long used = heapUsed();
+        long max = maxHeapUsed.get();
+        while (used > max && !maxHeapUsed.compareAndSet(max, used)) {
+            max = maxHeapUsed.get();
+        }
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static long rate(long count, long millis) {
+        return millis > 0 ? count * 1000 / millis : 0;
+    }
+
+    private static long megabytes(long bytes) {
+        return bytes / (1024 * 1024);
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.test.load;
+
+import java.util.Random;
+import java.util.UUID;
+
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.cn.index.test.SystemMetadataFixtures;
+
+/**
+ * Generates synthetic index tasks for the load test, with the mix of formats,
+ * priorities, statuses and identifier schemes seen on a coordinating node.
+ * 
+ * Marshalling system metadata for millions of tasks would dominate the load
+ * test, so every task of a format shares one compressed system metadata
+ * document built from SystemMetadataFixtures; the pid, format, archived flag
+ * and dates are set on the task columns. The pid inside the payload is
+ * therefore not the pid of the task.
+ * 
+ * Not thread safe, use one generator per thread.
+ */
+public class SyntheticIndexTaskGenerator {
+
+    static final String FORMAT_METADATA = "eml://ecoinformatics.org/eml-2.1.1";
+    static final String FORMAT_DATA = "application/octet-stream";
+    static final String FORMAT_RESOURCE_MAP = "http://www.openarchives.org/ore/terms";
+
+    private static final String[] FORMATS = { FORMAT_METADATA, FORMAT_DATA,
+            FORMAT_RESOURCE_MAP };
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    private static final long HOUR_MILLIS = 60L * 60 * 1000;
+
+    private static final byte[][] payloads = buildPayloads();
+
+    private final Random random;
+
+    public SyntheticIndexTaskGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    private static byte[][] buildPayloads() {
+        boolean compress = IndexTask.isCompressSysMetadata();
+        try {
+            IndexTask.setCompressSysMetadata(true);
+            byte[][] built = new byte[FORMATS.length][];
+            for (int i = 0; i < FORMATS.length; i++) {
+                built[i] = new IndexTask(SystemMetadataFixtures.buildRealisticSysMetaData(
+                        "synthetic-template-" + i, FORMATS[i]), null).getSysMetadataCompressed();
+            }
+            return built;
+        } finally {
+            IndexTask.setCompressSysMetadata(compress);
+        }
+    }
+
+    /**
+     * A task as submitted by a producer: NEW, modified now, with add priority
+     * for three tasks in five and update priority otherwise.
+     * 
+     * @param now
+     * @return
+     */
+    public IndexTask next(long now) {
+        int format = nextFormat();
+        IndexTask task = new IndexTask();
+        task.setPid(nextPid(format));
+        task.setFormatId(FORMATS[format]);
+        task.setSysMetadataCompressed(payloads[format]);
+        task.setObjectPath("/var/metacat/data/" + task.getPid());
+        // one task in fifty removes an archived object from the index
+        task.setArchived(random.nextInt(50) == 0);
+        task.setDateSysMetaModified(now);
+        task.setTaskModifiedDate(now);
+        if (random.nextInt(5) < 3) {
+            task.setAddPriority();
+        } else {
+            task.setUpdatePriority();
+        }
+        return task;
+    }
+
+    /**
+     * A task as found in a backlog that built up over the last day: 85% NEW,
+     * 10% FAILED after one to three tries with a retry due within an hour
+     * either side of now, and 5% COMPLETE.
+     * 
+     * @param now
+     * @return
+     */
+    public IndexTask nextQueued(long now) {
+        long modified = now - (long) (random.nextDouble() * DAY_MILLIS);
+        IndexTask task = next(modified);
+        int status = random.nextInt(100);
+        if (status < 10) {
+            task.setStatus(IndexTask.STATUS_FAILED);
+            task.setTryCount(1 + random.nextInt(3));
+            task.setNextExection(now - HOUR_MILLIS + (long) (random.nextDouble() * 2 * HOUR_MILLIS));
+        } else if (status < 15) {
+            task.setStatus(IndexTask.STATUS_COMPLETE);
+        }
+        return task;
+    }
+
+    /**
+     * 70% science metadata, 20% data and 10% resource maps.
+     */
+    private int nextFormat() {
+        int format = random.nextInt(10);
+        if (format < 7) {
+            return 0;
+        } else if (format < 9) {
+            return 1;
+        }
+        return 2;
+    }
+
+    /**
+     * Identifiers in the schemes member nodes use: uuids, dois and package
+     * style identifiers; resource maps are named after their package.
+     */
+    private String nextPid(int format) {
+        if (FORMATS[format] == FORMAT_RESOURCE_MAP) {
+            return "resource_map_doi:10.5063/F1" + base36(8);
+        }
+        int scheme = random.nextInt(10);
+        if (scheme < 5) {
+            return "urn:uuid:" + new UUID(random.nextLong(), random.nextLong());
+        } else if (scheme < 8) {
+            return "doi:10.5063/F1" + base36(8);
+        }
+        return "knb-lter-" + base36(3) + "." + random.nextInt(5000) + "." + (1 + random.nextInt(20));
+    }
+
+    private String base36(int length) {
+        StringBuilder value = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            value.append(Character.forDigit(random.nextInt(36), 36));
+        }
+        return value.toString().toUpperCase();
+    }
+}